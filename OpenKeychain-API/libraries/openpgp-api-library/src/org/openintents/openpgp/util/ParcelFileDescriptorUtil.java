@@ -19,12 +19,47 @@ package org.openintents.openpgp.util;
 
 import android.os.ParcelFileDescriptor;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ParcelFileDescriptorUtil {
 
+    // capacity of a pipe on Linux, so one transfer fills or drains the pipe in one syscall
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // buffers kept for reuse, more are allocated if more transfers run at the same time
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    /*
+     * Transfers block until the other side of the pipe reads or writes, so the pool must not be
+     * bounded. Idle threads are reused by the next api call instead of starting new ones.
+     */
+    private static final ExecutorService sTransferExecutor = new ThreadPoolExecutor(0,
+            Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ParcelFileDescriptor Transfer Thread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final ConcurrentLinkedQueue<byte[]> sArrayPool =
+            new ConcurrentLinkedQueue<byte[]>();
+    private static final ConcurrentLinkedQueue<ByteBuffer> sDirectBufferPool =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+
     public interface IThreadListener {
         void onThreadFinished(final Thread thread);
     }
@@ -35,10 +70,9 @@ public class ParcelFileDescriptorUtil {
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        // start the transfer thread
-        new TransferThread(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(writeSide),
-                listener)
-                .start();
+        // start the transfer
+        sTransferExecutor.execute(new Transfer(inputStream,
+                new ParcelFileDescriptor.AutoCloseOutputStream(writeSide), listener));
 
         return readSide;
     }
@@ -49,55 +83,95 @@ public class ParcelFileDescriptorUtil {
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        // start the transfer thread
-        new TransferThread(new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream,
-                listener)
-                .start();
+        // start the transfer
+        sTransferExecutor.execute(new Transfer(
+                new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream, listener));
 
         return writeSide;
     }
 
-    static class TransferThread extends Thread {
+    private static <T> void pool(ConcurrentLinkedQueue<T> queue, T buffer) {
+        // size() is not exact under concurrency, the pool may grow slightly beyond its limit
+        if (queue.size() < MAX_POOLED_BUFFERS) {
+            queue.offer(buffer);
+        }
+    }
+
+    static class Transfer implements Runnable {
         final InputStream mIn;
         final OutputStream mOut;
         final IThreadListener mListener;
 
-        TransferThread(InputStream in, OutputStream out, IThreadListener listener) {
-            super("ParcelFileDescriptor Transfer Thread");
+        Transfer(InputStream in, OutputStream out, IThreadListener listener) {
             mIn = in;
             mOut = out;
             mListener = listener;
-            setDaemon(true);
         }
 
         @Override
         public void run() {
-            byte[] buf = new byte[1024];
-            int len;
-
             try {
-                while ((len = mIn.read(buf)) > 0) {
-                    mOut.write(buf, 0, len);
+                if (mIn instanceof FileInputStream && mOut instanceof FileOutputStream) {
+                    // both sides are file descriptors, e.g. pipes or files
+                    transferChannels(((FileInputStream) mIn).getChannel(),
+                            ((FileOutputStream) mOut).getChannel());
+                } else {
+                    transferStreams();
                 }
                 mOut.flush(); // just to be safe
             } catch (IOException e) {
-                //Log.e(OpenPgpApi.TAG, "TransferThread" + getId() + ": writing failed", e);
+                //Log.e(OpenPgpApi.TAG, "Transfer: writing failed", e);
             } finally {
                 try {
                     mIn.close();
                 } catch (IOException e) {
-                    //Log.e(OpenPgpApi.TAG, "TransferThread" + getId(), e);
+                    //Log.e(OpenPgpApi.TAG, "Transfer", e);
                 }
                 try {
                     mOut.close();
                 } catch (IOException e) {
-                    //Log.e(OpenPgpApi.TAG, "TransferThread" + getId(), e);
+                    //Log.e(OpenPgpApi.TAG, "Transfer", e);
                 }
             }
             if (mListener != null) {
-                //Log.d(OpenPgpApi.TAG, "TransferThread " + getId() + " finished!");
-                mListener.onThreadFinished(this);
+                //Log.d(OpenPgpApi.TAG, "Transfer finished!");
+                mListener.onThreadFinished(Thread.currentThread());
+            }
+        }
+
+        private void transferStreams() throws IOException {
+            byte[] buf = sArrayPool.poll();
+            if (buf == null) {
+                buf = new byte[BUFFER_SIZE];
+            }
+            try {
+                int len;
+                while ((len = mIn.read(buf)) > 0) {
+                    mOut.write(buf, 0, len);
+                }
+            } finally {
+                pool(sArrayPool, buf);
+            }
+        }
+
+        private void transferChannels(FileChannel in, FileChannel out) throws IOException {
+            ByteBuffer buf = sDirectBufferPool.poll();
+            if (buf == null) {
+                buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+            try {
+                buf.clear();
+                while (in.read(buf) > 0) {
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        out.write(buf);
+                    }
+                    buf.clear();
+                }
+            } finally {
+                buf.clear();
+                pool(sDirectBufferPool, buf);
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -22,6 +22,8 @@ import android.os.Environment;
 
 import org.spongycastle.jce.provider.BouncyCastleProvider;
 
+import org.sufficientlysecure.keychain.util.HkpKeyServer;
+import org.sufficientlysecure.keychain.util.KeyServerCache;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PRNGFixes;
 
@@ -31,6 +33,9 @@ import java.security.Security;
 
 public class KeychainApplication extends Application {
 
+    private static final long KEY_SERVER_CACHE_SIZE = 4 * 1024 * 1024;
+    private static final long KEY_SERVER_CACHE_TTL = 24 * 60 * 60 * 1000;
+
     /**
      * Called when the application is starting, before any activity, service, or receiver objects
      * (excluding content providers) have been created.
@@ -71,5 +76,9 @@ public class KeychainApplication extends Application {
                 // that the directory doesn't exist at this point
             }
         }
+
+        // cache keyserver responses, outdated ones are revalidated with the server
+        HkpKeyServer.setCache(new KeyServerCache(new File(getCacheDir(), "keyserver"),
+                KEY_SERVER_CACHE_SIZE, KEY_SERVER_CACHE_TTL));
     }
 }
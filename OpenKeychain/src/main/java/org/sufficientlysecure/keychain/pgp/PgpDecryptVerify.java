@@ -21,7 +21,6 @@ import android.content.Context;
 
 import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.spongycastle.bcpg.ArmoredInputStream;
-import org.spongycastle.bcpg.SignatureSubpacketTags;
 import org.spongycastle.openpgp.PGPCompressedData;
 import org.spongycastle.openpgp.PGPEncryptedData;
 import org.spongycastle.openpgp.PGPEncryptedDataList;
@@ -39,16 +38,13 @@ import org.spongycastle.openpgp.PGPSecretKey;
 import org.spongycastle.openpgp.PGPSecretKeyRing;
 import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.PGPSignatureList;
-import org.spongycastle.openpgp.PGPSignatureSubpacketVector;
 import org.spongycastle.openpgp.PGPUtil;
 import org.spongycastle.openpgp.operator.PBEDataDecryptorFactory;
-import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
 import org.spongycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
-import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
@@ -56,9 +52,12 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+import org.sufficientlysecure.keychain.service.PrivateKeyCache;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OperationTrace;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
+import org.sufficientlysecure.keychain.util.RateLimitedProgress;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
@@ -67,7 +66,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.SignatureException;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -83,6 +81,9 @@ public class PgpDecryptVerify {
     private boolean mAllowSymmetricDecryption;
     private String mPassphrase;
     private Set<Long> mAllowedKeyIds;
+    private OperationTrace.Sink mTraceSink;
+
+    private OperationTrace mTrace;
 
     private PgpDecryptVerify(Builder builder) {
         // private Constructor can only be called from Builder
@@ -90,10 +91,11 @@ public class PgpDecryptVerify {
         this.mData = builder.mData;
         this.mOutStream = builder.mOutStream;
 
-        this.mProgressDialogUpdater = builder.mProgressDialogUpdater;
+        this.mProgressDialogUpdater = RateLimitedProgress.wrap(builder.mProgressDialogUpdater);
         this.mAllowSymmetricDecryption = builder.mAllowSymmetricDecryption;
         this.mPassphrase = builder.mPassphrase;
         this.mAllowedKeyIds = builder.mAllowedKeyIds;
+        this.mTraceSink = builder.mTraceSink;
     }
 
     public static class Builder {
@@ -107,6 +109,7 @@ public class PgpDecryptVerify {
         private boolean mAllowSymmetricDecryption = true;
         private String mPassphrase = null;
         private Set<Long> mAllowedKeyIds = null;
+        private OperationTrace.Sink mTraceSink = null;
 
         public Builder(Context context, InputData data, OutputStream outStream) {
             this.mContext = context;
@@ -141,6 +144,14 @@ public class PgpDecryptVerify {
             return this;
         }
 
+        /**
+         * Additionally to the result, pass the phase timings to this sink
+         */
+        public Builder traceSink(OperationTrace.Sink traceSink) {
+            this.mTraceSink = traceSink;
+            return this;
+        }
+
         public PgpDecryptVerify build() {
             return new PgpDecryptVerify(this);
         }
@@ -169,6 +180,9 @@ public class PgpDecryptVerify {
      */
     public PgpDecryptVerifyResult execute()
             throws IOException, PgpGeneralException, PGPException, SignatureException {
+        mTrace = new OperationTrace();
+
+        PgpDecryptVerifyResult result = null;
         // automatically works with ascii armor input and binary
         InputStream in = PGPUtil.getDecoderStream(mData.getInputStream());
         if (in instanceof ArmoredInputStream) {
@@ -178,12 +192,23 @@ public class PgpDecryptVerify {
 
             if (aIn.isClearText()) {
                 // a cleartext signature, verify it with the other method
-                return verifyCleartextSignature(aIn);
+                result = verifyCleartextSignature(aIn);
             }
             // else: ascii armored encryption! go on...
         }
 
-        return decryptVerify(in);
+        if (result == null) {
+            result = decryptVerify(in);
+        }
+
+        mTrace.addBytesProcessed(mData.getStreamPosition());
+        mTrace.finish();
+        result.setTrace(mTrace);
+        if (mTraceSink != null) {
+            mTraceSink.onOperationTraced("decrypt/verify", mTrace);
+        }
+
+        return result;
     }
 
     /**
@@ -225,8 +250,10 @@ public class PgpDecryptVerify {
         PGPPublicKeyEncryptedData encryptedDataAsymmetric = null;
         PGPPBEEncryptedData encryptedDataSymmetric = null;
         PGPSecretKey secretKey = null;
+        long secretMasterKeyId = 0;
         Iterator<?> it = enc.getEncryptedDataObjects();
         boolean symmetricPacketFound = false;
+        long keyLookupBegin = mTrace.begin();
         // find secret key
         while (it.hasNext()) {
             Object obj = it.next();
@@ -234,9 +261,8 @@ public class PgpDecryptVerify {
                 updateProgress(R.string.progress_finding_key, currentProgress, 100);
 
                 PGPPublicKeyEncryptedData encData = (PGPPublicKeyEncryptedData) obj;
-                long masterKeyId = ProviderHelper.getMasterKeyId(mContext,
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(encData.getKeyID()))
-                );
+                long masterKeyId = ProviderHelper.getMasterKeyIdBySubkeyId(mContext,
+                        encData.getKeyID());
                 PGPSecretKeyRing secretKeyRing = ProviderHelper.getPGPSecretKeyRing(mContext, masterKeyId);
                 if (secretKeyRing == null) {
                     throw new PgpGeneralException(mContext.getString(R.string.error_no_secret_key_found));
@@ -260,6 +286,7 @@ public class PgpDecryptVerify {
                 }
 
                 encryptedDataAsymmetric = encData;
+                secretMasterKeyId = masterKeyId;
 
                 // if no passphrase was explicitly set try to get it from the cache service
                 if (mPassphrase == null) {
@@ -270,6 +297,7 @@ public class PgpDecryptVerify {
                     // if passphrase was not cached, return here
                     // indicating that a passphrase is missing!
                     if (mPassphrase == null) {
+                        mTrace.end(OperationTrace.PHASE_KEY_LOOKUP, keyLookupBegin);
                         returnData.setKeyIdPassphraseNeeded(masterKeyId);
                         returnData.setStatus(PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED);
                         return returnData;
@@ -297,9 +325,14 @@ public class PgpDecryptVerify {
             }
         }
 
+        mTrace.end(OperationTrace.PHASE_KEY_LOOKUP, keyLookupBegin);
+
         if (symmetricPacketFound) {
             updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
 
+            // includes the S2K derivation of the passphrase
+            long sessionKeyBegin = mTrace.begin();
+
             PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
                     .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
             PBEDataDecryptorFactory decryptorFactory = new JcePBEDataDecryptorFactoryBuilder(
@@ -307,6 +340,7 @@ public class PgpDecryptVerify {
                     mPassphrase.toCharArray());
 
             clear = encryptedDataSymmetric.getDataStream(decryptorFactory);
+            mTrace.end(OperationTrace.PHASE_SESSION_KEY, sessionKeyBegin);
 
             encryptedData = encryptedDataSymmetric;
             currentProgress += 5;
@@ -318,14 +352,14 @@ public class PgpDecryptVerify {
             currentProgress += 5;
             updateProgress(R.string.progress_extracting_key, currentProgress, 100);
             PGPPrivateKey privateKey;
+            long unlockBegin = mTrace.begin();
             try {
-                PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
-                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
-                                mPassphrase.toCharArray());
-                privateKey = secretKey.extractPrivateKey(keyDecryptor);
+                privateKey = PrivateKeyCache.extractPrivateKey(mContext, secretMasterKeyId,
+                        secretKey, mPassphrase);
             } catch (PGPException e) {
                 throw new PGPException(mContext.getString(R.string.error_wrong_passphrase));
             }
+            mTrace.end(OperationTrace.PHASE_S2K_UNLOCK, unlockBegin);
             if (privateKey == null) {
                 throw new PgpGeneralException(
                         mContext.getString(R.string.error_could_not_extract_private_key));
@@ -336,13 +370,19 @@ public class PgpDecryptVerify {
             PublicKeyDataDecryptorFactory decryptorFactory = new JcePublicKeyDataDecryptorFactoryBuilder()
                     .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(privateKey);
 
+            long sessionKeyBegin = mTrace.begin();
             clear = encryptedDataAsymmetric.getDataStream(decryptorFactory);
+            mTrace.end(OperationTrace.PHASE_SESSION_KEY, sessionKeyBegin);
 
             encryptedData = encryptedDataAsymmetric;
             currentProgress += 5;
         }
 
-        PGPObjectFactory plainFact = new PGPObjectFactory(clear);
+        // time spent reading the decrypted data, also includes reading the input
+        OperationTrace.TimedInputStream decryptIn = new OperationTrace.TimedInputStream(clear);
+        OperationTrace.TimedInputStream decompressIn = null;
+
+        PGPObjectFactory plainFact = new PGPObjectFactory(decryptIn);
         Object dataChunk = plainFact.nextObject();
         PGPOnePassSignature signature = null;
         OpenPgpSignatureResult signatureResult = null;
@@ -352,8 +392,9 @@ public class PgpDecryptVerify {
         if (dataChunk instanceof PGPCompressedData) {
             updateProgress(R.string.progress_decompressing_data, currentProgress, 100);
 
-            PGPObjectFactory fact = new PGPObjectFactory(
+            decompressIn = new OperationTrace.TimedInputStream(
                     ((PGPCompressedData) dataChunk).getDataStream());
+            PGPObjectFactory fact = new PGPObjectFactory(decompressIn);
             dataChunk = fact.nextObject();
             plainFact = fact;
             currentProgress += 10;
@@ -365,6 +406,7 @@ public class PgpDecryptVerify {
 
             signatureResult = new OpenPgpSignatureResult();
             PGPOnePassSignatureList sigList = (PGPOnePassSignatureList) dataChunk;
+            long signatureKeyLookupBegin = mTrace.begin();
             for (int i = 0; i < sigList.size(); ++i) {
                 signature = sigList.get(i);
                 signatureKey = ProviderHelper
@@ -389,6 +431,7 @@ public class PgpDecryptVerify {
             }
 
             signatureResult.setKeyId(signatureKeyId);
+            mTrace.end(OperationTrace.PHASE_KEY_LOOKUP, signatureKeyLookupBegin);
 
             if (signature != null) {
                 JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
@@ -428,8 +471,13 @@ public class PgpDecryptVerify {
             // TODO: progress calculation is broken here! Try to rework it based on commented code!
 //            int progress = 0;
             long startPos = mData.getStreamPosition();
+            long outputNanos = 0;
+            long hashNanos = 0;
             while ((n = dataIn.read(buffer)) > 0) {
+                long writeBegin = System.nanoTime();
                 mOutStream.write(buffer, 0, n);
+                long hashBegin = System.nanoTime();
+                outputNanos += hashBegin - writeBegin;
 //                progress += n;
                 if (signature != null) {
                     try {
@@ -438,12 +486,14 @@ public class PgpDecryptVerify {
                         signatureResult.setStatus(OpenPgpSignatureResult.SIGNATURE_ERROR);
                         signature = null;
                     }
+                    hashNanos += System.nanoTime() - hashBegin;
                 }
                 // TODO: dead code?!
                 // unknown size, but try to at least have a moving, slowing down progress bar
 //                currentProgress = startProgress + (endProgress - startProgress) * progress
 //                        / (progress + 100000);
-                if (mData.getSize() - startPos == 0) {
+                // size is 0 if unknown, e.g. for pipes
+                if (mData.getSize() - startPos <= 0) {
                     currentProgress = endProgress;
                 } else {
                     currentProgress = (int) (startProgress + (endProgress - startProgress)
@@ -451,9 +501,12 @@ public class PgpDecryptVerify {
                 }
                 updateProgress(currentProgress, 100);
             }
+            mTrace.add(OperationTrace.PHASE_OUTPUT, outputNanos);
+            mTrace.add(OperationTrace.PHASE_SIGNATURE_HASH, hashNanos);
 
             if (signature != null) {
                 updateProgress(R.string.progress_verifying_signature, 90, 100);
+                long verifyBegin = mTrace.begin();
 
                 PGPSignatureList signatureList = (PGPSignatureList) plainFact.nextObject();
                 PGPSignature messageSignature = signatureList.get(signatureIndex);
@@ -470,13 +523,24 @@ public class PgpDecryptVerify {
                 if (validKeyBinding & validSignature) {
                     signatureResult.setStatus(OpenPgpSignatureResult.SIGNATURE_SUCCESS_UNCERTIFIED);
                 }
+                mTrace.end(OperationTrace.PHASE_SIGNATURE_VERIFY, verifyBegin);
             }
         }
 
+        // reads of the decompressing stream include the decryption underneath
+        mTrace.add(OperationTrace.PHASE_DECRYPT, decryptIn.getNanos());
+        if (decompressIn != null) {
+            mTrace.add(OperationTrace.PHASE_DECOMPRESSION,
+                    decompressIn.getNanos() - decryptIn.getNanos());
+        }
+
         if (encryptedData.isIntegrityProtected()) {
             updateProgress(R.string.progress_verifying_integrity, 95, 100);
 
-            if (encryptedData.verify()) {
+            long mdcBegin = mTrace.begin();
+            boolean integrityValid = encryptedData.verify();
+            mTrace.end(OperationTrace.PHASE_MDC_CHECK, mdcBegin);
+            if (integrityValid) {
                 // passed
                 Log.d(Constants.TAG, "Integrity verification: success!");
             } else {
@@ -550,31 +614,31 @@ public class PgpDecryptVerify {
         PGPSignature signature = null;
         long signatureKeyId = 0;
         PGPPublicKey signatureKey = null;
+        long keyLookupBegin = mTrace.begin();
         for (int i = 0; i < sigList.size(); ++i) {
 
             signature = sigList.get(i);
             signatureKeyId = signature.getKeyID();
 
             // find data about this subkey
-            HashMap<String, Object> data = ProviderHelper.getGenericData(mContext,
-                    KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(signature.getKeyID())),
-                    new String[] { KeyRings.MASTER_KEY_ID, KeyRings.USER_ID },
-                    new int[] { ProviderHelper.FIELD_TYPE_INTEGER, ProviderHelper.FIELD_TYPE_STRING });
+            long masterKeyId = ProviderHelper.getMasterKeyIdBySubkeyId(mContext, signatureKeyId);
             // any luck? otherwise, try next.
-            if(data.get(KeyRings.MASTER_KEY_ID) == null) {
+            if(masterKeyId == 0) {
                 signature = null;
                 // do NOT reset signatureKeyId, that one is shown when no known one is found!
                 continue;
             }
 
             // this one can't fail now (yay database constraints)
-            signatureKey = ProviderHelper.getPGPPublicKeyRing(mContext, (Long) data.get(KeyRings.MASTER_KEY_ID)).getPublicKey();
-            signatureResult.setUserId((String) data.get(KeyRings.USER_ID));
+            signatureKey = ProviderHelper.getPGPPublicKeyRing(mContext, masterKeyId).getPublicKey();
+            signatureResult.setUserId((String) ProviderHelper.getUnifiedData(mContext, masterKeyId,
+                    KeyRings.USER_ID, ProviderHelper.FIELD_TYPE_STRING));
 
             break;
         }
 
         signatureResult.setKeyId(signatureKeyId);
+        mTrace.end(OperationTrace.PHASE_KEY_LOOKUP, keyLookupBegin);
 
         if (signature == null) {
             signatureResult.setStatus(OpenPgpSignatureResult.SIGNATURE_UNKNOWN_PUB_KEY);
@@ -590,6 +654,7 @@ public class PgpDecryptVerify {
 
         signature.init(contentVerifierBuilderProvider, signatureKey);
 
+        long hashBegin = mTrace.begin();
         InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
 
         lookAhead = readInputLine(lineOut, sigIn);
@@ -606,10 +671,13 @@ public class PgpDecryptVerify {
                 processLine(signature, lineOut.toByteArray());
             } while (lookAhead != -1);
         }
+        mTrace.end(OperationTrace.PHASE_SIGNATURE_HASH, hashBegin);
 
         //Now check binding signatures
+        long verifyBegin = mTrace.begin();
         boolean validKeyBinding = verifyKeyBinding(mContext, signature, signatureKey);
         boolean validSignature = signature.verify();
+        mTrace.end(OperationTrace.PHASE_SIGNATURE_VERIFY, verifyBegin);
 
         if (validSignature & validKeyBinding) {
             signatureResult.setStatus(OpenPgpSignatureResult.SIGNATURE_SUCCESS_UNCERTIFIED);
@@ -626,107 +694,27 @@ public class PgpDecryptVerify {
     private static boolean verifyKeyBinding(Context context,
                                             PGPSignature signature, PGPPublicKey signatureKey) {
         long signatureKeyId = signature.getKeyID();
-        boolean validKeyBinding = false;
-
-        PGPPublicKeyRing signKeyRing = ProviderHelper.getPGPPublicKeyRingWithKeyId(context,
-                signatureKeyId);
-        PGPPublicKey mKey = null;
-        if (signKeyRing != null) {
-            mKey = signKeyRing.getPublicKey();
+        long masterKeyId = ProviderHelper.getMasterKeyIdBySubkeyId(context, signatureKeyId);
+        if (masterKeyId == 0) {
+            return false;
         }
 
-        if (signature.getKeyID() != mKey.getKeyID()) {
-            validKeyBinding = verifyKeyBinding(mKey, signatureKey);
-        } else { //if the key used to make the signature was the master key, no need to check binding sigs
-            validKeyBinding = true;
+        //if the key used to make the signature was the master key, no need to check binding sigs
+        if (signatureKeyId == masterKeyId) {
+            return true;
         }
-        return validKeyBinding;
-    }
-
-    private static boolean verifyKeyBinding(PGPPublicKey masterPublicKey, PGPPublicKey signingPublicKey) {
-        boolean validSubkeyBinding = false;
-        boolean validTempSubkeyBinding = false;
-        boolean validPrimaryKeyBinding = false;
-
-        JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                new JcaPGPContentVerifierBuilderProvider()
-                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
 
-        Iterator<PGPSignature> itr = signingPublicKey.getSignatures();
-
-        while (itr.hasNext()) { //what does gpg do if the subkey binding is wrong?
-            //gpg has an invalid subkey binding error on key import I think, but doesn't shout
-            //about keys without subkey signing. Can't get it to import a slightly broken one
-            //either, so we will err on bad subkey binding here.
-            PGPSignature sig = itr.next();
-            if (sig.getKeyID() == masterPublicKey.getKeyID() &&
-                    sig.getSignatureType() == PGPSignature.SUBKEY_BINDING) {
-                //check and if ok, check primary key binding.
-                try {
-                    sig.init(contentVerifierBuilderProvider, masterPublicKey);
-                    validTempSubkeyBinding = sig.verifyCertification(masterPublicKey, signingPublicKey);
-                } catch (PGPException e) {
-                    continue;
-                } catch (SignatureException e) {
-                    continue;
-                }
-
-                if (validTempSubkeyBinding) {
-                    validSubkeyBinding = true;
-                }
-                if (validTempSubkeyBinding) {
-                    validPrimaryKeyBinding = verifyPrimaryKeyBinding(sig.getUnhashedSubPackets(),
-                            masterPublicKey, signingPublicKey);
-                    if (validPrimaryKeyBinding) {
-                        break;
-                    }
-                    validPrimaryKeyBinding = verifyPrimaryKeyBinding(sig.getHashedSubPackets(),
-                            masterPublicKey, signingPublicKey);
-                    if (validPrimaryKeyBinding) {
-                        break;
-                    }
-                }
-            }
-        }
-        return (validSubkeyBinding & validPrimaryKeyBinding);
-    }
-
-    private static boolean verifyPrimaryKeyBinding(PGPSignatureSubpacketVector pkts,
-                                                   PGPPublicKey masterPublicKey,
-                                                   PGPPublicKey signingPublicKey) {
-        boolean validPrimaryKeyBinding = false;
-        JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                new JcaPGPContentVerifierBuilderProvider()
-                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-        PGPSignatureList eSigList;
-
-        if (pkts.hasSubpacket(SignatureSubpacketTags.EMBEDDED_SIGNATURE)) {
-            try {
-                eSigList = pkts.getEmbeddedSignatures();
-            } catch (IOException e) {
-                return false;
-            } catch (PGPException e) {
-                return false;
-            }
-            for (int j = 0; j < eSigList.size(); ++j) {
-                PGPSignature emSig = eSigList.get(j);
-                if (emSig.getSignatureType() == PGPSignature.PRIMARYKEY_BINDING) {
-                    try {
-                        emSig.init(contentVerifierBuilderProvider, signingPublicKey);
-                        validPrimaryKeyBinding = emSig.verifyCertification(masterPublicKey, signingPublicKey);
-                        if (validPrimaryKeyBinding) {
-                            break;
-                        }
-                    } catch (PGPException e) {
-                        continue;
-                    } catch (SignatureException e) {
-                        continue;
-                    }
-                }
-            }
+        // binding signatures are verified once, when the keyring is saved
+        Boolean validKeyBinding = ProviderHelper.hasValidBinding(context, masterKeyId,
+                signatureKeyId);
+        if (validKeyBinding != null) {
+            return validKeyBinding;
         }
 
-        return validPrimaryKeyBinding;
+        // keyring not saved again since the database upgrade
+        PGPPublicKeyRing signKeyRing = ProviderHelper.getPGPPublicKeyRing(context, masterKeyId);
+        return signKeyRing != null
+                && PgpKeyHelper.isSubkeyBindingValid(signKeyRing.getPublicKey(), signatureKey);
     }
 
     /**
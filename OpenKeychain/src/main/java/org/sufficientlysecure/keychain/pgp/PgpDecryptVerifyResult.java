@@ -21,6 +21,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import org.openintents.openpgp.OpenPgpSignatureResult;
+import org.sufficientlysecure.keychain.util.OperationTrace;
 
 public class PgpDecryptVerifyResult implements Parcelable {
     public static final int SUCCESS = 1;
@@ -32,6 +33,8 @@ public class PgpDecryptVerifyResult implements Parcelable {
 
     OpenPgpSignatureResult mSignatureResult;
 
+    OperationTrace mTrace;
+
     public int getStatus() {
         return mStatus;
     }
@@ -56,6 +59,17 @@ public class PgpDecryptVerifyResult implements Parcelable {
         this.mSignatureResult = signatureResult;
     }
 
+    /**
+     * @return phase timings of the operation
+     */
+    public OperationTrace getTrace() {
+        return mTrace;
+    }
+
+    public void setTrace(OperationTrace trace) {
+        this.mTrace = trace;
+    }
+
     public PgpDecryptVerifyResult() {
 
     }
@@ -64,6 +78,7 @@ public class PgpDecryptVerifyResult implements Parcelable {
         this.mStatus = b.mStatus;
         this.mKeyIdPassphraseNeeded = b.mKeyIdPassphraseNeeded;
         this.mSignatureResult = b.mSignatureResult;
+        this.mTrace = b.mTrace;
     }
 
 
@@ -75,6 +90,7 @@ public class PgpDecryptVerifyResult implements Parcelable {
         dest.writeInt(mStatus);
         dest.writeLong(mKeyIdPassphraseNeeded);
         dest.writeParcelable(mSignatureResult, 0);
+        dest.writeParcelable(mTrace, 0);
     }
 
     public static final Creator<PgpDecryptVerifyResult> CREATOR = new Creator<PgpDecryptVerifyResult>() {
@@ -83,6 +99,7 @@ public class PgpDecryptVerifyResult implements Parcelable {
             vr.mStatus = source.readInt();
             vr.mKeyIdPassphraseNeeded = source.readLong();
             vr.mSignatureResult = source.readParcelable(OpenPgpSignatureResult.class.getClassLoader());
+            vr.mTrace = source.readParcelable(OperationTrace.class.getClassLoader());
             return vr;
         }
 
@@ -17,9 +17,13 @@
 
 package org.sufficientlysecure.keychain.pgp;
 
+import android.content.ContentProviderOperation;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.RemoteException;
+import android.os.SystemClock;
 
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.openpgp.PGPException;
@@ -28,6 +32,7 @@ import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSecretKey;
 import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.PGPUtil;
 import org.spongycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
@@ -36,21 +41,49 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.KeychainIntentService;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.util.FederatedKeyServer;
 import org.sufficientlysecure.keychain.util.HkpKeyServer;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.KeyServer.AddKeyException;
 import org.sufficientlysecure.keychain.util.KeychainServiceListener;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
+import org.sufficientlysecure.keychain.util.RateLimitedProgress;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PgpImportExport {
 
+    // number of keyrings written per transaction on import
+    private static final int IMPORT_BATCH_SIZE = 100;
+
+    // keyrings downloaded at the same time when refreshing
+    private static final int REFRESH_THREADS = 4;
+    private static final int REFRESH_ATTEMPTS = 3;
+    // doubled after each failed attempt
+    private static final long REFRESH_BACKOFF_MILLIS = 1000;
+
     private Context mContext;
     private ProgressDialogUpdater mProgress;
 
@@ -59,14 +92,14 @@ public class PgpImportExport {
     public PgpImportExport(Context context, ProgressDialogUpdater progress) {
         super();
         this.mContext = context;
-        this.mProgress = progress;
+        this.mProgress = RateLimitedProgress.wrap(progress);
     }
 
     public PgpImportExport(Context context,
                            ProgressDialogUpdater progress, KeychainServiceListener keychainListener) {
         super();
         this.mContext = context;
-        this.mProgress = progress;
+        this.mProgress = RateLimitedProgress.wrap(progress);
         this.mKeychainServiceListener = keychainListener;
     }
 
@@ -114,56 +147,378 @@ public class PgpImportExport {
         }
     }
 
+    /**
+     * Supplies the keyrings to import one after another
+     */
+    private interface KeyRingSource {
+        /**
+         * @return parses the next keyring, returning null if it isn't one. null at the end.
+         */
+        Callable<PGPKeyRing> next() throws IOException;
+    }
+
     /**
      * Imports keys from given data. If keyIds is given only those are imported
      */
-    public Bundle importKeyRings(List<ImportKeysListEntry> entries)
+    public Bundle importKeyRings(final List<ImportKeysListEntry> entries)
             throws PgpGeneralException, PGPException, IOException {
-        Bundle returnData = new Bundle();
+        return importKeyRings(new KeyRingSource() {
+            int mPosition = 0;
 
-        updateProgress(R.string.progress_importing, 0, 100);
+            @Override
+            public Callable<PGPKeyRing> next() {
+                if (mPosition >= entries.size()) {
+                    return null;
+                }
+                final ImportKeysListEntry entry = entries.get(mPosition++);
+                return new Callable<PGPKeyRing>() {
+                    @Override
+                    public PGPKeyRing call() {
+                        return PgpConversionHelper.BytesToPGPKeyRing(entry.getBytes());
+                    }
+                };
+            }
+        }, entries.size());
+    }
 
-        int newKeys = 0;
-        int oldKeys = 0;
-        int badKeys = 0;
+    /**
+     * Imports the keyrings with the given indices from a key file, as numbered by
+     * PgpKeyRingReader. The file is read in a single pass, and only the keyrings of the current
+     * batch are held in memory.
+     *
+     * @param masterKeyIds the master key id expected at each index. The file may have changed
+     *                     since it was listed, other keyrings found there are not imported but
+     *                     counted as bad.
+     */
+    public Bundle importKeyRings(InputStream in, final int[] sourceIndices, long[] masterKeyIds)
+            throws PgpGeneralException, PGPException, IOException {
+        final PgpKeyRingReader reader = new PgpKeyRingReader(in);
+        Integer[] order = new Integer[sourceIndices.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return sourceIndices[lhs] < sourceIndices[rhs] ? -1
+                        : (sourceIndices[lhs] == sourceIndices[rhs] ? 0 : 1);
+            }
+        });
+        final int[] indices = new int[order.length];
+        final long[] expectedKeyIds = new long[order.length];
+        for (int i = 0; i < order.length; i++) {
+            indices[i] = sourceIndices[order[i]];
+            expectedKeyIds[i] = masterKeyIds[order[i]];
+        }
+
+        return importKeyRings(new KeyRingSource() {
+            int mPosition = 0;
+
+            @Override
+            public Callable<PGPKeyRing> next() throws IOException {
+                while (mPosition < indices.length) {
+                    final PGPKeyRing keyRing = reader.next();
+                    if (keyRing == null) {
+                        Log.e(Constants.TAG, "Key file ended before keyring " + indices[mPosition]);
+                        return null;
+                    }
+                    if (reader.getIndex() < indices[mPosition]) {
+                        continue;
+                    }
+                    final long expectedKeyId = expectedKeyIds[mPosition];
+                    final int index = reader.getIndex();
+                    // skip duplicate indices
+                    while (mPosition < indices.length && indices[mPosition] <= index) {
+                        mPosition++;
+                    }
+                    if (keyRing.getPublicKey().getKeyID() != expectedKeyId) {
+                        return new Callable<PGPKeyRing>() {
+                            @Override
+                            public PGPKeyRing call() throws PgpGeneralException {
+                                throw new PgpGeneralException("Keyring " + index
+                                        + " of the key file is not the selected key "
+                                        + PgpKeyHelper.convertKeyIdToHex(expectedKeyId));
+                            }
+                        };
+                    }
+                    return new Callable<PGPKeyRing>() {
+                        @Override
+                        public PGPKeyRing call() {
+                            return keyRing;
+                        }
+                    };
+                }
+                return null;
+            }
+        }, indices.length);
+    }
 
-        int position = 0;
+    /**
+     * Downloads all public keyrings from the keyservers again, REFRESH_THREADS at a time, and
+     * imports those that changed. Keyrings the keyservers return unchanged, by hash of their
+     * encoding, are skipped. Failed downloads are retried REFRESH_ATTEMPTS times with backoff.
+     */
+    public Bundle refreshKeyRings(final FederatedKeyServer keyServer) {
+        long startTime = SystemClock.elapsedRealtime();
+        updateProgress(R.string.progress_refreshing, 0, 100);
+
+        Set<Long> masterKeyIds = ProviderHelper.getPublicMasterKeyIds(mContext);
+        final AtomicLong bytesTransferred = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(REFRESH_THREADS);
+        CompletionService<PGPKeyRing> completion =
+                new ExecutorCompletionService<PGPKeyRing>(executor);
+        for (final long masterKeyId : masterKeyIds) {
+            completion.submit(new Callable<PGPKeyRing>() {
+                @Override
+                public PGPKeyRing call() throws Exception {
+                    return downloadChangedKeyRing(keyServer, masterKeyId, bytesTransferred);
+                }
+            });
+        }
+
+        RefreshSource source = new RefreshSource(completion, masterKeyIds.size());
+        Bundle returnData;
         try {
-            for (ImportKeysListEntry entry : entries) {
-                Object obj = PgpConversionHelper.BytesToPGPKeyRing(entry.getBytes());
+            returnData = importKeyRings(source, 0);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long duration = Math.max(SystemClock.elapsedRealtime() - startTime, 1);
+        float keysPerSecond = source.mDone * 1000f / duration;
+        Log.d(Constants.TAG, "Refreshed " + source.mDone + " keys in " + duration + "ms, "
+                + keysPerSecond + " keys/s, " + bytesTransferred.get() + " bytes, "
+                + source.mUnchanged + " unchanged, " + source.mFailed + " failed");
+
+        returnData.putInt(KeychainIntentService.RESULT_REFRESH_UNCHANGED, source.mUnchanged);
+        returnData.putInt(KeychainIntentService.RESULT_REFRESH_FAILED, source.mFailed);
+        returnData.putLong(KeychainIntentService.RESULT_REFRESH_BYTES, bytesTransferred.get());
+        returnData.putFloat(KeychainIntentService.RESULT_IMPORT_KEYS_PER_SECOND, keysPerSecond);
+        return returnData;
+    }
 
-                if (obj instanceof PGPKeyRing) {
-                    PGPKeyRing keyring = (PGPKeyRing) obj;
+    /**
+     * Supplies the downloaded keyrings that changed in the order their downloads finish, and
+     * reports the download progress
+     */
+    private class RefreshSource implements KeyRingSource {
+        final CompletionService<PGPKeyRing> mCompletion;
+        final int mTotal;
+        int mDone;
+        int mUnchanged;
+        int mFailed;
+
+        RefreshSource(CompletionService<PGPKeyRing> completion, int total) {
+            mCompletion = completion;
+            mTotal = total;
+        }
 
-                    int status = storeKeyRingInCache(keyring);
+        @Override
+        public Callable<PGPKeyRing> next() throws IOException {
+            while (mDone < mTotal) {
+                if (mKeychainServiceListener != null
+                        && mKeychainServiceListener.hasServiceStopped()) {
+                    return null;
+                }
+                final PGPKeyRing keyRing;
+                try {
+                    keyRing = mCompletion.take().get();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("refreshing keys was interrupted");
+                } catch (ExecutionException e) {
+                    Log.e(Constants.TAG, "Downloading keyring failed", e.getCause());
+                    mDone++;
+                    mFailed++;
+                    updateProgress(mDone * 100 / mTotal, 100);
+                    continue;
+                }
+                mDone++;
+                updateProgress(mDone * 100 / mTotal, 100);
 
-                    if (status == Id.return_value.error) {
-                        throw new PgpGeneralException(
-                                mContext.getString(R.string.error_saving_keys));
+                if (keyRing == null) {
+                    mUnchanged++;
+                    continue;
+                }
+                return new Callable<PGPKeyRing>() {
+                    @Override
+                    public PGPKeyRing call() {
+                        return keyRing;
                     }
+                };
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return the keyring as returned by the keyservers, or null if it didn't change
+     */
+    private PGPKeyRing downloadChangedKeyRing(FederatedKeyServer keyServer, long masterKeyId,
+                                              AtomicLong bytesTransferred) throws Exception {
+        PGPPublicKeyRing localKeyRing = ProviderHelper.getPGPPublicKeyRing(mContext, masterKeyId);
+        if (localKeyRing == null) {
+            // deleted in the meantime
+            return null;
+        }
+        String fingerprint = PgpKeyHelper.convertFingerprintToHex(
+                localKeyRing.getPublicKey().getFingerprint());
+
+        String armoredKey = null;
+        for (int attempt = 1; armoredKey == null; attempt++) {
+            // not finding the key on any keyserver throws, that is not retried. Cached
+            // responses are revalidated, a refresh must not miss e.g. a new revocation
+            armoredKey = keyServer.get("0x" + fingerprint, false);
+            if (armoredKey == null) {
+                if (attempt == REFRESH_ATTEMPTS) {
+                    throw new IOException("Downloading " + fingerprint + " failed");
+                }
+                Thread.sleep(REFRESH_BACKOFF_MILLIS << (attempt - 1));
+            }
+        }
+        bytesTransferred.addAndGet(armoredKey.length());
+
+        InputStream in = PGPUtil.getDecoderStream(
+                new ByteArrayInputStream(armoredKey.getBytes("UTF-8")));
+        ByteArrayOutputStream downloaded = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 13];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            downloaded.write(buffer, 0, n);
+        }
+
+        PGPKeyRing keyRing = PgpConversionHelper.BytesToPGPKeyRing(downloaded.toByteArray());
+        if (!(keyRing instanceof PGPPublicKeyRing)
+                || keyRing.getPublicKey().getKeyID() != masterKeyId) {
+            throw new PgpGeneralException("Keyserver returned a different key for " + fingerprint);
+        }
 
-                    // update the counts to display to the user at the end
-                    if (status == Id.return_value.updated) {
-                        ++oldKeys;
-                    } else if (status == Id.return_value.ok) {
-                        ++newKeys;
-                    } else if (status == Id.return_value.bad) {
-                        ++badKeys;
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] downloadedHash = digest.digest(keyRing.getEncoded());
+        byte[] localHash = digest.digest(localKeyRing.getEncoded());
+        if (MessageDigest.isEqual(downloadedHash, localHash)) {
+            return null;
+        }
+        return keyRing;
+    }
+
+    /**
+     * Keyrings are parsed and their signatures verified on a pool of worker threads, and the
+     * keyrings of each batch of IMPORT_BATCH_SIZE entries are written in a single transaction.
+     *
+     * @param total number of keyrings for progress reporting, 0 if the source reports progress
+     */
+    private Bundle importKeyRings(KeyRingSource source, int total) {
+        Bundle returnData = new Bundle();
+
+        if (total > 0) {
+            updateProgress(R.string.progress_importing, 0, 100);
+        }
+        long startTime = SystemClock.elapsedRealtime();
+
+        List<ImportItem> imported = new ArrayList<ImportItem>(total);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        try {
+            int position = 0;
+            while (true) {
+                List<Callable<PGPKeyRing>> batch = new ArrayList<Callable<PGPKeyRing>>();
+                Callable<PGPKeyRing> parser;
+                while (batch.size() < IMPORT_BATCH_SIZE && (parser = source.next()) != null) {
+                    batch.add(parser);
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+
+                List<Future<ImportItem>> futures = new ArrayList<Future<ImportItem>>(batch.size());
+                for (final Callable<PGPKeyRing> keyRingParser : batch) {
+                    futures.add(executor.submit(new Callable<ImportItem>() {
+                        @Override
+                        public ImportItem call() throws Exception {
+                            PGPKeyRing keyRing = keyRingParser.call();
+                            if (keyRing == null) {
+                                Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!");
+                                return null;
+                            }
+                            return prepareImport(keyRing);
+                        }
+                    }));
+                }
+
+                List<ImportItem> items = new ArrayList<ImportItem>(batch.size());
+                Set<Long> masterKeyIds = new HashSet<Long>();
+                for (Future<ImportItem> future : futures) {
+                    ImportItem item;
+                    try {
+                        item = future.get();
+                    } catch (ExecutionException e) {
+                        Log.e(Constants.TAG, "Exception on parsing key file!", e.getCause());
+                        item = new ImportItem();
+                        item.status = Id.return_value.error;
+                    }
+                    if (item == null) {
+                        continue;
+                    }
+                    imported.add(item);
+                    if (item.keyRing == null) {
+                        continue;
+                    }
+
+                    if (!masterKeyIds.add(item.masterKeyId)) {
+                        // the same keyring twice in one batch, the later one has to be merged
+                        // with the earlier one, so that one is written first
+                        applyImport(items);
+                        items.clear();
+                        masterKeyIds.clear();
+                        masterKeyIds.add(item.masterKeyId);
+
+                        ImportItem merged = prepareImport(item.keyRing);
+                        item.status = merged.status;
+                        item.operations = merged.operations;
                     }
-                } else {
-                    Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!");
+                    items.add(item);
                 }
+                applyImport(items);
 
-                position++;
-                updateProgress(position / entries.size() * 100, 100);
+                position += batch.size();
+                if (total > 0) {
+                    updateProgress(position * 100 / total, 100);
+                }
+
+                if (mKeychainServiceListener != null
+                        && mKeychainServiceListener.hasServiceStopped()) {
+                    break;
+                }
             }
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception on parsing key file!", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int newKeys = 0;
+        int oldKeys = 0;
+        int badKeys = 0;
+        for (ImportItem item : imported) {
+            // update the counts to display to the user at the end
+            if (item.status == Id.return_value.updated) {
+                ++oldKeys;
+            } else if (item.status == Id.return_value.ok) {
+                ++newKeys;
+            } else {
+                ++badKeys;
+            }
         }
 
+        long duration = Math.max(SystemClock.elapsedRealtime() - startTime, 1);
+        float keysPerSecond = (newKeys + oldKeys) * 1000f / duration;
+        Log.d(Constants.TAG, "Imported " + (newKeys + oldKeys) + " keys in " + duration + "ms, "
+                + keysPerSecond + " keys/s");
+
         returnData.putInt(KeychainIntentService.RESULT_IMPORT_ADDED, newKeys);
         returnData.putInt(KeychainIntentService.RESULT_IMPORT_UPDATED, oldKeys);
         returnData.putInt(KeychainIntentService.RESULT_IMPORT_BAD, badKeys);
+        returnData.putFloat(KeychainIntentService.RESULT_IMPORT_KEYS_PER_SECOND, keysPerSecond);
 
         return returnData;
     }
@@ -238,57 +593,124 @@ public class PgpImportExport {
     }
 
     /**
-     * TODO: implement Id.return_value.updated as status when key already existed
+     * A keyring to import, with the operations saving it
+     */
+    private static class ImportItem {
+        PGPKeyRing keyRing;
+        long masterKeyId;
+        int status;
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+    }
+
+    /**
+     * Checks a keyring and collects the operations saving it, without writing anything. This
+     * does all signature verification, and is safe to call from worker threads.
      */
     @SuppressWarnings("unchecked")
-    public int storeKeyRingInCache(PGPKeyRing keyring) {
-        int status = Integer.MIN_VALUE; // out of bounds value (Id.return_value.*)
-        try {
-            if (keyring instanceof PGPSecretKeyRing) {
-                PGPSecretKeyRing secretKeyRing = (PGPSecretKeyRing) keyring;
-                boolean save = true;
-
-                for (PGPSecretKey testSecretKey : new IterableIterator<PGPSecretKey>(
-                        secretKeyRing.getSecretKeys())) {
-                    if (!testSecretKey.isMasterKey()) {
-                        if (testSecretKey.isPrivateKeyEmpty()) {
-                            // this is bad, something is very wrong...
-                            save = false;
-                            status = Id.return_value.bad;
-                        }
+    private ImportItem prepareImport(PGPKeyRing keyring) throws IOException {
+        ImportItem item = new ImportItem();
+        item.keyRing = keyring;
+        item.masterKeyId = keyring.getPublicKey().getKeyID();
+        item.status = Id.return_value.ok;
+
+        if (keyring instanceof PGPSecretKeyRing) {
+            PGPSecretKeyRing secretKeyRing = (PGPSecretKeyRing) keyring;
+
+            for (PGPSecretKey testSecretKey : new IterableIterator<PGPSecretKey>(
+                    secretKeyRing.getSecretKeys())) {
+                if (!testSecretKey.isMasterKey()) {
+                    if (testSecretKey.isPrivateKeyEmpty()) {
+                        // this is bad, something is very wrong...
+                        item.status = Id.return_value.bad;
+                        return item;
                     }
                 }
+            }
 
-                if (save) {
-                    // TODO: preserve certifications
-                    // (http://osdir.com/ml/encryption.bouncy-castle.devel/2007-01/msg00054.html ?)
-                    PGPPublicKeyRing newPubRing = null;
-                    for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
-                            secretKeyRing.getPublicKeys())) {
-                        if (newPubRing == null) {
-                            newPubRing = new PGPPublicKeyRing(key.getEncoded(),
-                                    new JcaKeyFingerprintCalculator());
-                        }
-                        newPubRing = PGPPublicKeyRing.insertPublicKey(newPubRing, key);
-                    }
-                    if (newPubRing != null) {
-                        ProviderHelper.saveKeyRing(mContext, newPubRing);
-                    }
-                    ProviderHelper.saveKeyRing(mContext, secretKeyRing);
-                    // TODO: remove status returns, use exceptions!
-                    status = Id.return_value.ok;
+            // TODO: preserve certifications
+            // (http://osdir.com/ml/encryption.bouncy-castle.devel/2007-01/msg00054.html ?)
+            PGPPublicKeyRing newPubRing = null;
+            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
+                    secretKeyRing.getPublicKeys())) {
+                if (newPubRing == null) {
+                    newPubRing = new PGPPublicKeyRing(key.getEncoded(),
+                            new JcaKeyFingerprintCalculator());
                 }
-            } else if (keyring instanceof PGPPublicKeyRing) {
-                PGPPublicKeyRing publicKeyRing = (PGPPublicKeyRing) keyring;
-                ProviderHelper.saveKeyRing(mContext, publicKeyRing);
-                // TODO: remove status returns, use exceptions!
-                status = Id.return_value.ok;
+                newPubRing = PGPPublicKeyRing.insertPublicKey(newPubRing, key);
             }
-        } catch (IOException e) {
-            status = Id.return_value.error;
+            if (newPubRing != null && ProviderHelper.buildSaveKeyRingOperations(
+                    mContext, newPubRing, item.operations)) {
+                item.status = Id.return_value.updated;
+            }
+            ProviderHelper.buildSaveKeyRingOperations(mContext, secretKeyRing, item.operations);
+        } else if (keyring instanceof PGPPublicKeyRing) {
+            if (ProviderHelper.buildSaveKeyRingOperations(
+                    mContext, (PGPPublicKeyRing) keyring, item.operations)) {
+                item.status = Id.return_value.updated;
+            }
+        }
+
+        return item;
+    }
+
+    /**
+     * Writes the given keyrings in a single transaction. If that fails, they are written one by
+     * one, and those that still fail are marked as errors.
+     */
+    private void applyImport(List<ImportItem> items) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        List<Long> masterKeyIds = new ArrayList<Long>();
+        for (ImportItem item : items) {
+            if (item.status == Id.return_value.bad) {
+                continue;
+            }
+            operations.addAll(item.operations);
+            masterKeyIds.add(item.masterKeyId);
         }
 
-        return status;
+        try {
+            ProviderHelper.applyKeyRingOperations(mContext, operations, masterKeyIds);
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Batch import failed, importing keyrings one by one", e);
+
+            for (ImportItem item : items) {
+                if (item.status == Id.return_value.bad) {
+                    continue;
+                }
+                try {
+                    ProviderHelper.applyKeyRingOperations(mContext, item.operations,
+                            Collections.singleton(item.masterKeyId));
+                } catch (Exception e2) {
+                    Log.e(Constants.TAG, "Import of "
+                            + PgpKeyHelper.convertKeyIdToHex(item.masterKeyId) + " failed!", e2);
+                    item.status = Id.return_value.error;
+                }
+            }
+        }
+
+        // the rows are written, don't keep the keyrings around until the import is done
+        for (ImportItem item : items) {
+            item.keyRing = null;
+            item.operations = null;
+        }
+    }
+
+    public int storeKeyRingInCache(PGPKeyRing keyring) {
+        try {
+            ImportItem item = prepareImport(keyring);
+            if (item.status != Id.return_value.bad) {
+                ProviderHelper.applyKeyRingOperations(mContext, item.operations,
+                        Collections.singleton(item.masterKeyId));
+            }
+            // TODO: remove status returns, use exceptions!
+            return item.status;
+        } catch (IOException e) {
+            return Id.return_value.error;
+        } catch (RemoteException e) {
+            return Id.return_value.error;
+        } catch (OperationApplicationException e) {
+            return Id.return_value.error;
+        }
     }
 
 }
@@ -23,13 +23,17 @@ import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.style.ForegroundColorSpan;
 
+import org.spongycastle.bcpg.SignatureSubpacketTags;
 import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSecretKey;
 import org.spongycastle.openpgp.PGPSecretKeyRing;
 import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureList;
 import org.spongycastle.openpgp.PGPSignatureSubpacketVector;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
 import org.spongycastle.util.encoders.Hex;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
@@ -37,12 +41,15 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.io.IOException;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.Iterator;
 import java.util.Locale;
 import java.util.Vector;
 import java.util.regex.Matcher;
@@ -436,6 +443,100 @@ public class PgpKeyHelper {
         return isCertificationKey(key.getPublicKey());
     }
 
+    /**
+     * Verifies the subkey binding signature of a subkey, and the primary key binding signature
+     * embedded in it
+     */
+    public static boolean isSubkeyBindingValid(PGPPublicKey masterPublicKey,
+                                               PGPPublicKey signingPublicKey) {
+        boolean validSubkeyBinding = false;
+        boolean validTempSubkeyBinding = false;
+        boolean validPrimaryKeyBinding = false;
+
+        JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
+                new JcaPGPContentVerifierBuilderProvider()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+
+        // signingPublicKey may be shared through KeyRingCache, and PGPSignature.init keeps state
+        synchronized (signingPublicKey) {
+            Iterator<PGPSignature> itr = signingPublicKey.getSignatures();
+
+            while (itr.hasNext()) { //what does gpg do if the subkey binding is wrong?
+                //gpg has an invalid subkey binding error on key import I think, but doesn't shout
+                //about keys without subkey signing. Can't get it to import a slightly broken one
+                //either, so we will err on bad subkey binding here.
+                PGPSignature sig = itr.next();
+                if (sig.getKeyID() == masterPublicKey.getKeyID() &&
+                        sig.getSignatureType() == PGPSignature.SUBKEY_BINDING) {
+                    //check and if ok, check primary key binding.
+                    try {
+                        sig.init(contentVerifierBuilderProvider, masterPublicKey);
+                        validTempSubkeyBinding = sig.verifyCertification(masterPublicKey, signingPublicKey);
+                    } catch (PGPException e) {
+                        continue;
+                    } catch (SignatureException e) {
+                        continue;
+                    }
+
+                    if (validTempSubkeyBinding) {
+                        validSubkeyBinding = true;
+                    }
+                    if (validTempSubkeyBinding) {
+                        validPrimaryKeyBinding = verifyPrimaryKeyBinding(sig.getUnhashedSubPackets(),
+                                masterPublicKey, signingPublicKey);
+                        if (validPrimaryKeyBinding) {
+                            break;
+                        }
+                        validPrimaryKeyBinding = verifyPrimaryKeyBinding(sig.getHashedSubPackets(),
+                                masterPublicKey, signingPublicKey);
+                        if (validPrimaryKeyBinding) {
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return (validSubkeyBinding & validPrimaryKeyBinding);
+    }
+
+    private static boolean verifyPrimaryKeyBinding(PGPSignatureSubpacketVector pkts,
+                                                   PGPPublicKey masterPublicKey,
+                                                   PGPPublicKey signingPublicKey) {
+        boolean validPrimaryKeyBinding = false;
+        JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
+                new JcaPGPContentVerifierBuilderProvider()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        PGPSignatureList eSigList;
+
+        if (pkts.hasSubpacket(SignatureSubpacketTags.EMBEDDED_SIGNATURE)) {
+            try {
+                eSigList = pkts.getEmbeddedSignatures();
+            } catch (IOException e) {
+                return false;
+            } catch (PGPException e) {
+                return false;
+            }
+            for (int j = 0; j < eSigList.size(); ++j) {
+                PGPSignature emSig = eSigList.get(j);
+                if (emSig.getSignatureType() == PGPSignature.PRIMARYKEY_BINDING) {
+                    try {
+                        emSig.init(contentVerifierBuilderProvider, signingPublicKey);
+                        validPrimaryKeyBinding = emSig.verifyCertification(masterPublicKey, signingPublicKey);
+                        if (validPrimaryKeyBinding) {
+                            break;
+                        }
+                    } catch (PGPException e) {
+                        continue;
+                    } catch (SignatureException e) {
+                        continue;
+                    }
+                }
+            }
+        }
+
+        return validPrimaryKeyBinding;
+    }
+
     public static String getAlgorithmInfo(PGPPublicKey key) {
         return getAlgorithmInfo(key.getAlgorithm(), key.getBitStrength());
     }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPUtil;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the keyrings of a key file one after another, so only a single keyring is in memory at
+ * a time. Key files can consist of several consecutive binary or ASCII armored blocks.
+ *
+ * Keyrings are numbered in the order they appear in the file, reading the same file again
+ * yields the same indices.
+ */
+public class PgpKeyRingReader {
+
+    // need to have access to the bufferedInput, so we can reuse it for the possible
+    // PGPObject chunks after the first one, e.g. files with several consecutive ASCII
+    // armor blocks
+    private BufferedInputStream mBufferedInput;
+    private PGPObjectFactory mObjectFactory;
+
+    private boolean mEmpty = true;
+    private int mNonKeyRingCount = 0;
+    private int mIndex = -1;
+
+    public PgpKeyRingReader(InputStream in) {
+        mBufferedInput = new BufferedInputStream(in);
+    }
+
+    /**
+     * @return the next keyring, or null at the end of the input
+     */
+    public PGPKeyRing next() throws IOException {
+        while (true) {
+            if (mObjectFactory == null) {
+                // read all available blocks... (asc files can contain many blocks with BEGIN END)
+                if (mBufferedInput.available() <= 0) {
+                    return null;
+                }
+                mEmpty = false;
+                mObjectFactory = new PGPObjectFactory(PGPUtil.getDecoderStream(mBufferedInput));
+            }
+
+            // go through all objects in this block
+            Object obj = mObjectFactory.nextObject();
+            if (obj == null) {
+                mObjectFactory = null;
+            } else if (obj instanceof PGPKeyRing) {
+                mIndex++;
+                return (PGPKeyRing) obj;
+            } else {
+                Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!");
+                mNonKeyRingCount++;
+            }
+        }
+    }
+
+    /**
+     * @return index of the keyring last returned by next()
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public boolean isEmpty() {
+        return mEmpty;
+    }
+
+    public int getNonKeyRingCount() {
+        return mNonKeyRingCount;
+    }
+
+}
@@ -34,10 +34,8 @@ import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.PGPSignatureGenerator;
 import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
 import org.spongycastle.openpgp.PGPV3SignatureGenerator;
-import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
-import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
 import org.sufficientlysecure.keychain.Constants;
@@ -45,9 +43,13 @@ import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.PrivateKeyCache;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OperationTrace;
+import org.sufficientlysecure.keychain.util.PipelineOutputStream;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
+import org.sufficientlysecure.keychain.util.RateLimitedProgress;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -57,6 +59,7 @@ import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Date;
 
 /**
@@ -77,6 +80,14 @@ public class PgpSignEncrypt {
     private int mSignatureHashAlgorithm;
     private boolean mSignatureForceV3;
     private String mSignaturePassphrase;
+    private boolean mPipelined;
+    private boolean mBinaryInput;
+    private OperationTrace.Sink mTraceSink;
+
+    private OperationTrace mTrace;
+
+    // threads started by the current execute(), stopped when it returns
+    private ArrayList<PipelineOutputStream> mStages = new ArrayList<PipelineOutputStream>();
 
     private PgpSignEncrypt(Builder builder) {
         // private Constructor can only be called from Builder
@@ -84,7 +95,7 @@ public class PgpSignEncrypt {
         this.mData = builder.mData;
         this.mOutStream = builder.mOutStream;
 
-        this.mProgress = builder.mProgress;
+        this.mProgress = RateLimitedProgress.wrap(builder.mProgress);
         this.mEnableAsciiArmorOutput = builder.mEnableAsciiArmorOutput;
         this.mCompressionId = builder.mCompressionId;
         this.mEncryptionKeyIds = builder.mEncryptionKeyIds;
@@ -94,6 +105,9 @@ public class PgpSignEncrypt {
         this.mSignatureHashAlgorithm = builder.mSignatureHashAlgorithm;
         this.mSignatureForceV3 = builder.mSignatureForceV3;
         this.mSignaturePassphrase = builder.mSignaturePassphrase;
+        this.mPipelined = builder.mPipelined;
+        this.mBinaryInput = builder.mBinaryInput;
+        this.mTraceSink = builder.mTraceSink;
     }
 
     public static class Builder {
@@ -113,6 +127,9 @@ public class PgpSignEncrypt {
         private int mSignatureHashAlgorithm = 0;
         private boolean mSignatureForceV3 = false;
         private String mSignaturePassphrase = null;
+        private boolean mPipelined = false;
+        private boolean mBinaryInput = false;
+        private OperationTrace.Sink mTraceSink = null;
 
         public Builder(Context context, InputData data, OutputStream outStream) {
             this.mContext = context;
@@ -170,6 +187,33 @@ public class PgpSignEncrypt {
             return this;
         }
 
+        /**
+         * Run signature hashing, compression, encryption and output of encrypted data on
+         * separate threads. The output is identical, this only pays off for large inputs on
+         * devices with more than one core.
+         */
+        public Builder pipelined(boolean pipelined) {
+            this.mPipelined = pipelined;
+            return this;
+        }
+
+        /**
+         * Sign the input as binary data instead of as text. Sign-only with ascii armor then
+         * produces an armored one-pass signed message instead of a cleartext signature.
+         */
+        public Builder binaryInput(boolean binaryInput) {
+            this.mBinaryInput = binaryInput;
+            return this;
+        }
+
+        /**
+         * Pass the phase timings of execute() to this sink
+         */
+        public Builder traceSink(OperationTrace.Sink traceSink) {
+            this.mTraceSink = traceSink;
+            return this;
+        }
+
         public PgpSignEncrypt build() {
             return new PgpSignEncrypt(this);
         }
@@ -200,6 +244,34 @@ public class PgpSignEncrypt {
     public void execute()
             throws IOException, PgpGeneralException, PGPException, NoSuchProviderException,
             NoSuchAlgorithmException, SignatureException {
+        mTrace = new OperationTrace();
+        try {
+            signEncrypt();
+        } finally {
+            // no-op for finished stages, stops the threads if we failed halfway
+            for (PipelineOutputStream stage : mStages) {
+                stage.abort();
+            }
+            mStages.clear();
+        }
+
+        mTrace.addBytesProcessed(mData.getStreamPosition());
+        mTrace.finish();
+        if (mTraceSink != null) {
+            mTraceSink.onOperationTraced("sign/encrypt", mTrace);
+        }
+    }
+
+    /**
+     * @return phase timings of the last execute(), null before
+     */
+    public OperationTrace getTrace() {
+        return mTrace;
+    }
+
+    private void signEncrypt()
+            throws IOException, PgpGeneralException, PGPException, NoSuchProviderException,
+            NoSuchAlgorithmException, SignatureException {
 
         boolean enableSignature = mSignatureKeyId != Id.key.none;
         boolean enableEncryption = ((mEncryptionKeyIds != null && mEncryptionKeyIds.length > 0)
@@ -211,8 +283,11 @@ public class PgpSignEncrypt {
                 + "\nenableCompression:" + enableCompression
                 + "\nenableAsciiArmorOutput:" + mEnableAsciiArmorOutput);
 
+        boolean enableCleartextSignature = (mEnableAsciiArmorOutput && enableSignature
+                && !enableEncryption && !enableCompression && !mBinaryInput);
+
         int signatureType;
-        if (mEnableAsciiArmorOutput && enableSignature && !enableEncryption && !enableCompression) {
+        if (enableCleartextSignature) {
             // for sign-only ascii text
             signatureType = PGPSignature.CANONICAL_TEXT_DOCUMENT;
         } else {
@@ -234,8 +309,10 @@ public class PgpSignEncrypt {
         PGPSecretKeyRing signingKeyRing = null;
         PGPPrivateKey signaturePrivateKey = null;
         if (enableSignature) {
+            long keyLookupBegin = mTrace.begin();
             signingKeyRing = ProviderHelper.getPGPSecretKeyRingWithKeyId(mContext, mSignatureKeyId);
             signingKey = PgpKeyHelper.getSigningKey(mContext, mSignatureKeyId);
+            mTrace.end(OperationTrace.PHASE_KEY_LOOKUP, keyLookupBegin);
             if (signingKey == null) {
                 throw new PgpGeneralException(mContext.getString(R.string.error_signature_failed));
             }
@@ -247,9 +324,10 @@ public class PgpSignEncrypt {
 
             updateProgress(R.string.progress_extracting_signature_key, 0, 100);
 
-            PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
-                    Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mSignaturePassphrase.toCharArray());
-            signaturePrivateKey = signingKey.extractPrivateKey(keyDecryptor);
+            long unlockBegin = mTrace.begin();
+            signaturePrivateKey = PrivateKeyCache.extractPrivateKey(mContext,
+                    signingKeyRing.getPublicKey().getKeyID(), signingKey, mSignaturePassphrase);
+            mTrace.end(OperationTrace.PHASE_S2K_UNLOCK, unlockBegin);
             if (signaturePrivateKey == null) {
                 throw new PgpGeneralException(
                         mContext.getString(R.string.error_could_not_extract_private_key));
@@ -277,6 +355,7 @@ public class PgpSignEncrypt {
                 cPk.addMethod(symmetricEncryptionGenerator);
             } else {
                 // Asymmetric encryption
+                long keyLookupBegin = mTrace.begin();
                 for (long id : mEncryptionKeyIds) {
                     PGPPublicKey key = PgpKeyHelper.getEncryptPublicKey(mContext, id);
                     if (key != null) {
@@ -285,6 +364,7 @@ public class PgpSignEncrypt {
                         cPk.addMethod(pubKeyEncryptionGenerator);
                     }
                 }
+                mTrace.end(OperationTrace.PHASE_KEY_LOOKUP, keyLookupBegin);
             }
         }
 
@@ -316,17 +396,32 @@ public class PgpSignEncrypt {
         PGPCompressedDataGenerator compressGen = null;
         OutputStream pOut;
         OutputStream encryptionOut = null;
+        // in pipelined mode, the stages writing to armor/output, encryption and compression
+        OutputStream outputStage = null;
+        OutputStream encryptionStage = null;
+        OutputStream compressionStage = null;
+        // time spent in writes to each stream, including the streams it writes to
+        OperationTrace.TimedOutputStream outputTimer = null;
+        OperationTrace.TimedOutputStream encryptionTimer = null;
+        OperationTrace.TimedOutputStream compressionTimer = null;
         BCPGOutputStream bcpgOut;
         if (enableEncryption) {
             /* actual encryption */
 
-            encryptionOut = cPk.open(out, new byte[1 << 16]);
+            outputTimer = new OperationTrace.TimedOutputStream(out);
+            outputStage = openStage(outputTimer, "output");
+            encryptionOut = cPk.open(outputStage, new byte[1 << 16]);
+            encryptionTimer = new OperationTrace.TimedOutputStream(encryptionOut);
+            encryptionStage = openStage(encryptionTimer, "encryption");
 
             if (enableCompression) {
                 compressGen = new PGPCompressedDataGenerator(mCompressionId);
-                bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
+                compressionTimer = new OperationTrace.TimedOutputStream(
+                        compressGen.open(encryptionStage));
+                compressionStage = openStage(compressionTimer, "compression");
+                bcpgOut = new BCPGOutputStream(compressionStage);
             } else {
-                bcpgOut = new BCPGOutputStream(encryptionOut);
+                bcpgOut = new BCPGOutputStream(encryptionStage);
             }
 
             if (enableSignature) {
@@ -343,30 +438,24 @@ public class PgpSignEncrypt {
                     new byte[1 << 16]);
             updateProgress(R.string.progress_encrypting, 20, 100);
 
-            long progress = 0;
-            int n;
-            byte[] buffer = new byte[1 << 16];
-            InputStream in = mData.getInputStream();
-            while ((n = in.read(buffer)) > 0) {
-                pOut.write(buffer, 0, n);
-
-                // update signature buffer if signature is requested
-                if (enableSignature) {
-                    if (mSignatureForceV3) {
-                        signatureV3Generator.update(buffer, 0, n);
-                    } else {
-                        signatureGenerator.update(buffer, 0, n);
-                    }
-                }
-
-                progress += n;
-                if (mData.getSize() != 0) {
-                    updateProgress((int) (20 + (95 - 20) * progress / mData.getSize()), 100);
-                }
+            // signature hashing runs as a stage of its own in pipelined mode
+            OperationTrace.TimedOutputStream hashTimer = null;
+            OutputStream hashStage = null;
+            if (enableSignature) {
+                hashTimer = new OperationTrace.TimedOutputStream(mSignatureForceV3
+                        ? new SignatureUpdateStream(signatureV3Generator)
+                        : new SignatureUpdateStream(signatureGenerator));
+                hashStage = openStage(hashTimer, "hashing");
             }
 
+            copyInput(pOut, hashStage, 20);
+
+            if (enableSignature) {
+                finishStage(hashStage);
+                mTrace.add(OperationTrace.PHASE_SIGNATURE_HASH, hashTimer.getNanos());
+            }
             literalGen.close();
-        } else if (mEnableAsciiArmorOutput && enableSignature && !enableEncryption && !enableCompression) {
+        } else if (enableCleartextSignature) {
             /* sign-only of ascii text */
 
             updateProgress(R.string.progress_signing, 40, 100);
@@ -408,30 +497,88 @@ public class PgpSignEncrypt {
             armorOut.endClearText();
 
             pOut = new BCPGOutputStream(armorOut);
+        } else if (enableSignature) {
+            /* sign-only of binary data, as one-pass signed message */
+
+            updateProgress(R.string.progress_signing, 20, 100);
+
+            bcpgOut = new BCPGOutputStream(out);
+            if (mSignatureForceV3) {
+                signatureV3Generator.generateOnePassVersion(false).encode(bcpgOut);
+            } else {
+                signatureGenerator.generateOnePassVersion(false).encode(bcpgOut);
+            }
+
+            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            // file name not needed, so empty string
+            OutputStream literalOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "",
+                    new Date(), new byte[1 << 16]);
+
+            OperationTrace.TimedOutputStream hashTimer = new OperationTrace.TimedOutputStream(
+                    mSignatureForceV3
+                            ? new SignatureUpdateStream(signatureV3Generator)
+                            : new SignatureUpdateStream(signatureGenerator));
+            OutputStream hashStage = openStage(hashTimer, "hashing");
+
+            copyInput(literalOut, hashStage, 20);
+
+            finishStage(hashStage);
+            mTrace.add(OperationTrace.PHASE_SIGNATURE_HASH, hashTimer.getNanos());
+            literalGen.close();
+
+            pOut = bcpgOut;
         } else {
-            // TODO: implement sign-only for files!
             pOut = null;
-            Log.e(Constants.TAG, "not supported!");
+            Log.e(Constants.TAG, "neither signing nor encrypting, not supported!");
         }
 
         if (enableSignature) {
             updateProgress(R.string.progress_generating_signature, 95, 100);
+            long generateBegin = mTrace.begin();
             if (mSignatureForceV3) {
                 signatureV3Generator.generate().encode(pOut);
             } else {
                 signatureGenerator.generate().encode(pOut);
             }
+            mTrace.end(OperationTrace.PHASE_SIGNATURE_GENERATE, generateBegin);
         }
 
         // closing outputs
         // NOTE: closing needs to be done in the correct order!
         // TODO: closing bcpgOut and pOut???
+        // every stage must be finished before the stream it writes to is closed
         if (enableEncryption) {
+            // closing writes the remaining output of a stream directly to the next one, past
+            // its timer, so it is timed separately
+            long compressionCloseNanos = 0;
             if (enableCompression) {
+                finishStage(compressionStage);
+                long closeBegin = System.nanoTime();
                 compressGen.close();
+                compressionCloseNanos = System.nanoTime() - closeBegin;
             }
 
+            finishStage(encryptionStage);
+            long closeBegin = System.nanoTime();
             encryptionOut.close();
+            long encryptionCloseNanos = System.nanoTime() - closeBegin;
+            finishStage(outputStage);
+
+            long outputNanos = outputTimer.getNanos();
+            long encryptionNanos = encryptionTimer.getNanos() + encryptionCloseNanos;
+            long compressionNanos = enableCompression
+                    ? compressionTimer.getNanos() + compressionCloseNanos : 0;
+            if (!mPipelined) {
+                // nested on one thread, every write to a stream happens during a write to or
+                // the close of the stream before it. Subtract the time of the stream written to
+                if (enableCompression) {
+                    compressionNanos -= encryptionTimer.getNanos();
+                }
+                encryptionNanos -= outputNanos;
+            }
+            mTrace.add(OperationTrace.PHASE_COMPRESSION, compressionNanos);
+            mTrace.add(OperationTrace.PHASE_ENCRYPT, encryptionNanos);
+            mTrace.add(OperationTrace.PHASE_OUTPUT, outputNanos);
         }
         if (mEnableAsciiArmorOutput) {
             armorOut.close();
@@ -443,8 +590,91 @@ public class PgpSignEncrypt {
         updateProgress(R.string.progress_done, 100, 100);
     }
 
+    /**
+     * Streams the input in large blocks to out and hashOut, both may be null.
+     * Progress goes from startProgress to 95.
+     */
+    private void copyInput(OutputStream out, OutputStream hashOut, int startProgress)
+            throws IOException {
+        long progress = 0;
+        int n;
+        byte[] buffer = new byte[1 << 16];
+        InputStream in = mData.getInputStream();
+        while ((n = in.read(buffer)) > 0) {
+            if (out != null) {
+                out.write(buffer, 0, n);
+            }
+
+            // update signature buffer if signature is requested
+            if (hashOut != null) {
+                hashOut.write(buffer, 0, n);
+            }
+
+            progress += n;
+            if (mData.getSize() != 0) {
+                updateProgress((int) (startProgress + (95 - startProgress) * progress
+                        / mData.getSize()), 100);
+            }
+        }
+    }
+
+    /**
+     * @return out itself, or a PipelineOutputStream writing to it if pipelined mode is enabled
+     */
+    private OutputStream openStage(OutputStream out, String name) {
+        if (!mPipelined) {
+            return out;
+        }
+        PipelineOutputStream stage = new PipelineOutputStream(out, name);
+        mStages.add(stage);
+        return stage;
+    }
+
+    private static void finishStage(OutputStream stage) throws IOException {
+        if (stage instanceof PipelineOutputStream) {
+            ((PipelineOutputStream) stage).finish();
+        }
+    }
+
+    /**
+     * Feeds everything written to it into a signature generator
+     */
+    private static class SignatureUpdateStream extends OutputStream {
+        private PGPSignatureGenerator mSignatureGenerator;
+        private PGPV3SignatureGenerator mSignatureV3Generator;
+
+        public SignatureUpdateStream(PGPSignatureGenerator signatureGenerator) {
+            mSignatureGenerator = signatureGenerator;
+        }
+
+        public SignatureUpdateStream(PGPV3SignatureGenerator signatureV3Generator) {
+            mSignatureV3Generator = signatureV3Generator;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                if (mSignatureV3Generator != null) {
+                    mSignatureV3Generator.update(b, off, len);
+                } else {
+                    mSignatureGenerator.update(b, off, len);
+                }
+            } catch (SignatureException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Generates a detached signature of the input. Text input is signed line by line in
+     * canonical form, binary input (see Builder.binaryInput) is hashed in large blocks.
+     */
     // TODO: merge this into execute method!
-    // TODO: allow binary input for this class
     public void generateSignature()
             throws PgpGeneralException, PGPException, IOException, NoSuchAlgorithmException,
             SignatureException {
@@ -474,9 +704,8 @@ public class PgpSignEncrypt {
             throw new PgpGeneralException(mContext.getString(R.string.error_no_signature_passphrase));
         }
 
-        PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
-                Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mSignaturePassphrase.toCharArray());
-        PGPPrivateKey signaturePrivateKey = signingKey.extractPrivateKey(keyDecryptor);
+        PGPPrivateKey signaturePrivateKey = PrivateKeyCache.extractPrivateKey(mContext,
+                signingKeyRing.getPublicKey().getKeyID(), signingKey, mSignaturePassphrase);
         if (signaturePrivateKey == null) {
             throw new PgpGeneralException(
                     mContext.getString(R.string.error_could_not_extract_private_key));
@@ -486,9 +715,9 @@ public class PgpSignEncrypt {
         updateProgress(R.string.progress_preparing_signature, 30, 100);
 
         int type = PGPSignature.CANONICAL_TEXT_DOCUMENT;
-//        if (binary) {
-//            type = PGPSignature.BINARY_DOCUMENT;
-//        }
+        if (mBinaryInput) {
+            type = PGPSignature.BINARY_DOCUMENT;
+        }
 
         // content signer based on signing key algorithm and chosen hash algorithm
         JcaPGPContentSignerBuilder contentSignerBuilder = new JcaPGPContentSignerBuilder(signingKey
@@ -512,32 +741,26 @@ public class PgpSignEncrypt {
 
         updateProgress(R.string.progress_signing, 40, 100);
 
-        InputStream inStream = mData.getInputStream();
-//        if (binary) {
-//            byte[] buffer = new byte[1 << 16];
-//            int n = 0;
-//            while ((n = inStream.read(buffer)) > 0) {
-//                if (signatureForceV3) {
-//                    signatureV3Generator.update(buffer, 0, n);
-//                } else {
-//                    signatureGenerator.update(buffer, 0, n);
-//                }
-//            }
-//        } else {
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(inStream));
-        final byte[] newline = "\r\n".getBytes("UTF-8");
-
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (mSignatureForceV3) {
-                processLine(line, null, signatureV3Generator);
-                signatureV3Generator.update(newline);
-            } else {
-                processLine(line, null, signatureGenerator);
-                signatureGenerator.update(newline);
+        if (mBinaryInput) {
+            copyInput(null, mSignatureForceV3
+                    ? new SignatureUpdateStream(signatureV3Generator)
+                    : new SignatureUpdateStream(signatureGenerator), 40);
+        } else {
+            InputStream inStream = mData.getInputStream();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(inStream));
+            final byte[] newline = "\r\n".getBytes("UTF-8");
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (mSignatureForceV3) {
+                    processLine(line, null, signatureV3Generator);
+                    signatureV3Generator.update(newline);
+                } else {
+                    processLine(line, null, signatureGenerator);
+                    signatureGenerator.update(newline);
+                }
             }
         }
-//        }
 
         BCPGOutputStream bOut = new BCPGOutputStream(out);
         if (mSignatureForceV3) {
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.v4.util.LruCache;
+
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Process-local LRU cache of parsed keyrings, keyed by master key id, of the master key id
+ * each known subkey id belongs to, and of the set of master key ids we have secret keys for.
+ *
+ * Parsing the keyring blob is the expensive part of ProviderHelper.getPGPPublicKeyRing and
+ * getPGPSecretKeyRing, and a single operation often looks up the same ring several times.
+ * KeychainProvider notifies a change of KeyRings.buildGenericKeyRingUri(masterKeyId) on every
+ * insert and delete of keyring data, which evicts the corresponding entries in all processes.
+ * ProviderHelper additionally invalidates its own writes right away, since the notification
+ * is delivered asynchronously.
+ */
+public class KeyRingCache {
+
+    private static final int MAX_PUBLIC_RINGS = 32;
+    private static final int MAX_SECRET_RINGS = 8;
+    private static final int MAX_SUBKEYS = 512;
+
+    private static final LruCache<Long, PGPPublicKeyRing> sPublicRings =
+            new LruCache<Long, PGPPublicKeyRing>(MAX_PUBLIC_RINGS);
+    private static final LruCache<Long, PGPSecretKeyRing> sSecretRings =
+            new LruCache<Long, PGPSecretKeyRing>(MAX_SECRET_RINGS);
+    // subkey id -> master key id, 0 for subkeys that are not in the database
+    private static final SubkeyMap sMasterKeyIds = new SubkeyMap(MAX_SUBKEYS);
+
+    // master key ids of all secret keyrings, null if not loaded
+    private static Set<Long> sSecretMasterKeyIds;
+
+    private static ContentObserver sObserver;
+
+    private static long sGeneration = 0;
+    private static long sHits = 0;
+    private static long sMisses = 0;
+
+    public static PGPPublicKeyRing getPublicKeyRing(Context context, long masterKeyId) {
+        registerObserver(context);
+        return countLookup(sPublicRings.get(masterKeyId));
+    }
+
+    public static PGPSecretKeyRing getSecretKeyRing(Context context, long masterKeyId) {
+        registerObserver(context);
+        return countLookup(sSecretRings.get(masterKeyId));
+    }
+
+    /**
+     * @return master key id of the given subkey, 0 if the subkey is known to be missing from the
+     * database, null if nothing is cached
+     */
+    public static synchronized Long getMasterKeyId(Context context, long keyId) {
+        registerObserver(context);
+        int slot = sMasterKeyIds.find(keyId);
+        return countLookup(slot >= 0 ? sMasterKeyIds.valueAt(slot) : null);
+    }
+
+    public static synchronized void putMasterKeyId(long keyId, long masterKeyId, long generation) {
+        if (generation == sGeneration) {
+            sMasterKeyIds.put(keyId, masterKeyId);
+        }
+    }
+
+    /**
+     * @return copy of the master key ids of all secret keyrings, null if nothing is cached
+     */
+    public static synchronized Set<Long> getSecretMasterKeyIds(Context context) {
+        registerObserver(context);
+        Set<Long> ids = countLookup(sSecretMasterKeyIds);
+        return ids != null ? new HashSet<Long>(ids) : null;
+    }
+
+    public static synchronized void putSecretMasterKeyIds(Set<Long> masterKeyIds, long generation) {
+        if (generation == sGeneration) {
+            sSecretMasterKeyIds = new HashSet<Long>(masterKeyIds);
+        }
+    }
+
+    /**
+     * Must be read before loading a keyring from the database, and passed to the put methods.
+     * A load that raced with an invalidation is then not cached.
+     */
+    public static synchronized long getGeneration() {
+        return sGeneration;
+    }
+
+    public static synchronized void putPublicKeyRing(long masterKeyId, PGPPublicKeyRing keyRing,
+                                                     long generation) {
+        if (generation == sGeneration) {
+            sPublicRings.put(masterKeyId, keyRing);
+        }
+    }
+
+    public static synchronized void putSecretKeyRing(long masterKeyId, PGPSecretKeyRing keyRing,
+                                                     long generation) {
+        if (generation == sGeneration) {
+            sSecretRings.put(masterKeyId, keyRing);
+        }
+    }
+
+    /**
+     * Removes public and secret keyring of the given master key, and its subkey mappings
+     */
+    public static synchronized void invalidate(long masterKeyId) {
+        sGeneration++;
+        sPublicRings.remove(masterKeyId);
+        sSecretRings.remove(masterKeyId);
+        sSecretMasterKeyIds = null;
+        // subkeys of this ring may have changed, and a new ring may contain subkeys we
+        // remembered as missing
+        sMasterKeyIds.removeValues(masterKeyId, 0);
+    }
+
+    public static synchronized void clear() {
+        sGeneration++;
+        sPublicRings.evictAll();
+        sSecretRings.evictAll();
+        sMasterKeyIds.clear();
+        sSecretMasterKeyIds = null;
+    }
+
+    public static synchronized long getHitCount() {
+        return sHits;
+    }
+
+    public static synchronized long getMissCount() {
+        return sMisses;
+    }
+
+    /**
+     * Map from subkey id to master key id on primitive arrays with open addressing, so lookups
+     * don't box. When it is full, the entries not looked up since the last eviction are
+     * dropped, an approximation of LRU that doesn't have to track the order of lookups.
+     */
+    private static class SubkeyMap {
+        private static final byte EMPTY = 0;
+        private static final byte UNUSED = 1;
+        private static final byte USED = 2;
+
+        private final int mMaxSize;
+        private long[] mKeys;
+        private long[] mValues;
+        private byte[] mStates;
+        private int mSize;
+
+        SubkeyMap(int maxSize) {
+            mMaxSize = maxSize;
+            // load factor of at most 1/2, a power of two for masking
+            int capacity = Integer.highestOneBit(maxSize * 4 - 1);
+            mKeys = new long[capacity];
+            mValues = new long[capacity];
+            mStates = new byte[capacity];
+        }
+
+        /**
+         * @return slot of the key, marked as used, or -1 if it is not in the map
+         */
+        int find(long key) {
+            for (int slot = slotOf(key); mStates[slot] != EMPTY; slot = next(slot)) {
+                if (mKeys[slot] == key) {
+                    mStates[slot] = USED;
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        long valueAt(int slot) {
+            return mValues[slot];
+        }
+
+        void put(long key, long value) {
+            int slot = find(key);
+            if (slot >= 0) {
+                mValues[slot] = value;
+                return;
+            }
+            if (mSize >= mMaxSize) {
+                evictUnused();
+            }
+            insert(key, value, UNUSED);
+        }
+
+        /**
+         * Removes all entries mapping to one of the given values
+         */
+        void removeValues(long value1, long value2) {
+            rebuild(false, value1, value2);
+        }
+
+        void clear() {
+            Arrays.fill(mStates, EMPTY);
+            mSize = 0;
+        }
+
+        private void evictUnused() {
+            rebuild(true, 0, 0);
+            if (mSize >= mMaxSize) {
+                // everything was used since the last eviction
+                clear();
+            }
+        }
+
+        /**
+         * Inserts the remaining entries again, removal would break probe sequences otherwise
+         */
+        private void rebuild(boolean dropUnused, long dropValue1, long dropValue2) {
+            long[] keys = mKeys.clone();
+            long[] values = mValues.clone();
+            byte[] states = mStates.clone();
+            clear();
+            for (int i = 0; i < states.length; i++) {
+                if (states[i] == EMPTY || (dropUnused && states[i] == UNUSED)) {
+                    continue;
+                }
+                if (!dropUnused && (values[i] == dropValue1 || values[i] == dropValue2)) {
+                    continue;
+                }
+                // survivors of an eviction have to be used again to survive the next one
+                insert(keys[i], values[i], dropUnused ? UNUSED : states[i]);
+            }
+        }
+
+        private void insert(long key, long value, byte state) {
+            int slot = slotOf(key);
+            while (mStates[slot] != EMPTY) {
+                slot = next(slot);
+            }
+            mKeys[slot] = key;
+            mValues[slot] = value;
+            mStates[slot] = state;
+            mSize++;
+        }
+
+        private int slotOf(long key) {
+            // key ids are random, still mix the bits so the low ones are good as well
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 32) & (mStates.length - 1);
+        }
+
+        private int next(int slot) {
+            return (slot + 1) & (mStates.length - 1);
+        }
+    }
+
+    private static synchronized <T> T countLookup(T keyRing) {
+        if (keyRing != null) {
+            sHits++;
+        } else {
+            sMisses++;
+        }
+        return keyRing;
+    }
+
+    private static synchronized void registerObserver(Context context) {
+        if (sObserver != null) {
+            return;
+        }
+
+        // no handler, changes are delivered on a binder thread
+        sObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                // api level < 16, we don't know which keyring changed
+                clear();
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                List<String> segments = uri.getPathSegments();
+                if (segments.size() < 2) {
+                    clear();
+                    return;
+                }
+                try {
+                    invalidate(Long.parseLong(segments.get(1)));
+                } catch (NumberFormatException e) {
+                    clear();
+                }
+            }
+        };
+
+        context.getApplicationContext().getContentResolver()
+                .registerContentObserver(KeyRings.CONTENT_URI, true, sObserver);
+        Log.d(Constants.TAG, "KeyRingCache: registered content observer");
+    }
+
+}
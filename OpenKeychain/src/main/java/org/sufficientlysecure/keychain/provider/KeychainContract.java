@@ -42,6 +42,8 @@ public class KeychainContract {
         String CAN_ENCRYPT = "can_encrypt";
         String CAN_CERTIFY = "can_certify";
         String IS_REVOKED = "is_revoked";
+        // subkey binding and primary key binding signatures verified, always true for master keys
+        String HAS_VALID_BINDING = "has_valid_binding";
 
         String CREATION = "creation";
         String EXPIRY = "expiry";
@@ -96,7 +98,9 @@ public class KeychainContract {
 
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
+    public static final String PATH_BY_USER_ID = "user_id";
     public static final String PATH_BY_SUBKEY = "subkey";
+    public static final String PATH_MASTER = "master";
 
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
@@ -136,9 +140,19 @@ public class KeychainContract {
         public static Uri buildUnifiedKeyRingsFindByEmailUri(String email) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_EMAIL).appendPath(email).build();
         }
+        /**
+         * Key rings with a user id containing words that start with the words of the query
+         */
+        public static Uri buildUnifiedKeyRingsFindByUserIdUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_USER_ID).appendPath(query).build();
+        }
         public static Uri buildUnifiedKeyRingsFindBySubkeyUri(String subkey) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_SUBKEY).appendPath(subkey).build();
         }
+        public static Uri buildMasterKeyIdFindBySubkeyUri(String subkey) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_SUBKEY).appendPath(subkey)
+                    .appendPath(PATH_MASTER).build();
+        }
 
     }
 
@@ -215,6 +229,14 @@ public class KeychainContract {
         public static Uri buildUserIdsUri(Uri uri) {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1)).appendPath(PATH_USER_IDS).build();
         }
+
+        /**
+         * User ids ending in one of the comma separated emails, of keys that can be encrypted to
+         */
+        public static Uri buildUserIdsFindByEmailsUri(String emails) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_EMAIL).appendPath(emails)
+                    .appendPath(PATH_USER_IDS).build();
+        }
     }
 
     public static class ApiApps implements ApiAppsColumns, BaseColumns {
@@ -40,7 +40,7 @@ import java.io.IOException;
 
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 4;
     static Boolean apgHack = false;
 
     public interface Tables {
@@ -48,6 +48,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String KEY_RINGS_SECRET = "keyrings_secret";
         String KEYS = "keys";
         String USER_IDS = "user_ids";
+        String USER_IDS_FTS = "user_ids_fts";
         String CERTS = "certs";
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
@@ -81,6 +82,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + KeysColumns.CAN_SIGN + " BOOLEAN, "
                 + KeysColumns.CAN_ENCRYPT + " BOOLEAN, "
                 + KeysColumns.IS_REVOKED + " BOOLEAN, "
+                + KeysColumns.HAS_VALID_BINDING + " BOOLEAN, "
 
                 + KeysColumns.CREATION + " INTEGER, "
                 + KeysColumns.EXPIRY + " INTEGER, "
@@ -90,6 +92,12 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
 
+    // subkey id -> master key id lookups on every decrypt, verify and passphrase cache access
+    private static final String CREATE_KEYS_KEY_ID_INDEX =
+            "CREATE INDEX IF NOT EXISTS keys_key_id ON " + Tables.KEYS + "("
+                + KeysColumns.KEY_ID
+            + ")";
+
     private static final String CREATE_USER_IDS =
             "CREATE TABLE IF NOT EXISTS " + Tables.USER_IDS + "("
                 + UserIdsColumns.MASTER_KEY_ID + " INTEGER, "
@@ -105,6 +113,36 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
 
+    /**
+     * Full text index of the user ids, the docid of each row is the rowid of its user id.
+     * Kept in sync by the triggers below, so every write to user_ids updates it, including
+     * the deletes cascading from keyrings_public.
+     */
+    private static final String CREATE_USER_IDS_FTS =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + Tables.USER_IDS_FTS
+                + " USING fts3(" + UserIdsColumns.USER_ID + ")";
+
+    private static final String CREATE_USER_IDS_FTS_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS user_ids_fts_insert"
+                + " AFTER INSERT ON " + Tables.USER_IDS + " BEGIN"
+                + " INSERT INTO " + Tables.USER_IDS_FTS + "(docid, " + UserIdsColumns.USER_ID + ")"
+                    + " VALUES (new.rowid, new." + UserIdsColumns.USER_ID + ");"
+            + " END";
+
+    private static final String CREATE_USER_IDS_FTS_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS user_ids_fts_delete"
+                + " AFTER DELETE ON " + Tables.USER_IDS + " BEGIN"
+                + " DELETE FROM " + Tables.USER_IDS_FTS + " WHERE docid = old.rowid;"
+            + " END";
+
+    private static final String CREATE_USER_IDS_FTS_UPDATE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS user_ids_fts_update"
+                + " AFTER UPDATE OF " + UserIdsColumns.USER_ID + " ON " + Tables.USER_IDS + " BEGIN"
+                + " UPDATE " + Tables.USER_IDS_FTS
+                    + " SET " + UserIdsColumns.USER_ID + " = new." + UserIdsColumns.USER_ID
+                    + " WHERE docid = old.rowid;"
+            + " END";
+
     private static final String CREATE_CERTS =
             "CREATE TABLE IF NOT EXISTS " + Tables.CERTS + "("
                 + CertsColumns.MASTER_KEY_ID + " INTEGER,"
@@ -166,7 +204,9 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_KEYRINGS_PUBLIC);
         db.execSQL(CREATE_KEYRINGS_SECRET);
         db.execSQL(CREATE_KEYS);
+        db.execSQL(CREATE_KEYS_KEY_ID_INDEX);
         db.execSQL(CREATE_USER_IDS);
+        createUserIdsFts(db);
         db.execSQL(CREATE_CERTS);
         db.execSQL(CREATE_API_APPS);
         db.execSQL(CREATE_API_APPS_ACCOUNTS);
@@ -187,7 +227,27 @@ public class KeychainDatabase extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int old, int nu) {
-        // don't care (this is version 1)
+        if (old < 2) {
+            db.execSQL(CREATE_KEYS_KEY_ID_INDEX);
+        }
+        if (old < 3) {
+            // null until the keyring is saved again, binding signatures are verified on use then
+            db.execSQL("ALTER TABLE " + Tables.KEYS + " ADD COLUMN "
+                    + KeysColumns.HAS_VALID_BINDING + " BOOLEAN");
+        }
+        if (old < 4) {
+            createUserIdsFts(db);
+            db.execSQL("INSERT INTO " + Tables.USER_IDS_FTS
+                    + "(docid, " + UserIdsColumns.USER_ID + ")"
+                    + " SELECT rowid, " + UserIdsColumns.USER_ID + " FROM " + Tables.USER_IDS);
+        }
+    }
+
+    private static void createUserIdsFts(SQLiteDatabase db) {
+        db.execSQL(CREATE_USER_IDS_FTS);
+        db.execSQL(CREATE_USER_IDS_FTS_INSERT_TRIGGER);
+        db.execSQL(CREATE_USER_IDS_FTS_DELETE_TRIGGER);
+        db.execSQL(CREATE_USER_IDS_FTS_UPDATE_TRIGGER);
     }
 
     /** This method tries to import data from a provided database.
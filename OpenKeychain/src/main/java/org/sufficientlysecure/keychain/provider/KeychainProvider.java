@@ -18,7 +18,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -39,8 +42,11 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 public class KeychainProvider extends ContentProvider {
 
@@ -63,6 +69,9 @@ public class KeychainProvider extends ContentProvider {
 
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
+    private static final int KEY_RINGS_FIND_MASTER_BY_SUBKEY = 402;
+    private static final int KEY_RINGS_FIND_BY_USER_ID = 403;
+    private static final int KEY_RINGS_FIND_USER_IDS_BY_EMAIL = 404;
 
     // private static final int DATA_STREAM = 501;
 
@@ -99,7 +108,10 @@ public class KeychainProvider extends ContentProvider {
          * find by criteria other than master key id
          *
          * key_rings/find/email/_
+         * key_rings/find/email/_/user_ids
          * key_rings/find/subkey/_
+         * key_rings/find/subkey/_/master
+         * key_rings/find/user_id/_
          *
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -108,6 +120,17 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_SUBKEY + "/*",
                 KEY_RINGS_FIND_BY_SUBKEY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_SUBKEY + "/*/"
+                + KeychainContract.PATH_MASTER,
+                KEY_RINGS_FIND_MASTER_BY_SUBKEY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_USER_ID + "/*",
+                KEY_RINGS_FIND_BY_USER_ID);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_EMAIL + "/*/"
+                + KeychainContract.PATH_USER_IDS,
+                KEY_RINGS_FIND_USER_IDS_BY_EMAIL);
 
         /**
          * list key_ring specifics
@@ -177,6 +200,9 @@ public class KeychainProvider extends ContentProvider {
 
     private KeychainDatabase mKeychainDatabase;
 
+    // uris to notify once the batch running on this thread is committed
+    private final ThreadLocal<Set<Uri>> mBatchNotifyUris = new ThreadLocal<Set<Uri>>();
+
     /**
      * {@inheritDoc}
      */
@@ -206,6 +232,7 @@ public class KeychainProvider extends ContentProvider {
                 return Keys.CONTENT_TYPE;
 
             case KEY_RING_USER_IDS:
+            case KEY_RINGS_FIND_USER_IDS_BY_EMAIL:
                 return UserIds.CONTENT_TYPE;
 
             case KEY_RING_SECRET:
@@ -247,6 +274,7 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RING_UNIFIED:
             case KEY_RINGS_UNIFIED:
             case KEY_RINGS_FIND_BY_EMAIL:
+            case KEY_RINGS_FIND_BY_USER_ID:
             case KEY_RINGS_FIND_BY_SUBKEY: {
                 HashMap<String, String> projectionMap = new HashMap<String, String>();
                 projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
@@ -311,33 +339,24 @@ public class KeychainProvider extends ContentProvider {
                         break;
                     }
                     case KEY_RINGS_FIND_BY_EMAIL: {
-                        String chunks[] = uri.getLastPathSegment().split(" *, *");
-                        boolean gotCondition = false;
-                        String emailWhere = "";
-                        // JAVA ♥
-                        for (int i = 0; i < chunks.length; ++i) {
-                            if (chunks[i].length() == 0) {
-                                continue;
-                            }
-                            if (i != 0) {
-                                emailWhere += " OR ";
-                            }
-                            emailWhere += "tmp." + UserIds.USER_ID + " LIKE ";
-                            // match '*<email>', so it has to be at the *end* of the user id
-                            emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
-                            gotCondition = true;
-                        }
-                        if(gotCondition) {
-                            qb.appendWhere(" AND EXISTS ("
-                                + " SELECT 1 FROM " + Tables.USER_IDS + " AS tmp"
-                                    + " WHERE tmp." + UserIds.MASTER_KEY_ID
-                                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                        + " AND (" + emailWhere + ")"
-                                + ")");
-                        } else {
-                            // TODO better way to do this?
-                            Log.e(Constants.TAG, "Malformed find by email query!");
-                            qb.appendWhere(" AND 0");
+                        qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                                + " IN (SELECT tmp." + UserIds.MASTER_KEY_ID
+                                    + " FROM " + Tables.USER_IDS + " AS tmp WHERE ");
+                        appendEmailWhere(qb, "tmp", uri.getLastPathSegment());
+                        qb.appendWhere(")");
+                        break;
+                    }
+                    case KEY_RINGS_FIND_BY_USER_ID: {
+                        String words = buildFtsWords(uri.getLastPathSegment(), true);
+                        // a query without any words matches everything, like an empty filter
+                        if (words.length() > 0) {
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                                + " IN ("
+                                + " SELECT " + UserIds.MASTER_KEY_ID + " FROM " + Tables.USER_IDS
+                                    + " WHERE oid IN (SELECT docid FROM " + Tables.USER_IDS_FTS
+                                        + " WHERE " + Tables.USER_IDS_FTS + " MATCH ");
+                            qb.appendWhereEscapeString(words);
+                            qb.appendWhere("))");
                         }
                         break;
                     }
@@ -355,6 +374,59 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RINGS_FIND_MASTER_BY_SUBKEY: {
+                // narrow lookup on the key_id index, without the joins of the unified query
+                HashMap<String, String> projectionMap = new HashMap<String, String>();
+                projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.KEYS);
+                try {
+                    String subkey = Long.valueOf(uri.getPathSegments().get(3)).toString();
+                    qb.appendWhere(Tables.KEYS + "." + Keys.KEY_ID + " = " + subkey);
+                } catch(NumberFormatException e) {
+                    Log.e(Constants.TAG, "Malformed find master by subkey query!", e);
+                    qb.appendWhere("0");
+                }
+
+                // uri to watch is all /key_rings/
+                uri = KeyRings.CONTENT_URI;
+
+                break;
+            }
+
+            case KEY_RINGS_FIND_USER_IDS_BY_EMAIL: {
+                // user ids of keys that can be encrypted to, without the joins of the unified
+                // query, resolves many emails at once
+                HashMap<String, String> projectionMap = new HashMap<String, String>();
+                projectionMap.put(UserIds.MASTER_KEY_ID,
+                        Tables.USER_IDS + "." + UserIds.MASTER_KEY_ID);
+                projectionMap.put(UserIds.USER_ID, Tables.USER_IDS + "." + UserIds.USER_ID);
+                qb.setProjectionMap(projectionMap);
+                qb.setTables(Tables.USER_IDS);
+
+                appendEmailWhere(qb, Tables.USER_IDS, uri.getPathSegments().get(3));
+                long now = System.currentTimeMillis() / 1000;
+                qb.appendWhere(" AND EXISTS ("
+                        + " SELECT 1 FROM " + Tables.KEYS + " AS k"
+                        + " WHERE k." + Keys.MASTER_KEY_ID
+                            + " = " + Tables.USER_IDS + "." + UserIds.MASTER_KEY_ID
+                        + " AND k." + Keys.IS_REVOKED + " = 0"
+                        + " AND k." + Keys.CAN_ENCRYPT + " = 1"
+                        + " AND (k." + Keys.EXPIRY + " IS NULL"
+                            + " OR k." + Keys.EXPIRY + " >= " + now + ")"
+                        + ")");
+
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = Tables.USER_IDS + "." + UserIds.MASTER_KEY_ID + " ASC";
+                }
+
+                // uri to watch is all /key_rings/
+                uri = KeyRings.CONTENT_URI;
+
+                break;
+            }
+
             case KEY_RING_KEYS: {
                 HashMap<String, String> projectionMap = new HashMap<String, String>();
                 projectionMap.put(Keys._ID, Tables.KEYS + ".oid AS _id");
@@ -363,6 +435,7 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(Keys.KEY_ID, Keys.KEY_ID);
                 projectionMap.put(Keys.KEY_SIZE, Keys.KEY_SIZE);
                 projectionMap.put(Keys.IS_REVOKED, Keys.IS_REVOKED);
+                projectionMap.put(Keys.HAS_VALID_BINDING, Keys.HAS_VALID_BINDING);
                 projectionMap.put(Keys.CAN_CERTIFY, Keys.CAN_CERTIFY);
                 projectionMap.put(Keys.CAN_ENCRYPT, Keys.CAN_ENCRYPT);
                 projectionMap.put(Keys.CAN_SIGN, Keys.CAN_SIGN);
@@ -568,7 +641,9 @@ public class KeychainProvider extends ContentProvider {
                     break;
 
                 case KEY_RING_SECRET:
-                    db.insertOrThrow(Tables.KEY_RINGS_SECRET, null, values);
+                    // replaces the blob if the secret keyring is imported again
+                    db.insertWithOnConflict(Tables.KEY_RINGS_SECRET, null, values,
+                            SQLiteDatabase.CONFLICT_REPLACE);
                     keyId = values.getAsLong(KeyRings.MASTER_KEY_ID);
                     break;
 
@@ -618,7 +693,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.e(Constants.TAG, "Constraint exception on insert! Entry already existing?", e);
@@ -661,6 +736,39 @@ public class KeychainProvider extends ContentProvider {
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
+            case KEY_RING_KEYS: {
+                @SuppressWarnings("ConstantConditions") // ensured by uriMatcher above
+                String selection = Keys.MASTER_KEY_ID + " = " + uri.getPathSegments().get(1);
+                if (!TextUtils.isEmpty(additionalSelection)) {
+                    selection += " AND (" + additionalSelection + ")";
+                }
+                count = db.delete(Tables.KEYS, selection, selectionArgs);
+                uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
+                break;
+            }
+            case KEY_RING_USER_IDS: {
+                @SuppressWarnings("ConstantConditions") // ensured by uriMatcher above
+                String selection = UserIds.MASTER_KEY_ID + " = " + uri.getPathSegments().get(1);
+                if (!TextUtils.isEmpty(additionalSelection)) {
+                    selection += " AND (" + additionalSelection + ")";
+                }
+                // corresponding certs are deleted by ON DELETE CASCADE
+                count = db.delete(Tables.USER_IDS, selection, selectionArgs);
+                uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
+                break;
+            }
+            case KEY_RING_CERTS_SPECIFIC: {
+                @SuppressWarnings("ConstantConditions") // ensured by uriMatcher above
+                String selection = Certs.MASTER_KEY_ID + " = " + uri.getPathSegments().get(1)
+                        + " AND " + Certs.RANK + " = " + uri.getPathSegments().get(3)
+                        + " AND " + Certs.KEY_ID_CERTIFIER + " = " + uri.getPathSegments().get(4);
+                if (!TextUtils.isEmpty(additionalSelection)) {
+                    selection += " AND (" + additionalSelection + ")";
+                }
+                count = db.delete(Tables.CERTS, selection, selectionArgs);
+                uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
+                break;
+            }
 
             case API_APPS_BY_PACKAGE_NAME:
                 count = db.delete(Tables.API_APPS, buildDefaultApiAppsSelection(uri, additionalSelection),
@@ -675,7 +783,7 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
@@ -694,6 +802,17 @@ public class KeychainProvider extends ContentProvider {
         try {
             final int match = mUriMatcher.match(uri);
             switch (match) {
+                case KEY_RING_PUBLIC: {
+                    // replaces the blob only, unlike delete and insert this doesn't cascade
+                    String keyRingSelection = KeyRingData.MASTER_KEY_ID + " = "
+                            + uri.getPathSegments().get(1);
+                    if (!TextUtils.isEmpty(selection)) {
+                        keyRingSelection += " AND (" + selection + ")";
+                    }
+                    count = db.update(Tables.KEY_RINGS_PUBLIC, values, keyRingSelection, selectionArgs);
+                    uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
+                    break;
+                }
                 case API_APPS_BY_PACKAGE_NAME:
                     count = db.update(Tables.API_APPS, values,
                             buildDefaultApiAppsSelection(uri, selection), selectionArgs);
@@ -707,7 +826,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.e(Constants.TAG, "Constraint exception on update! Entry already existing?");
@@ -716,6 +835,41 @@ public class KeychainProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Applies all operations in a single database transaction, which is much faster than a
+     * transaction per operation and leaves nothing half written if one of them fails.
+     * Change notifications are collected and sent once the transaction is finished.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+
+        Set<Uri> notifyUris = new HashSet<Uri>();
+        mBatchNotifyUris.set(notifyUris);
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatchNotifyUris.remove();
+            for (Uri uri : notifyUris) {
+                notifyChange(uri);
+            }
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        Set<Uri> notifyUris = mBatchNotifyUris.get();
+        if (notifyUris != null) {
+            notifyUris.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     /**
      * Build default selection statement for API apps. If no extra selection is specified only build
      * where clause with rowId
@@ -749,4 +903,84 @@ public class KeychainProvider extends ContentProvider {
                 + andSelection;
     }
 
+    /**
+     * Appends a condition matching user ids, of the table with the given name or alias, that
+     * end in one of the comma separated emails. The full text index narrows down the candidates
+     * without a scan, the LIKE then checks the email is really at the end.
+     */
+    private static void appendEmailWhere(SQLiteQueryBuilder qb, String table, String emails) {
+        String chunks[] = emails.split(" *, *");
+        boolean gotCondition = false;
+        boolean gotPhrases = true;
+        String emailWhere = "";
+        String phrases = "";
+        // JAVA ♥
+        for (int i = 0; i < chunks.length; ++i) {
+            if (chunks[i].length() == 0) {
+                continue;
+            }
+            if (gotCondition) {
+                emailWhere += " OR ";
+                phrases += " OR ";
+            }
+            emailWhere += table + "." + UserIds.USER_ID + " LIKE ";
+            // match '*<email>', so it has to be at the *end* of the user id
+            emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
+            gotCondition = true;
+
+            String words = buildFtsWords(chunks[i], false);
+            if (words.length() == 0) {
+                gotPhrases = false;
+            }
+            phrases += "\"" + words + "\"";
+        }
+
+        if (!gotCondition) {
+            // TODO better way to do this?
+            Log.e(Constants.TAG, "Malformed find by email query!");
+            qb.appendWhere("0");
+            return;
+        }
+        if (gotPhrases) {
+            qb.appendWhere(table + ".oid IN (SELECT docid FROM " + Tables.USER_IDS_FTS
+                    + " WHERE " + Tables.USER_IDS_FTS + " MATCH ");
+            qb.appendWhereEscapeString(phrases);
+            qb.appendWhere(") AND ");
+        }
+        qb.appendWhere("(" + emailWhere + ")");
+    }
+
+    /**
+     * Splits text into words the way the simple tokenizer of the full text index does: ASCII
+     * characters other than letters and digits separate words, all other characters are part
+     * of them. Words are lower cased, so they are never taken as operators like OR.
+     *
+     * @param prefix if true, each word matches all words starting with it
+     * @return the words separated by spaces, empty if there are none
+     */
+    static String buildFtsWords(String text, boolean prefix) {
+        StringBuilder words = new StringBuilder();
+        boolean inWord = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            boolean separator = c < 0x80 && !Character.isLetterOrDigit(c);
+            if (separator) {
+                if (inWord && prefix) {
+                    words.append('*');
+                }
+                inWord = false;
+                continue;
+            }
+            if (!inWord && words.length() > 0) {
+                words.append(' ');
+            }
+            inWord = true;
+            words.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+        }
+        if (inWord && prefix) {
+            words.append('*');
+        }
+        return words.toString();
+    }
+
 }
@@ -52,18 +52,27 @@ import org.sufficientlysecure.keychain.util.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.SignatureException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
 public class ProviderHelper {
 
+    // emails resolved per query, keeps the full text query of a batch reasonably small
+    private static final int EMAIL_BATCH_SIZE = 50;
+
     // If we ever switch to api level 11, we can ditch this whole mess!
     public static final int FIELD_TYPE_NULL = 1;
     // this is called integer to stay coherent with the constants in Cursor (api level 11)
@@ -129,6 +138,27 @@ public class ProviderHelper {
         return 0L;
     }
 
+    /**
+     * Find the master key id of the keyring containing the given (sub)key. This uses a narrow
+     * query on the key_id index, with an in-memory cache in front of it.
+     *
+     * @return master key id, or 0 if the key is unknown
+     */
+    public static long getMasterKeyIdBySubkeyId(Context context, long keyId) {
+        Long cached = KeyRingCache.getMasterKeyId(context, keyId);
+        if (cached != null) {
+            return cached;
+        }
+
+        long generation = KeyRingCache.getGeneration();
+        Object data = getGenericData(context,
+                KeyRings.buildMasterKeyIdFindBySubkeyUri(Long.toString(keyId)),
+                KeyRings.MASTER_KEY_ID, FIELD_TYPE_INTEGER);
+        long masterKeyId = data != null ? (Long) data : 0L;
+        KeyRingCache.putMasterKeyId(keyId, masterKeyId, generation);
+        return masterKeyId;
+    }
+
     public static Map<Long, PGPKeyRing> getPGPKeyRings(Context context, Uri queryUri) {
         Cursor cursor = context.getContentResolver().query(queryUri,
                 new String[]{KeyRingData.MASTER_KEY_ID, KeyRingData.KEY_RING_DATA },
@@ -157,80 +187,356 @@ public class ProviderHelper {
     }
 
     public static PGPPublicKeyRing getPGPPublicKeyRingWithKeyId(Context context, long keyId) {
-        Uri uri = KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(keyId));
-        long masterKeyId = getMasterKeyId(context, uri);
+        long masterKeyId = getMasterKeyIdBySubkeyId(context, keyId);
         if(masterKeyId != 0)
             return getPGPPublicKeyRing(context, masterKeyId);
         return null;
     }
     public static PGPSecretKeyRing getPGPSecretKeyRingWithKeyId(Context context, long keyId) {
-        Uri uri = KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(keyId));
-        long masterKeyId = getMasterKeyId(context, uri);
+        long masterKeyId = getMasterKeyIdBySubkeyId(context, keyId);
         if(masterKeyId != 0)
             return getPGPSecretKeyRing(context, masterKeyId);
         return null;
     }
 
     /**
-     * Retrieves the actual PGPPublicKeyRing object from the database blob based on the masterKeyId
+     * Retrieves the actual PGPPublicKeyRing object from the database blob based on the masterKeyId,
+     * parsed rings are kept in KeyRingCache
      */
     public static PGPPublicKeyRing getPGPPublicKeyRing(Context context,
                                                                     long masterKeyId) {
+        PGPPublicKeyRing keyRing = KeyRingCache.getPublicKeyRing(context, masterKeyId);
+        if (keyRing != null) {
+            return keyRing;
+        }
+
+        long generation = KeyRingCache.getGeneration();
         Uri queryUri = KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId));
-        return (PGPPublicKeyRing) getPGPKeyRing(context, queryUri);
+        keyRing = (PGPPublicKeyRing) getPGPKeyRing(context, queryUri);
+        if (keyRing != null) {
+            KeyRingCache.putPublicKeyRing(masterKeyId, keyRing, generation);
+        }
+        return keyRing;
     }
 
     /**
-     * Retrieves the actual PGPSecretKeyRing object from the database blob based on the maserKeyId
+     * Retrieves the actual PGPSecretKeyRing object from the database blob based on the maserKeyId,
+     * parsed rings are kept in KeyRingCache
      */
     public static PGPSecretKeyRing getPGPSecretKeyRing(Context context,
                                                                     long masterKeyId) {
+        PGPSecretKeyRing keyRing = KeyRingCache.getSecretKeyRing(context, masterKeyId);
+        if (keyRing != null) {
+            return keyRing;
+        }
+
+        long generation = KeyRingCache.getGeneration();
         Uri queryUri = KeyRingData.buildSecretKeyRingUri(Long.toString(masterKeyId));
-        return (PGPSecretKeyRing) getPGPKeyRing(context, queryUri);
+        keyRing = (PGPSecretKeyRing) getPGPKeyRing(context, queryUri);
+        if (keyRing != null) {
+            KeyRingCache.putSecretKeyRing(masterKeyId, keyRing, generation);
+        }
+        return keyRing;
     }
 
     /**
-     * Saves PGPPublicKeyRing with its keys and userIds in DB
+     * Master key ids of all secret keyrings in the database. Only the ids are queried, the
+     * keyrings themselves are not loaded.
+     */
+    public static Set<Long> getSecretMasterKeyIds(Context context) {
+        Set<Long> masterKeyIds = KeyRingCache.getSecretMasterKeyIds(context);
+        if (masterKeyIds != null) {
+            return masterKeyIds;
+        }
+
+        long generation = KeyRingCache.getGeneration();
+        masterKeyIds = new HashSet<Long>();
+        Cursor cursor = context.getContentResolver().query(KeyRingData.buildSecretKeyRingUri(),
+                new String[]{ KeyRingData.MASTER_KEY_ID }, null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                masterKeyIds.add(cursor.getLong(0));
+            }
+            cursor.close();
+        }
+        KeyRingCache.putSecretMasterKeyIds(masterKeyIds, generation);
+        return masterKeyIds;
+    }
+
+    /**
+     * Master key ids of all public keyrings in the database, without loading the keyrings
+     */
+    public static Set<Long> getPublicMasterKeyIds(Context context) {
+        Set<Long> masterKeyIds = new HashSet<Long>();
+        Cursor cursor = context.getContentResolver().query(KeyRingData.buildPublicKeyRingUri(),
+                new String[]{ KeyRingData.MASTER_KEY_ID }, null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                masterKeyIds.add(cursor.getLong(0));
+            }
+            cursor.close();
+        }
+        return masterKeyIds;
+    }
+
+    /**
+     * Finds the keys that can be encrypted to for each email. Emails are looked up in batches,
+     * with one query per batch instead of one per email.
+     *
+     * @return master key ids of each email that has usable keys, keyed by the lower cased email
+     */
+    public static HashMap<String, ArrayList<Long>> getMasterKeyIdsByEmails(Context context,
+                                                                        Collection<String> emails) {
+        HashMap<String, ArrayList<Long>> result = new HashMap<String, ArrayList<Long>>();
+        HashSet<String> batch = new HashSet<String>();
+        for (String email : emails) {
+            batch.add(email.trim().toLowerCase(Locale.US));
+            if (batch.size() == EMAIL_BATCH_SIZE) {
+                queryMasterKeyIdsByEmails(context, batch, result);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            queryMasterKeyIdsByEmails(context, batch, result);
+        }
+        return result;
+    }
+
+    private static void queryMasterKeyIdsByEmails(Context context, Set<String> emails,
+                                                  HashMap<String, ArrayList<Long>> result) {
+        StringBuilder joined = new StringBuilder();
+        for (String email : emails) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(email);
+        }
+
+        Cursor cursor = context.getContentResolver().query(
+                UserIds.buildUserIdsFindByEmailsUri(joined.toString()),
+                new String[]{ UserIds.MASTER_KEY_ID, UserIds.USER_ID }, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                // the email is at the end of the user id, in angle brackets
+                String userId = cursor.getString(1);
+                int start = userId.lastIndexOf('<');
+                if (start < 0 || !userId.endsWith(">")) {
+                    continue;
+                }
+                String email = userId.substring(start + 1, userId.length() - 1)
+                        .toLowerCase(Locale.US);
+                if (!emails.contains(email)) {
+                    continue;
+                }
+
+                ArrayList<Long> masterKeyIds = result.get(email);
+                if (masterKeyIds == null) {
+                    masterKeyIds = new ArrayList<Long>();
+                    result.put(email, masterKeyIds);
+                }
+                long masterKeyId = cursor.getLong(0);
+                if (!masterKeyIds.contains(masterKeyId)) {
+                    masterKeyIds.add(masterKeyId);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Saves PGPPublicKeyRing with its keys and userIds in DB. If the keyring is already in the
+     * database, only what changed is written (see buildUpdateKeyRingOperations)
      */
-    @SuppressWarnings("unchecked")
     public static void saveKeyRing(Context context, PGPPublicKeyRing keyRing) throws IOException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        buildSaveKeyRingOperations(context, keyRing, operations);
+
+        try {
+            applyKeyRingOperations(context, operations,
+                    Collections.singleton(keyRing.getPublicKey().getKeyID()));
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "applyBatch failed!", e);
+        } catch (OperationApplicationException e) {
+            Log.e(Constants.TAG, "applyBatch failed!", e);
+        }
+    }
+
+    /**
+     * Applies operations collected by the buildSaveKeyRingOperations methods, in a single
+     * transaction.
+     *
+     * @param masterKeyIds the keyrings written, these are dropped from KeyRingCache
+     */
+    public static void applyKeyRingOperations(Context context,
+                                              ArrayList<ContentProviderOperation> operations,
+                                              Collection<Long> masterKeyIds)
+            throws RemoteException, OperationApplicationException {
+        try {
+            context.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        } finally {
+            // don't wait for the provider notification to drop what was cached in the meantime
+            for (long masterKeyId : masterKeyIds) {
+                KeyRingCache.invalidate(masterKeyId);
+            }
+        }
+    }
+
+    /**
+     * Collects the operations saving a PGPPublicKeyRing, without writing anything. They are
+     * meant to be applied in a single batch, possibly together with those of other keyrings.
+     *
+     * @return true if the keyring was already in the database
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean buildSaveKeyRingOperations(Context context, PGPPublicKeyRing keyRing,
+                                                     ArrayList<ContentProviderOperation> operations)
+            throws IOException {
         PGPPublicKey masterKey = keyRing.getPublicKey();
         long masterKeyId = masterKey.getKeyID();
 
+        PGPPublicKeyRing oldRing = getPGPPublicKeyRing(context, masterKeyId);
+        if (oldRing != null) {
+            buildUpdateKeyRingOperations(context, oldRing, keyRing, operations);
+            return true;
+        }
+
         // IF there is a secret key, preserve it!
         PGPSecretKeyRing secretRing = ProviderHelper.getPGPSecretKeyRing(context, masterKeyId);
 
         // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-        try {
-            context.getContentResolver().delete(KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId)), null, null);
-        } catch (UnsupportedOperationException e) {
-            Log.e(Constants.TAG, "Key could not be deleted! Maybe we are creating a new one!", e);
-        }
+        Uri uri = KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId));
+        operations.add(ContentProviderOperation.newDelete(uri).build());
 
         // insert new version of this keyRing
         ContentValues values = new ContentValues();
         values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
         values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
-        Uri uri = KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId));
-        context.getContentResolver().insert(uri, values);
+        operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
 
         // save all keys and userIds included in keyRing object in database
-        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
-
-        int rank = 0;
-        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
-            operations.add(buildPublicKeyOperations(context, masterKeyId, key, rank));
-            ++rank;
+        List<ContentValues> keys = buildPublicKeyValues(masterKeyId, keyRing);
+        putBindings(keys, keyRing, new HashMap<Long, Boolean>());
+        for (ContentValues keyValues : keys) {
+            operations.add(buildPublicKeyOperations(masterKeyId, keyValues));
         }
 
         // get a list of owned secret keys, for verification filtering
-        Map<Long, PGPKeyRing> allKeyRings = getPGPKeyRings(context, KeyRingData.buildSecretKeyRingUri());
+        Set<Long> secretKeyIds = getSecretMasterKeyIds(context);
         // special case: available secret keys verify themselves!
         if(secretRing != null)
-            allKeyRings.put(secretRing.getSecretKey().getKeyID(), secretRing);
+            secretKeyIds.add(masterKeyId);
+
+        List<UserIdItem> uids = buildUserIdItems(context, masterKey, secretKeyIds,
+                new HashMap<String, Set<ByteBuffer>>());
+        for(int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
+            operations.add(buildUserIdOperations(masterKeyId, uids.get(userIdRank), userIdRank));
+        }
+        for (CertRow cert : buildCertRows(uids).values()) {
+            operations.add(buildCertOperations(masterKeyId, cert));
+        }
+
+        // Save the saved keyring (if any)
+        if(secretRing != null) {
+            operations.add(buildSecretKeyRingOperations(masterKeyId, secretRing));
+        }
 
-        // classify and order user ids. primary are moved to the front, revoked to the back,
-        // otherwise the order in the keyfile is preserved.
+        return false;
+    }
+
+    /**
+     * Collects the operations merging a new version of a keyring that is already in the
+     * database. The keyring blob is updated in place, so the secret keyring is not deleted on
+     * cascade. The keys, user ids and certs rows are only rewritten if they changed, and
+     * certifications that are already stored as verified are not verified again.
+     */
+    private static void buildUpdateKeyRingOperations(Context context, PGPPublicKeyRing oldRing,
+                                                     PGPPublicKeyRing keyRing,
+                                                     ArrayList<ContentProviderOperation> operations)
+            throws IOException {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        long masterKeyId = masterKey.getKeyID();
+        String masterKeyIdString = Long.toString(masterKeyId);
+
+        byte[] encoded = keyRing.getEncoded();
+        if (Arrays.equals(oldRing.getEncoded(), encoded)) {
+            Log.d(Constants.TAG, "Keyring " + PgpKeyHelper.convertKeyIdToHex(masterKeyId)
+                    + " is unchanged, not saving");
+            return;
+        }
+        int firstOperation = operations.size();
+
+        ContentValues values = new ContentValues();
+        values.put(KeyRingData.KEY_RING_DATA, encoded);
+        operations.add(ContentProviderOperation.newUpdate(
+                KeyRingData.buildPublicKeyRingUri(masterKeyIdString)).withValues(values).build());
+
+        List<ContentValues> keys = buildPublicKeyValues(masterKeyId, keyRing);
+        Map<Long, Boolean> bindings = getStoredBindings(context, oldRing, keyRing);
+        // also rewritten if a binding is not known for some subkey, e.g. after a db upgrade
+        if (!valuesEqual(buildPublicKeyValues(masterKeyId, oldRing), keys)
+                || bindings.size() != keys.size() - 1) {
+            putBindings(keys, keyRing, bindings);
+            operations.add(ContentProviderOperation.newDelete(
+                    Keys.buildKeysUri(masterKeyIdString)).build());
+            for (ContentValues keyValues : keys) {
+                operations.add(buildPublicKeyOperations(masterKeyId, keyValues));
+            }
+        }
+
+        // stored certifications are only trusted for the very same master key
+        Map<String, Set<ByteBuffer>> verifiedCerts = new HashMap<String, Set<ByteBuffer>>();
+        Map<String, CertRow> oldCerts = getStoredCerts(context, masterKeyId,
+                Arrays.equals(oldRing.getPublicKey().getFingerprint(), masterKey.getFingerprint())
+                        ? verifiedCerts : null);
+
+        List<UserIdItem> uids = buildUserIdItems(context, masterKey,
+                getSecretMasterKeyIds(context), verifiedCerts);
+        Map<String, CertRow> certs = buildCertRows(uids);
+
+        if (!userIdsEqual(context, masterKeyId, uids)) {
+            // ranks may have shifted, rewrite all user ids. this deletes their certs on cascade
+            operations.add(ContentProviderOperation.newDelete(
+                    UserIds.buildUserIdsUri(masterKeyIdString)).build());
+            for(int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
+                operations.add(buildUserIdOperations(masterKeyId, uids.get(userIdRank), userIdRank));
+            }
+            for (CertRow cert : certs.values()) {
+                operations.add(buildCertOperations(masterKeyId, cert));
+            }
+        } else {
+            for (CertRow cert : certs.values()) {
+                CertRow oldCert = oldCerts.remove(cert.getKey());
+                if (oldCert == null || !oldCert.isSameAs(cert)) {
+                    operations.add(buildCertOperations(masterKeyId, cert));
+                }
+            }
+            for (CertRow oldCert : oldCerts.values()) {
+                operations.add(ContentProviderOperation.newDelete(Certs.buildCertsSpecificUri(
+                        masterKeyIdString, Integer.toString(oldCert.rank),
+                        Long.toString(oldCert.certifier))).build());
+            }
+        }
+
+        Log.d(Constants.TAG, "Keyring " + PgpKeyHelper.convertKeyIdToHex(masterKeyId)
+                + " is updated with " + (operations.size() - firstOperation) + " operations");
+    }
+
+    /**
+     * Classify and order user ids. primary are moved to the front, revoked to the back,
+     * otherwise the order in the keyfile is preserved.
+     *
+     * @param verifiedCerts certifications known to be valid, by user id. Certifications that
+     *                      are verified here are added.
+     */
+    private static List<UserIdItem> buildUserIdItems(Context context, PGPPublicKey masterKey,
+                                                     Set<Long> secretKeyIds,
+                                                     Map<String, Set<ByteBuffer>> verifiedCerts)
+            throws IOException {
+        long masterKeyId = masterKey.getKeyID();
         List<UserIdItem> uids = new ArrayList<UserIdItem>();
 
         for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
@@ -238,88 +544,300 @@ public class ProviderHelper {
             uids.add(item);
             item.userId = userId;
 
+            Set<ByteBuffer> verified = verifiedCerts.get(userId);
+            if (verified == null) {
+                verified = new HashSet<ByteBuffer>();
+                verifiedCerts.put(userId, verified);
+            }
+
             // look through signatures for this specific key
+            List<PGPSignature> selfCerts = new ArrayList<PGPSignature>();
             for (PGPSignature cert : new IterableIterator<PGPSignature>(
                     masterKey.getSignaturesForID(userId))) {
                 long certId = cert.getKeyID();
-                try {
-                    // self signature
-                    if(certId == masterKeyId) {
-                        cert.init(new JcaPGPContentVerifierBuilderProvider().setProvider(
-                                        Constants.BOUNCY_CASTLE_PROVIDER_NAME), masterKey);
-                        if(!cert.verifyCertification(userId,  masterKey)) {
-                            // not verified?! dang! TODO notify user? this is kinda serious...
-                            Log.e(Constants.TAG, "Could not verify self signature for " + userId + "!");
-                            continue;
-                        }
-                        // is this the first, or a more recent certificate?
-                        if(item.selfCert == null ||
-                                item.selfCert.getCreationTime().before(cert.getCreationTime())) {
-                            item.selfCert = cert;
-                            item.isPrimary = cert.getHashedSubPackets().isPrimaryUserID();
-                            item.isRevoked =
-                                    cert.getSignatureType() == PGPSignature.CERTIFICATION_REVOCATION;
-                        }
-                    }
-                    // verify signatures from known private keys
-                    if(allKeyRings.containsKey(certId)) {
-                        // mark them as verified
-                        cert.init(new JcaPGPContentVerifierBuilderProvider().setProvider(
-                                        Constants.BOUNCY_CASTLE_PROVIDER_NAME),
-                                allKeyRings.get(certId).getPublicKey());
-                        if(cert.verifyCertification(userId, masterKey)) {
-                            item.trustedCerts.add(cert);
-                        }
+                if (certId == masterKeyId) {
+                    selfCerts.add(cert);
+                }
+                // verify signatures from known private keys, and mark them as verified
+                if (secretKeyIds.contains(certId)) {
+                    PGPPublicKey certifierKey = certId == masterKeyId
+                            ? masterKey : getCertifierKey(context, certId);
+                    if (certifierKey != null
+                            && verifyCert(cert, userId, certifierKey, masterKey, verified)) {
+                        item.trustedCerts.add(cert);
                     }
-                } catch(SignatureException e) {
-                    Log.e(Constants.TAG, "Signature verification failed! "
-                            + PgpKeyHelper.convertKeyIdToHex(masterKey.getKeyID())
-                            + " from "
-                            + PgpKeyHelper.convertKeyIdToHex(cert.getKeyID()), e);
-                } catch(PGPException e) {
-                    Log.e(Constants.TAG, "Signature verification failed! "
-                            + PgpKeyHelper.convertKeyIdToHex(masterKey.getKeyID())
-                            + " from "
-                            + PgpKeyHelper.convertKeyIdToHex(cert.getKeyID()), e);
                 }
             }
+
+            // the most recent valid self certificate determines the state of the user id, so
+            // older ones don't need to be verified
+            Collections.sort(selfCerts, NEWEST_FIRST);
+            for (PGPSignature cert : selfCerts) {
+                if (verifyCert(cert, userId, masterKey, masterKey, verified)) {
+                    item.selfCert = cert;
+                    item.isPrimary = cert.getHashedSubPackets().isPrimaryUserID();
+                    item.isRevoked =
+                            cert.getSignatureType() == PGPSignature.CERTIFICATION_REVOCATION;
+                    break;
+                }
+                // not verified?! dang! TODO notify user? this is kinda serious...
+                Log.e(Constants.TAG, "Could not verify self signature for " + userId + "!");
+            }
         }
 
         // primary before regular before revoked (see UserIdItem.compareTo)
         // this is a stable sort, so the order of keys is otherwise preserved.
         Collections.sort(uids);
-        // iterate and put into db
+        return uids;
+    }
+
+    private static PGPPublicKey getCertifierKey(Context context, long masterKeyId) {
+        PGPPublicKeyRing keyRing = getPGPPublicKeyRing(context, masterKeyId);
+        return keyRing != null ? keyRing.getPublicKey() : null;
+    }
+
+    /**
+     * Verifies a certification, unless it is in the set of certifications known to be valid
+     */
+    private static boolean verifyCert(PGPSignature cert, String userId, PGPPublicKey certifierKey,
+                                      PGPPublicKey masterKey, Set<ByteBuffer> verified)
+            throws IOException {
+        ByteBuffer encoded = ByteBuffer.wrap(cert.getEncoded());
+        if (verified.contains(encoded)) {
+            return true;
+        }
+        try {
+            cert.init(new JcaPGPContentVerifierBuilderProvider().setProvider(
+                    Constants.BOUNCY_CASTLE_PROVIDER_NAME), certifierKey);
+            if (cert.verifyCertification(userId, masterKey)) {
+                verified.add(encoded);
+                return true;
+            }
+        } catch(SignatureException e) {
+            Log.e(Constants.TAG, "Signature verification failed! "
+                    + PgpKeyHelper.convertKeyIdToHex(masterKey.getKeyID())
+                    + " from "
+                    + PgpKeyHelper.convertKeyIdToHex(cert.getKeyID()), e);
+        } catch(PGPException e) {
+            Log.e(Constants.TAG, "Signature verification failed! "
+                    + PgpKeyHelper.convertKeyIdToHex(masterKey.getKeyID())
+                    + " from "
+                    + PgpKeyHelper.convertKeyIdToHex(cert.getKeyID()), e);
+        }
+        return false;
+    }
+
+    private static final Comparator<PGPSignature> NEWEST_FIRST = new Comparator<PGPSignature>() {
+        @Override
+        public int compare(PGPSignature lhs, PGPSignature rhs) {
+            return rhs.getCreationTime().compareTo(lhs.getCreationTime());
+        }
+    };
+
+    /**
+     * The certs rows for the given user ids, keyed like the certs primary key. A trusted cert
+     * replaces the self cert of the same certifier, like the provider's replace on insert.
+     */
+    private static Map<String, CertRow> buildCertRows(List<UserIdItem> uids) throws IOException {
+        Map<String, CertRow> certs = new LinkedHashMap<String, CertRow>();
         for(int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
             UserIdItem item = uids.get(userIdRank);
-            operations.add(buildUserIdOperations(masterKeyId, item, userIdRank));
             // no self cert is bad, but allowed by the rfc...
             if(item.selfCert != null) {
-                operations.add(buildCertOperations(
-                        masterKeyId, userIdRank, item.selfCert, Certs.VERIFIED_SELF));
+                CertRow cert = new CertRow(userIdRank, item.selfCert, Certs.VERIFIED_SELF);
+                certs.put(cert.getKey(), cert);
             }
             // don't bother with trusted certs if the uid is revoked, anyways
             if(item.isRevoked) {
                 continue;
             }
             for(int i = 0; i < item.trustedCerts.size(); i++) {
-                operations.add(buildCertOperations(
-                        masterKeyId, userIdRank, item.trustedCerts.get(i), Certs.VERIFIED_SECRET));
+                CertRow cert = new CertRow(userIdRank, item.trustedCerts.get(i), Certs.VERIFIED_SECRET);
+                certs.put(cert.getKey(), cert);
             }
         }
+        return certs;
+    }
 
+    /**
+     * Reads the stored certs rows of a keyring
+     *
+     * @param verifiedCerts if not null, the encoded certifications are added by user id
+     */
+    private static Map<String, CertRow> getStoredCerts(Context context, long masterKeyId,
+                                                       Map<String, Set<ByteBuffer>> verifiedCerts) {
+        Cursor cursor = context.getContentResolver().query(
+                Certs.buildCertsUri(Long.toString(masterKeyId)),
+                new String[]{ Certs.RANK, Certs.KEY_ID_CERTIFIER, Certs.TYPE, Certs.CREATION,
+                        Certs.VERIFIED, Certs.DATA, Certs.USER_ID },
+                null, null, null);
+
+        Map<String, CertRow> certs = new HashMap<String, CertRow>();
+        if (cursor == null) {
+            return certs;
+        }
         try {
-            context.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
-        } catch (RemoteException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
-        } catch (OperationApplicationException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
+            while (cursor.moveToNext()) {
+                CertRow cert = new CertRow();
+                cert.rank = cursor.getInt(0);
+                cert.certifier = cursor.getLong(1);
+                cert.type = cursor.getInt(2);
+                cert.creation = cursor.getLong(3);
+                cert.verified = cursor.getInt(4);
+                cert.data = cursor.getBlob(5);
+                certs.put(cert.getKey(), cert);
+
+                String userId = cursor.getString(6);
+                if (verifiedCerts != null && cert.verified > 0 && cert.data != null) {
+                    Set<ByteBuffer> verified = verifiedCerts.get(userId);
+                    if (verified == null) {
+                        verified = new HashSet<ByteBuffer>();
+                        verifiedCerts.put(userId, verified);
+                    }
+                    verified.add(ByteBuffer.wrap(cert.data));
+                }
+            }
+        } finally {
+            cursor.close();
         }
 
-        // Save the saved keyring (if any)
-        if(secretRing != null) {
-            saveKeyRing(context, secretRing);
+        return certs;
+    }
+
+    /**
+     * @return true if the stored user ids rows match the given ones, in rank order
+     */
+    private static boolean userIdsEqual(Context context, long masterKeyId, List<UserIdItem> uids) {
+        Cursor cursor = context.getContentResolver().query(
+                UserIds.buildUserIdsUri(Long.toString(masterKeyId)),
+                new String[]{ UserIds.USER_ID, UserIds.IS_PRIMARY, UserIds.IS_REVOKED },
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            if (cursor.getCount() != uids.size()) {
+                return false;
+            }
+            for (UserIdItem item : uids) {
+                if (!cursor.moveToNext()
+                        || !item.userId.equals(cursor.getString(0))
+                        || item.isPrimary != (cursor.getInt(1) != 0)
+                        || item.isRevoked != (cursor.getInt(2) != 0)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            cursor.close();
         }
+    }
 
+    /**
+     * @return whether the binding signatures of the given subkey were valid when its keyring was
+     * saved, null if that is unknown
+     */
+    public static Boolean hasValidBinding(Context context, long masterKeyId, long keyId) {
+        Cursor cursor = context.getContentResolver().query(
+                Keys.buildKeysUri(Long.toString(masterKeyId)),
+                new String[]{ Keys.HAS_VALID_BINDING }, Keys.KEY_ID + " = ?",
+                new String[]{ Long.toString(keyId) }, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return null;
+            }
+            return cursor.getInt(0) != 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Stored binding validity of the subkeys that are unchanged in the new keyring, by key id
+     */
+    private static Map<Long, Boolean> getStoredBindings(Context context, PGPPublicKeyRing oldRing,
+                                                        PGPPublicKeyRing keyRing)
+            throws IOException {
+        Map<Long, Boolean> bindings = new HashMap<Long, Boolean>();
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        if (!Arrays.equals(oldRing.getPublicKey().getFingerprint(), masterKey.getFingerprint())) {
+            return bindings;
+        }
+
+        Cursor cursor = context.getContentResolver().query(
+                Keys.buildKeysUri(Long.toString(masterKey.getKeyID())),
+                new String[]{ Keys.KEY_ID, Keys.HAS_VALID_BINDING }, null, null, null);
+        if (cursor == null) {
+            return bindings;
+        }
+        while (cursor.moveToNext()) {
+            long keyId = cursor.getLong(0);
+            if (keyId == masterKey.getKeyID() || cursor.isNull(1)) {
+                continue;
+            }
+            PGPPublicKey oldKey = oldRing.getPublicKey(keyId);
+            PGPPublicKey key = keyRing.getPublicKey(keyId);
+            // the binding signatures are part of the encoded subkey
+            if (oldKey != null && key != null
+                    && Arrays.equals(oldKey.getEncoded(), key.getEncoded())) {
+                bindings.put(keyId, cursor.getInt(1) != 0);
+            }
+        }
+        cursor.close();
+
+        return bindings;
+    }
+
+    /**
+     * Adds the binding validity to the keys rows built by buildPublicKeyValues, verifying the
+     * binding signatures of all subkeys not in knownBindings
+     */
+    @SuppressWarnings("unchecked")
+    private static void putBindings(List<ContentValues> keys, PGPPublicKeyRing keyRing,
+                                    Map<Long, Boolean> knownBindings) {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        int rank = 0;
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+            Boolean valid;
+            if (key.getKeyID() == masterKey.getKeyID()) {
+                valid = true;
+            } else {
+                valid = knownBindings.get(key.getKeyID());
+                if (valid == null) {
+                    valid = PgpKeyHelper.isSubkeyBindingValid(masterKey, key);
+                }
+            }
+            keys.get(rank).put(Keys.HAS_VALID_BINDING, valid);
+            ++rank;
+        }
+    }
+
+    private static boolean valuesEqual(List<ContentValues> lhs, List<ContentValues> rhs) {
+        if (lhs.size() != rhs.size()) {
+            return false;
+        }
+        for (int i = 0; i < lhs.size(); i++) {
+            ContentValues a = lhs.get(i), b = rhs.get(i);
+            if (a.size() != b.size()) {
+                return false;
+            }
+            for (Map.Entry<String, Object> entry : a.valueSet()) {
+                Object value = entry.getValue();
+                Object other = b.get(entry.getKey());
+                if (value instanceof byte[] && other instanceof byte[]) {
+                    if (!Arrays.equals((byte[]) value, (byte[]) other)) {
+                        return false;
+                    }
+                } else if (value == null ? other != null || !b.containsKey(entry.getKey())
+                        : !value.equals(other)) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     private static class UserIdItem implements Comparable<UserIdItem> {
@@ -341,6 +859,40 @@ public class ProviderHelper {
         }
     }
 
+    /**
+     * A row of the certs table, as stored or as about to be stored
+     */
+    private static class CertRow {
+        int rank;
+        long certifier;
+        int type;
+        long creation;
+        int verified;
+        byte[] data;
+
+        CertRow() {
+        }
+
+        CertRow(int rank, PGPSignature cert, int verified) throws IOException {
+            this.rank = rank;
+            this.certifier = cert.getKeyID();
+            this.type = cert.getSignatureType();
+            this.creation = cert.getCreationTime().getTime() / 1000;
+            this.verified = verified;
+            this.data = cert.getEncoded();
+        }
+
+        String getKey() {
+            return rank + "/" + certifier;
+        }
+
+        boolean isSameAs(CertRow o) {
+            return rank == o.rank && certifier == o.certifier && type == o.type
+                    && creation == o.creation && verified == o.verified
+                    && Arrays.equals(data, o.data);
+        }
+    }
+
     /**
      * Saves a PGPSecretKeyRing in the DB. This will only work if a corresponding public keyring
      * is already in the database!
@@ -357,6 +909,19 @@ public class ProviderHelper {
         Uri uri = KeyRingData.buildSecretKeyRingUri(Long.toString(masterKeyId));
         context.getContentResolver().insert(uri, values);
 
+        KeyRingCache.invalidate(masterKeyId);
+    }
+
+    /**
+     * Collects the operation saving a PGPSecretKeyRing, without writing anything. Its public
+     * keyring must be in the database, or saved earlier in the same batch. A secret keyring that
+     * is already in the database is replaced.
+     */
+    public static void buildSaveKeyRingOperations(Context context, PGPSecretKeyRing keyRing,
+                                                  ArrayList<ContentProviderOperation> operations)
+            throws IOException {
+        long masterKeyId = keyRing.getPublicKey().getKeyID();
+        operations.add(buildSecretKeyRingOperations(masterKeyId, keyRing));
     }
 
     /**
@@ -368,6 +933,7 @@ public class ProviderHelper {
 
         // delete secret keyring (so it isn't unnecessarily saved by public-saveKeyRing below)
         context.getContentResolver().delete(KeyRingData.buildSecretKeyRingUri(Long.toString(masterKeyId)), null, null);
+        KeyRingCache.invalidate(masterKeyId);
 
         // save public keyring
         saveKeyRing(context, pubRing);
@@ -375,52 +941,77 @@ public class ProviderHelper {
     }
 
     /**
-     * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
+     * Build ContentProviderOperation to add a PGPSecretKeyRing to database
      */
-    private static ContentProviderOperation buildPublicKeyOperations(Context context,
-                                                                     long masterKeyId, PGPPublicKey key, int rank) throws IOException {
-
+    private static ContentProviderOperation buildSecretKeyRingOperations(long masterKeyId,
+                                                                         PGPSecretKeyRing keyRing)
+            throws IOException {
         ContentValues values = new ContentValues();
-        values.put(Keys.MASTER_KEY_ID, masterKeyId);
-        values.put(Keys.RANK, rank);
+        values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
+        values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+
+        Uri uri = KeyRingData.buildSecretKeyRingUri(Long.toString(masterKeyId));
 
-        values.put(Keys.KEY_ID, key.getKeyID());
-        values.put(Keys.KEY_SIZE, key.getBitStrength());
-        values.put(Keys.ALGORITHM, key.getAlgorithm());
-        values.put(Keys.FINGERPRINT, key.getFingerprint());
+        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+    }
 
-        values.put(Keys.CAN_CERTIFY, (PgpKeyHelper.isCertificationKey(key)));
-        values.put(Keys.CAN_SIGN, (PgpKeyHelper.isSigningKey(key)));
-        values.put(Keys.CAN_ENCRYPT, PgpKeyHelper.isEncryptionKey(key));
-        values.put(Keys.IS_REVOKED, key.isRevoked());
+    /**
+     * Build the keys rows of a keyRing, in keyring order
+     */
+    private static List<ContentValues> buildPublicKeyValues(long masterKeyId, PGPPublicKeyRing keyRing) {
+        List<ContentValues> result = new ArrayList<ContentValues>();
 
-        values.put(Keys.CREATION, PgpKeyHelper.getCreationDate(key).getTime() / 1000);
-        Date expiryDate = PgpKeyHelper.getExpiryDate(key);
-        if (expiryDate != null) {
-            values.put(Keys.EXPIRY, expiryDate.getTime() / 1000);
+        int rank = 0;
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+            ContentValues values = new ContentValues();
+            values.put(Keys.MASTER_KEY_ID, masterKeyId);
+            values.put(Keys.RANK, rank);
+
+            values.put(Keys.KEY_ID, key.getKeyID());
+            values.put(Keys.KEY_SIZE, key.getBitStrength());
+            values.put(Keys.ALGORITHM, key.getAlgorithm());
+            values.put(Keys.FINGERPRINT, key.getFingerprint());
+
+            values.put(Keys.CAN_CERTIFY, (PgpKeyHelper.isCertificationKey(key)));
+            values.put(Keys.CAN_SIGN, (PgpKeyHelper.isSigningKey(key)));
+            values.put(Keys.CAN_ENCRYPT, PgpKeyHelper.isEncryptionKey(key));
+            values.put(Keys.IS_REVOKED, key.isRevoked());
+
+            values.put(Keys.CREATION, PgpKeyHelper.getCreationDate(key).getTime() / 1000);
+            Date expiryDate = PgpKeyHelper.getExpiryDate(key);
+            if (expiryDate != null) {
+                values.put(Keys.EXPIRY, expiryDate.getTime() / 1000);
+            }
+
+            result.add(values);
+            ++rank;
         }
 
+        return result;
+    }
+
+    /**
+     * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
+     */
+    private static ContentProviderOperation buildPublicKeyOperations(long masterKeyId,
+                                                                     ContentValues values) {
         Uri uri = Keys.buildKeysUri(Long.toString(masterKeyId));
 
         return ContentProviderOperation.newInsert(uri).withValues(values).build();
     }
 
     /**
-     * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
+     * Build ContentProviderOperation to add a certification to database corresponding to a keyRing
      */
-    private static ContentProviderOperation buildCertOperations(long masterKeyId,
-                                                                int rank,
-                                                                PGPSignature cert,
-                                                                int verified)
-            throws IOException {
+    private static ContentProviderOperation buildCertOperations(long masterKeyId, CertRow cert) {
         ContentValues values = new ContentValues();
         values.put(Certs.MASTER_KEY_ID, masterKeyId);
-        values.put(Certs.RANK, rank);
-        values.put(Certs.KEY_ID_CERTIFIER, cert.getKeyID());
-        values.put(Certs.TYPE, cert.getSignatureType());
-        values.put(Certs.CREATION, cert.getCreationTime().getTime() / 1000);
-        values.put(Certs.VERIFIED, verified);
-        values.put(Certs.DATA, cert.getEncoded());
+        values.put(Certs.RANK, cert.rank);
+        values.put(Certs.KEY_ID_CERTIFIER, cert.certifier);
+        values.put(Certs.TYPE, cert.type);
+        values.put(Certs.CREATION, cert.creation);
+        values.put(Certs.VERIFIED, cert.verified);
+        values.put(Certs.DATA, cert.data);
 
         Uri uri = Certs.buildCertsUri(Long.toString(masterKeyId));
 
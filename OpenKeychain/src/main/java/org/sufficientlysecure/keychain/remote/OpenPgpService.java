@@ -19,10 +19,10 @@ package org.sufficientlysecure.keychain.remote;
 
 import android.app.PendingIntent;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
+import android.database.ContentObserver;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 
 import org.openintents.openpgp.IOpenPgpService;
 import org.openintents.openpgp.OpenPgpError;
@@ -36,21 +36,107 @@ import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyResult;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncrypt;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.remote.ui.RemoteServiceActivity;
 import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.ui.ImportKeysActivity;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OperationTrace;
 
+import java.io.FileDescriptor;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 public class OpenPgpService extends RemoteService {
 
+    // how long resolved emails are reused, keyring changes clear them earlier
+    private static final long EMAIL_CACHE_MILLIS = 60 * 1000;
+
+    // request metrics, guarded by this, shown by dumpsys
+    private long mRequestCount = 0;
+    private long mTotalRunMillis = 0;
+    private long mMaxRunMillis = 0;
+    private int mRunningRequests = 0;
+    private int mMaxRunningRequests = 0;
+
+    private static class ResolvedEmail {
+        final long[] mMasterKeyIds;
+        final long mTime;
+
+        ResolvedEmail(long[] masterKeyIds, long time) {
+            mMasterKeyIds = masterKeyIds;
+            mTime = time;
+        }
+    }
+
+    // resolved emails by lower cased email, guarded by itself
+    private final HashMap<String, ResolvedEmail> mEmailCache = new HashMap<String, ResolvedEmail>();
+    // increased on every keyring change, so resolutions started before it are not cached
+    private int mEmailCacheGeneration = 0;
+
+    private final ContentObserver mKeyRingObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            synchronized (mEmailCache) {
+                mEmailCache.clear();
+                mEmailCacheGeneration++;
+            }
+        }
+    };
+
+    /**
+     * Resolves emails to master key ids of keys that can be encrypted to, using the cache where
+     * possible and a batched query for the rest.
+     *
+     * @return master key ids of each email, keyed by the lower cased email
+     */
+    private HashMap<String, long[]> resolveEmails(String[] emails) {
+        HashMap<String, long[]> resolved = new HashMap<String, long[]>();
+        ArrayList<String> uncached = new ArrayList<String>();
+        int generation;
+        synchronized (mEmailCache) {
+            long now = SystemClock.elapsedRealtime();
+            for (String email : emails) {
+                String key = email.trim().toLowerCase(Locale.US);
+                ResolvedEmail cached = mEmailCache.get(key);
+                if (cached != null && now - cached.mTime < EMAIL_CACHE_MILLIS) {
+                    resolved.put(key, cached.mMasterKeyIds);
+                } else {
+                    uncached.add(key);
+                }
+            }
+            generation = mEmailCacheGeneration;
+        }
+        if (uncached.isEmpty()) {
+            return resolved;
+        }
+
+        HashMap<String, ArrayList<Long>> found =
+                ProviderHelper.getMasterKeyIdsByEmails(this, uncached);
+        synchronized (mEmailCache) {
+            long now = SystemClock.elapsedRealtime();
+            for (String email : uncached) {
+                ArrayList<Long> masterKeyIds = found.get(email);
+                long[] ids = new long[masterKeyIds == null ? 0 : masterKeyIds.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = masterKeyIds.get(i);
+                }
+                resolved.put(email, ids);
+                if (generation == mEmailCacheGeneration) {
+                    mEmailCache.put(email, new ResolvedEmail(ids, now));
+                }
+            }
+        }
+        return resolved;
+    }
+
     /**
      * Search database for key ids based on emails.
      *
@@ -66,18 +152,17 @@ public class OpenPgpService extends RemoteService {
         ArrayList<String> missingUserIds = new ArrayList<String>();
         ArrayList<String> duplicateUserIds = new ArrayList<String>();
 
+        HashMap<String, long[]> resolved = resolveEmails(encryptionUserIds);
         for (String email : encryptionUserIds) {
-            Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailUri(email);
-            Cursor cur = getContentResolver().query(uri, null, null, null, null);
-            if (cur.moveToFirst()) {
-                long id = cur.getLong(cur.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                keyIds.add(id);
+            long[] ids = resolved.get(email.trim().toLowerCase(Locale.US));
+            if (ids.length > 0) {
+                keyIds.add(ids[0]);
             } else {
                 missingUserIdsCheck = true;
                 missingUserIds.add(email);
                 Log.d(Constants.TAG, "user id missing");
             }
-            if (cur.moveToNext()) {
+            if (ids.length > 1) {
                 duplicateUserIdsCheck = true;
                 duplicateUserIds.add(email);
                 Log.d(Constants.TAG, "more than one user id with the same email");
@@ -171,6 +256,7 @@ public class OpenPgpService extends RemoteService {
                         .signatureForceV3(false)
                         .signatureKeyId(accSettings.getKeyId())
                         .signaturePassphrase(passphrase);
+                builder.traceSink(OperationTrace.LOG_SINK);
                 builder.build().execute();
             } finally {
                 is.close();
@@ -261,6 +347,7 @@ public class OpenPgpService extends RemoteService {
                     builder.signatureKeyId(Id.key.none);
                 }
                 // execute PGP operation!
+                builder.traceSink(OperationTrace.LOG_SINK);
                 builder.build().execute();
             } finally {
                 is.close();
@@ -300,6 +387,7 @@ public class OpenPgpService extends RemoteService {
                         .passphrase(passphrase);
 
                 // TODO: currently does not support binary signed-only content
+                builder.traceSink(OperationTrace.LOG_SINK);
                 PgpDecryptVerifyResult decryptVerifyResult = builder.build().execute();
 
                 if (PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED == decryptVerifyResult.getStatus()) {
@@ -431,11 +519,58 @@ public class OpenPgpService extends RemoteService {
         return null;
     }
 
-    // TODO: multi-threading
+    /**
+     * Runs request on the calling binder thread, logging its execution time. Binder threads
+     * already execute the requests of different clients in parallel, handing them over to a
+     * separate pool would only limit that further.
+     */
+    private Intent executeTimed(String action, Callable<Intent> request) {
+        synchronized (this) {
+            mRunningRequests++;
+            mMaxRunningRequests = Math.max(mMaxRunningRequests, mRunningRequests);
+        }
+        long startTime = SystemClock.elapsedRealtime();
+        try {
+            return request.call();
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "request failed", e);
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_ERROR,
+                    new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage()));
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+            return result;
+        } finally {
+            long runMillis = SystemClock.elapsedRealtime() - startTime;
+            int running;
+            synchronized (this) {
+                running = mRunningRequests--;
+                mRequestCount++;
+                mTotalRunMillis += runMillis;
+                mMaxRunMillis = Math.max(mMaxRunMillis, runMillis);
+            }
+            Log.d(Constants.TAG, "OpenPgpService: " + action + " ran " + runMillis + "ms ("
+                    + running + " requests running)");
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        synchronized (this) {
+            writer.println("requests: " + mRequestCount);
+            writer.println("average run time: "
+                    + (mRequestCount == 0 ? 0 : mTotalRunMillis / mRequestCount) + "ms");
+            writer.println("max run time: " + mMaxRunMillis + "ms");
+            writer.println("running requests: " + mRunningRequests
+                    + " (max " + mMaxRunningRequests + ")");
+        }
+    }
+
     private final IOpenPgpService.Stub mBinder = new IOpenPgpService.Stub() {
 
         @Override
-        public Intent execute(Intent data, ParcelFileDescriptor input, ParcelFileDescriptor output) {
+        public Intent execute(final Intent data, final ParcelFileDescriptor input,
+                              final ParcelFileDescriptor output) {
+            // binder calling identity is only available on this thread
             Intent errorResult = checkRequirements(data);
             if (errorResult != null) {
                 return errorResult;
@@ -452,19 +587,31 @@ public class OpenPgpService extends RemoteService {
                 return getCreateAccountIntent(data, accName);
             }
 
-            String action = data.getAction();
+            final String action = data.getAction();
             if (OpenPgpApi.ACTION_SIGN.equals(action)) {
-                return signImpl(data, input, output, accSettings);
-            } else if (OpenPgpApi.ACTION_ENCRYPT.equals(action)) {
-                return encryptAndSignImpl(data, input, output, accSettings, false);
-            } else if (OpenPgpApi.ACTION_SIGN_AND_ENCRYPT.equals(action)) {
-                return encryptAndSignImpl(data, input, output, accSettings, true);
+                return executeTimed(action, new Callable<Intent>() {
+                    @Override
+                    public Intent call() {
+                        return signImpl(data, input, output, accSettings);
+                    }
+                });
+            } else if (OpenPgpApi.ACTION_ENCRYPT.equals(action)
+                    || OpenPgpApi.ACTION_SIGN_AND_ENCRYPT.equals(action)) {
+                final boolean sign = OpenPgpApi.ACTION_SIGN_AND_ENCRYPT.equals(action);
+                return executeTimed(action, new Callable<Intent>() {
+                    @Override
+                    public Intent call() {
+                        return encryptAndSignImpl(data, input, output, accSettings, sign);
+                    }
+                });
             } else if (OpenPgpApi.ACTION_DECRYPT_VERIFY.equals(action)) {
-                String currentPkg = getCurrentCallingPackage();
-                Set<Long> allowedKeyIds =
-                    ProviderHelper.getAllKeyIdsForApp(mContext,
-                        ApiAccounts.buildBaseUri(currentPkg));
-                return decryptAndVerifyImpl(data, input, output, allowedKeyIds);
+                final Set<Long> allowedKeyIds = getAllowedKeyIds();
+                return executeTimed(action, new Callable<Intent>() {
+                    @Override
+                    public Intent call() {
+                        return decryptAndVerifyImpl(data, input, output, allowedKeyIds);
+                    }
+                });
             } else if (OpenPgpApi.ACTION_GET_KEY.equals(action)) {
                 return getKeyImpl(data);
             } else if (OpenPgpApi.ACTION_GET_KEY_IDS.equals(action)) {
@@ -476,6 +623,20 @@ public class OpenPgpService extends RemoteService {
 
     };
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true,
+                mKeyRingObserver);
+    }
+
+    @Override
+    public void onDestroy() {
+        getContentResolver().unregisterContentObserver(mKeyRingObserver);
+        super.onDestroy();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -19,12 +19,15 @@ package org.sufficientlysecure.keychain.remote;
 
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.Signature;
+import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Binder;
 
@@ -39,6 +42,11 @@ import org.sufficientlysecure.keychain.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Abstract service class for remote APIs that handle app registration and user input.
@@ -46,6 +54,25 @@ import java.util.Arrays;
 public abstract class RemoteService extends Service {
     Context mContext;
 
+    /*
+     * Per package caches of what is otherwise read from the database and package manager on
+     * every call. They are cleared whenever api apps or accounts change, and when a package is
+     * installed, replaced or removed, since its signature may have changed.
+     */
+    private final Object mCacheLock = new Object();
+    // incremented on every clear, a lookup that raced with a clear is not cached
+    private int mCacheGeneration = 0;
+    // packages that are registered and whose signature matched
+    private final Set<String> mAllowedPackages = new HashSet<String>();
+    // "package/account" -> settings
+    private final Map<String, AccountSettings> mAccountSettings =
+            new HashMap<String, AccountSettings>();
+    // package -> key ids of all its accounts
+    private final Map<String, Set<Long>> mAllowedKeyIds = new HashMap<String, Set<Long>>();
+
+    private ContentObserver mApiAppsObserver;
+    private BroadcastReceiver mPackageReceiver;
+
     public Context getContext() {
         return mContext;
     }
@@ -146,13 +173,57 @@ public abstract class RemoteService extends Service {
         String currentPkg = getCurrentCallingPackage();
         Log.d(Constants.TAG, "accountName: " + accountName);
 
+        String cacheKey = currentPkg + "/" + accountName;
+        int generation;
+        synchronized (mCacheLock) {
+            if (mAccountSettings.containsKey(cacheKey)) {
+                return mAccountSettings.get(cacheKey);
+            }
+            generation = mCacheGeneration;
+        }
+
         Uri uri = KeychainContract.ApiAccounts.buildByPackageAndAccountUri(currentPkg, accountName);
 
         AccountSettings settings = ProviderHelper.getApiAccountSettings(this, uri);
 
+        // missing accounts are not cached, the user is about to create them
+        if (settings != null) {
+            synchronized (mCacheLock) {
+                if (generation == mCacheGeneration) {
+                    mAccountSettings.put(cacheKey, settings);
+                }
+            }
+        }
+
         return settings; // can be null!
     }
 
+    /**
+     * Retrieves the key ids of all accounts of the application calling this remote service
+     */
+    protected Set<Long> getAllowedKeyIds() {
+        String currentPkg = getCurrentCallingPackage();
+
+        int generation;
+        synchronized (mCacheLock) {
+            Set<Long> keyIds = mAllowedKeyIds.get(currentPkg);
+            if (keyIds != null) {
+                return keyIds;
+            }
+            generation = mCacheGeneration;
+        }
+
+        Set<Long> keyIds = Collections.unmodifiableSet(ProviderHelper.getAllKeyIdsForApp(this,
+                KeychainContract.ApiAccounts.buildBaseUri(currentPkg)));
+        synchronized (mCacheLock) {
+            if (generation == mCacheGeneration) {
+                mAllowedKeyIds.put(currentPkg, keyIds);
+            }
+        }
+
+        return keyIds;
+    }
+
     protected Intent getCreateAccountIntent(Intent data, String accountName) {
         String packageName = getCurrentCallingPackage();
         Log.d(Constants.TAG, "accountName: " + accountName);
@@ -221,6 +292,14 @@ public abstract class RemoteService extends Service {
     private boolean isPackageAllowed(String packageName) throws WrongPackageSignatureException {
         Log.d(Constants.TAG, "isPackageAllowed packageName: " + packageName);
 
+        int generation;
+        synchronized (mCacheLock) {
+            if (mAllowedPackages.contains(packageName)) {
+                return true;
+            }
+            generation = mCacheGeneration;
+        }
+
         ArrayList<String> allowedPkgs = ProviderHelper.getRegisteredApiApps(this);
         Log.d(Constants.TAG, "allowed: " + allowedPkgs);
 
@@ -240,6 +319,11 @@ public abstract class RemoteService extends Service {
             if (Arrays.equals(currentSig, storedSig)) {
                 Log.d(Constants.TAG,
                         "Package signature is correct! (equals signature from database)");
+                synchronized (mCacheLock) {
+                    if (generation == mCacheGeneration) {
+                        mAllowedPackages.add(packageName);
+                    }
+                }
                 return true;
             } else {
                 throw new WrongPackageSignatureException(
@@ -252,10 +336,50 @@ public abstract class RemoteService extends Service {
         return false;
     }
 
+    private void clearCaches() {
+        synchronized (mCacheLock) {
+            mCacheGeneration++;
+            mAllowedPackages.clear();
+            mAccountSettings.clear();
+            mAllowedKeyIds.clear();
+        }
+    }
+
+
     @Override
     public void onCreate() {
         super.onCreate();
         mContext = this;
+
+        // no handler, changes are delivered on a binder thread
+        mApiAppsObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                clearCaches();
+            }
+        };
+        getContentResolver().registerContentObserver(KeychainContract.ApiApps.CONTENT_URI, true,
+                mApiAppsObserver);
+
+        mPackageReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                clearCaches();
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        registerReceiver(mPackageReceiver, filter);
+    }
+
+    @Override
+    public void onDestroy() {
+        getContentResolver().unregisterContentObserver(mApiAppsObserver);
+        unregisterReceiver(mPackageReceiver);
+        super.onDestroy();
     }
 
 }
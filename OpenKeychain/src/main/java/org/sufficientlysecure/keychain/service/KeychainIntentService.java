@@ -19,6 +19,7 @@ package org.sufficientlysecure.keychain.service;
 
 import android.app.IntentService;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
@@ -55,10 +56,12 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.util.FederatedKeyServer;
 import org.sufficientlysecure.keychain.util.HkpKeyServer;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.KeychainServiceListener;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OperationTrace;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
@@ -105,6 +108,7 @@ public class KeychainIntentService extends IntentService
 
     public static final String ACTION_UPLOAD_KEYRING = Constants.INTENT_PREFIX + "UPLOAD_KEYRING";
     public static final String ACTION_DOWNLOAD_AND_IMPORT_KEYS = Constants.INTENT_PREFIX + "QUERY_KEYRING";
+    public static final String ACTION_REFRESH_KEYRINGS = Constants.INTENT_PREFIX + "REFRESH_KEYRINGS";
 
     public static final String ACTION_CERTIFY_KEYRING = Constants.INTENT_PREFIX + "SIGN_KEYRING";
 
@@ -115,6 +119,8 @@ public class KeychainIntentService extends IntentService
     // possible targets:
     public static final int TARGET_BYTES = 1;
     public static final int TARGET_URI = 2;
+    // content uris for input and output, streamed without holding the data in memory
+    public static final int TARGET_STREAM = 3;
 
     // encrypt
     public static final String ENCRYPT_SIGNATURE_KEY_ID = "secret_key_id";
@@ -124,6 +130,8 @@ public class KeychainIntentService extends IntentService
     public static final String ENCRYPT_MESSAGE_BYTES = "message_bytes";
     public static final String ENCRYPT_INPUT_FILE = "input_file";
     public static final String ENCRYPT_OUTPUT_FILE = "output_file";
+    public static final String ENCRYPT_INPUT_URI = "input_uri";
+    public static final String ENCRYPT_OUTPUT_URI = "output_uri";
     public static final String ENCRYPT_SYMMETRIC_PASSPHRASE = "passphrase";
 
     // decrypt/verify
@@ -146,6 +154,9 @@ public class KeychainIntentService extends IntentService
 
     // import key
     public static final String IMPORT_KEY_LIST = "import_key_list";
+    public static final String IMPORT_KEY_URI = "import_key_uri";
+    public static final String IMPORT_KEY_INDICES = "import_key_indices";
+    public static final String IMPORT_KEY_MASTER_KEY_IDS = "import_key_master_key_ids";
 
     // export key
     public static final String EXPORT_OUTPUT_STREAM = "export_output_stream";
@@ -175,6 +186,8 @@ public class KeychainIntentService extends IntentService
 
     // encrypt
     public static final String RESULT_BYTES = "encrypted_data";
+    // encrypt, decrypt/verify with TARGET_STREAM
+    public static final String RESULT_URI = "result_uri";
 
     // decrypt/verify
     public static final String RESULT_DECRYPTED_BYTES = "decrypted_data";
@@ -184,6 +197,12 @@ public class KeychainIntentService extends IntentService
     public static final String RESULT_IMPORT_ADDED = "added";
     public static final String RESULT_IMPORT_UPDATED = "updated";
     public static final String RESULT_IMPORT_BAD = "bad";
+    public static final String RESULT_IMPORT_KEYS_PER_SECOND = "keys_per_second";
+
+    // refresh, in addition to the import results
+    public static final String RESULT_REFRESH_UNCHANGED = "unchanged";
+    public static final String RESULT_REFRESH_FAILED = "failed";
+    public static final String RESULT_REFRESH_BYTES = "bytes";
 
     // export
     public static final String RESULT_EXPORT = "exported";
@@ -247,7 +266,6 @@ public class KeychainIntentService extends IntentService
                 long inLength;
                 InputData inputData;
                 OutputStream outStream;
-//                String streamFilename = null;
                 switch (target) {
                     case TARGET_BYTES: /* encrypting bytes directly */
                         byte[] bytes = data.getByteArray(ENCRYPT_MESSAGE_BYTES);
@@ -279,30 +297,11 @@ public class KeychainIntentService extends IntentService
 
                         break;
 
-                    // TODO: not used currently
-//                    case TARGET_STREAM: /* Encrypting stream from content uri */
-//                        Uri providerUri = (Uri) data.getParcelable(ENCRYPT_PROVIDER_URI);
-//
-//                        // InputStream
-//                        InputStream in = getContentResolver().openInputStream(providerUri);
-//                        inLength = PgpHelper.getLengthOfStream(in);
-//                        inputData = new InputData(in, inLength);
-//
-//                        // OutputStream
-//                        try {
-//                            while (true) {
-//                                streamFilename = PgpHelper.generateRandomFilename(32);
-//                                if (streamFilename == null) {
-//                                    throw new PgpGeneralException("couldn't generate random file name");
-//                                }
-//                                openFileInput(streamFilename).close();
-//                            }
-//                        } catch (FileNotFoundException e) {
-//                            // found a name that isn't used yet
-//                        }
-//                        outStream = openFileOutput(streamFilename, Context.MODE_PRIVATE);
-//
-//                        break;
+                    case TARGET_STREAM: /* encrypting stream from content uri */
+                        inputData = openInputUri((Uri) data.getParcelable(ENCRYPT_INPUT_URI));
+                        outStream = openOutputUri((Uri) data.getParcelable(ENCRYPT_OUTPUT_URI));
+
+                        break;
 
                     default:
                         throw new PgpGeneralException("No target choosen!");
@@ -327,6 +326,15 @@ public class KeychainIntentService extends IntentService
                         .signaturePassphrase(
                                 PassphraseCacheService.getCachedPassphrase(this, signatureKeyId));
 
+                // files and streams are signed as binary data, they may not be text
+                builder.binaryInput(target != TARGET_BYTES);
+
+                // files and streams may be large enough for running the stages on separate
+                // cores to pay off
+                builder.pipelined(target != TARGET_BYTES
+                        && Runtime.getRuntime().availableProcessors() > 1);
+
+                builder.traceSink(OperationTrace.LOG_SINK);
                 builder.build().execute();
 
                 outStream.close();
@@ -346,11 +354,10 @@ public class KeychainIntentService extends IntentService
                         // nothing, file was written, just send okay
 
                         break;
-//                    case TARGET_STREAM:
-//                        String uri = DataStream.buildDataStreamUri(streamFilename).toString();
-//                        resultData.putString(RESULT_URI, uri);
-//
-//                        break;
+                    case TARGET_STREAM:
+                        resultData.putParcelable(RESULT_URI, data.getParcelable(ENCRYPT_OUTPUT_URI));
+
+                        break;
                 }
 
                 OtherHelper.logDebugBundle(resultData, "resultData");
@@ -371,7 +378,6 @@ public class KeychainIntentService extends IntentService
                 long inLength;
                 InputData inputData;
                 OutputStream outStream;
-                String streamFilename = null;
                 switch (target) {
                     case TARGET_BYTES: /* decrypting bytes directly */
                         inStream = new ByteArrayInputStream(bytes);
@@ -405,30 +411,11 @@ public class KeychainIntentService extends IntentService
 
                         break;
 
-                    // TODO: not used, maybe contains code useful for new decrypt method for files?
-//                    case TARGET_STREAM: /* decrypting stream from content uri */
-//                        Uri providerUri = (Uri) data.getParcelable(ENCRYPT_PROVIDER_URI);
-//
-//                        // InputStream
-//                        InputStream in = getContentResolver().openInputStream(providerUri);
-//                        inLength = PgpHelper.getLengthOfStream(in);
-//                        inputData = new InputData(in, inLength);
-//
-//                        // OutputStream
-//                        try {
-//                            while (true) {
-//                                streamFilename = PgpHelper.generateRandomFilename(32);
-//                                if (streamFilename == null) {
-//                                    throw new PgpGeneralException("couldn't generate random file name");
-//                                }
-//                                openFileInput(streamFilename).close();
-//                            }
-//                        } catch (FileNotFoundException e) {
-//                            // found a name that isn't used yet
-//                        }
-//                        outStream = openFileOutput(streamFilename, Context.MODE_PRIVATE);
-//
-//                        break;
+                    case TARGET_STREAM: /* decrypting stream from content uri */
+                        inputData = openInputUri((Uri) data.getParcelable(ENCRYPT_INPUT_URI));
+                        outStream = openOutputUri((Uri) data.getParcelable(ENCRYPT_OUTPUT_URI));
+
+                        break;
 
                     default:
                         throw new PgpGeneralException("No target choosen!");
@@ -447,6 +434,7 @@ public class KeychainIntentService extends IntentService
                 builder.allowSymmetricDecryption(true)
                         .passphrase(passphrase);
 
+                builder.traceSink(OperationTrace.LOG_SINK);
                 PgpDecryptVerifyResult decryptVerifyResult = builder.build().execute();
 
                 outStream.close();
@@ -464,11 +452,10 @@ public class KeychainIntentService extends IntentService
                         // nothing, file was written, just send okay and verification bundle
 
                         break;
-//                    case TARGET_STREAM:
-//                        String uri = DataStream.buildDataStreamUri(streamFilename).toString();
-//                        resultData.putString(RESULT_URI, uri);
-//
-//                        break;
+                    case TARGET_STREAM:
+                        resultData.putParcelable(RESULT_URI, data.getParcelable(ENCRYPT_OUTPUT_URI));
+
+                        break;
                 }
 
                 OtherHelper.logDebugBundle(resultData, "resultData");
@@ -624,12 +611,24 @@ public class KeychainIntentService extends IntentService
             }
         } else if (ACTION_IMPORT_KEYRING.equals(action)) {
             try {
-                List<ImportKeysListEntry> entries = data.getParcelableArrayList(IMPORT_KEY_LIST);
-
                 Bundle resultData = new Bundle();
 
                 PgpImportExport pgpImportExport = new PgpImportExport(this, this);
-                resultData = pgpImportExport.importKeyRings(entries);
+                if (data.containsKey(IMPORT_KEY_URI)) {
+                    // read the selected keyrings from the file again, one batch at a time
+                    Uri keyUri = data.getParcelable(IMPORT_KEY_URI);
+                    InputStream in = getContentResolver().openInputStream(keyUri);
+                    try {
+                        resultData = pgpImportExport.importKeyRings(in,
+                                data.getIntArray(IMPORT_KEY_INDICES),
+                                data.getLongArray(IMPORT_KEY_MASTER_KEY_IDS));
+                    } finally {
+                        in.close();
+                    }
+                } else {
+                    List<ImportKeysListEntry> entries = data.getParcelableArrayList(IMPORT_KEY_LIST);
+                    resultData = pgpImportExport.importKeyRings(entries);
+                }
 
                 sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
@@ -721,10 +720,12 @@ public class KeychainIntentService extends IntentService
                 ArrayList<ImportKeysListEntry> entries = data.getParcelableArrayList(DOWNLOAD_KEY_LIST);
                 String keyServer = data.getString(DOWNLOAD_KEY_SERVER);
 
-                // this downloads the keys and places them into the ImportKeysListEntry entries
-                HkpKeyServer server = new HkpKeyServer(keyServer);
-
                 for (ImportKeysListEntry entry : entries) {
+                    // this downloads the keys and places them into the ImportKeysListEntry entries
+                    // prefer the keyserver the entry was found on
+                    HkpKeyServer server = new HkpKeyServer(entry.getKeyServer() != null
+                            ? entry.getKeyServer() : keyServer);
+
                     // if available use complete fingerprint for get request
                     byte[] downloadedKeyBytes;
                     if (entry.getFingerPrintHex() != null) {
@@ -787,6 +788,18 @@ public class KeychainIntentService extends IntentService
             } catch (Exception e) {
                 sendErrorToHandler(e);
             }
+        } else if (ACTION_REFRESH_KEYRINGS.equals(action)) {
+            try {
+                FederatedKeyServer keyServer = new FederatedKeyServer(
+                        Preferences.getPreferences(this).getKeyServers());
+
+                PgpImportExport pgpImportExport = new PgpImportExport(this, this, this);
+                Bundle resultData = pgpImportExport.refreshKeyRings(keyServer);
+
+                sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
+            } catch (Exception e) {
+                sendErrorToHandler(e);
+            }
         } else if (ACTION_CERTIFY_KEYRING.equals(action)) {
             try {
 
@@ -825,6 +838,29 @@ public class KeychainIntentService extends IntentService
         }
     }
 
+    /**
+     * Opens a content uri for streaming input. Pipes have no known length, progress is then
+     * not reported by the operations.
+     */
+    private InputData openInputUri(Uri uri) throws IOException, PgpGeneralException {
+        if (uri == null) {
+            throw new PgpGeneralException("No input uri given!");
+        }
+        AssetFileDescriptor fd = getContentResolver().openAssetFileDescriptor(uri, "r");
+        long length = fd.getLength();
+        if (length == AssetFileDescriptor.UNKNOWN_LENGTH) {
+            length = 0;
+        }
+        return new InputData(fd.createInputStream(), length);
+    }
+
+    private OutputStream openOutputUri(Uri uri) throws IOException, PgpGeneralException {
+        if (uri == null) {
+            throw new PgpGeneralException("No output uri given!");
+        }
+        return getContentResolver().openOutputStream(uri, "w");
+    }
+
     private void sendErrorToHandler(Exception e) {
         // Service was canceled. Do not send error to handler.
         if (this.mIsCanceled) {
@@ -29,9 +29,11 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v4.util.LongSparseArray;
 import android.util.Log;
 
@@ -46,16 +48,23 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.helper.Preferences;
 import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
-import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This service runs in its own process, but is available to all other processes as the main
  * passphrase cache. Use the static methods addCachedPassphrase and getCachedPassphrase for
  * convenience.
+ *
+ * Every calling process additionally keeps a local copy of the passphrases it has seen, so
+ * repeated lookups are answered from memory without an Intent round-trip to this service. The
+ * local copies follow the ttl of this service and are dropped on its timeout broadcast, or when
+ * a different passphrase is cached for the same key.
  */
 public class PassphraseCacheService extends Service {
     public static final String TAG = Constants.TAG + ": PassphraseCacheService";
@@ -67,14 +76,43 @@ public class PassphraseCacheService extends Service {
 
     public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE = Constants.INTENT_PREFIX
             + "PASSPHRASE_CACHE_BROADCAST";
+    public static final String BROADCAST_ACTION_PASSPHRASE_CACHE_INVALIDATE =
+            Constants.INTENT_PREFIX + "PASSPHRASE_CACHE_INVALIDATE";
 
     public static final String EXTRA_TTL = "ttl";
     public static final String EXTRA_KEY_ID = "key_id";
+    public static final String EXTRA_KEY_IDS = "key_ids";
+    public static final String EXTRA_MASTER_KEY_IDS = "master_key_ids";
     public static final String EXTRA_PASSPHRASE = "passphrase";
+    public static final String EXTRA_PASSPHRASES = "passphrases";
     public static final String EXTRA_MESSENGER = "messenger";
 
     private static final int REQUEST_ID = 0;
     private static final long DEFAULT_TTL = 15;
+    private static final long GET_TIMEOUT = 3000;
+
+    /**
+     * Process local copy of cached passphrases, keyed by the key id they were requested with
+     */
+    private static final ConcurrentHashMap<Long, LocalEntry> sLocalCache =
+            new ConcurrentHashMap<Long, LocalEntry>();
+
+    private static BroadcastReceiver sLocalTimeoutReceiver;
+    private static HandlerThread sReplyThread;
+
+    private static class LocalEntry {
+        final long masterKeyId;
+        final String passphrase;
+        final long ttl;
+        volatile long refreshed;
+
+        LocalEntry(long masterKeyId, String passphrase, long ttl) {
+            this.masterKeyId = masterKeyId;
+            this.passphrase = passphrase;
+            this.ttl = ttl;
+            this.refreshed = SystemClock.elapsedRealtime();
+        }
+    }
 
     private BroadcastReceiver mIntentReceiver;
 
@@ -94,9 +132,12 @@ public class PassphraseCacheService extends Service {
     public static void addCachedPassphrase(Context context, long keyId, String passphrase) {
         Log.d(TAG, "cacheNewPassphrase() for " + keyId);
 
+        long ttl = Preferences.getPreferences(context).getPassphraseCacheTtl();
+        putLocal(context, keyId, keyId, passphrase, ttl);
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_ADD);
-        intent.putExtra(EXTRA_TTL, Preferences.getPreferences(context).getPassphraseCacheTtl());
+        intent.putExtra(EXTRA_TTL, ttl);
         intent.putExtra(EXTRA_PASSPHRASE, passphrase);
         intent.putExtra(EXTRA_KEY_ID, keyId);
 
@@ -104,59 +145,176 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Gets a cached passphrase from memory by sending an intent to the service. This method is
-     * designed to wait until the service returns the passphrase.
+     * Gets a cached passphrase. Passphrases known to the calling process are returned directly,
+     * otherwise an intent is sent to the service and this method waits until the service returns
+     * the passphrase.
      *
      * @param context
      * @param keyId
      * @return passphrase or null (if no passphrase is cached for this keyId)
      */
     public static String getCachedPassphrase(Context context, long keyId) {
+        String passphrase = getLocal(context, keyId);
+        if (passphrase != null) {
+            return passphrase;
+        }
+
         Log.d(TAG, "getCachedPassphrase() get masterKeyId for " + keyId);
 
+        return getCachedPassphrases(context, new long[]{keyId}).get(keyId);
+    }
+
+    /**
+     * Gets cached passphrases for several keys at once. Only the keys not known to the calling
+     * process are requested from the service, using a single intent.
+     *
+     * @param context
+     * @param keyIds
+     * @return map from key id to passphrase, keys without cached passphrase are missing
+     */
+    public static Map<Long, String> getCachedPassphrases(Context context, long[] keyIds) {
+        Map<Long, String> result = new HashMap<Long, String>(keyIds.length);
+
+        long[] missing = new long[keyIds.length];
+        int missingCount = 0;
+        for (long keyId : keyIds) {
+            String passphrase = getLocal(context, keyId);
+            if (passphrase != null) {
+                result.put(keyId, passphrase);
+            } else {
+                missing[missingCount++] = keyId;
+            }
+        }
+        if (missingCount == 0) {
+            return result;
+        }
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_GET);
 
         final Object mutex = new Object();
         final Bundle returnBundle = new Bundle();
 
-        HandlerThread handlerThread = new HandlerThread("getPassphraseThread");
-        handlerThread.start();
-        Handler returnHandler = new Handler(handlerThread.getLooper()) {
+        Handler returnHandler = new Handler(getReplyLooper()) {
             @Override
             public void handleMessage(Message message) {
-                if (message.obj != null) {
-                    String passphrase = ((Bundle) message.obj).getString(EXTRA_PASSPHRASE);
-                    returnBundle.putString(EXTRA_PASSPHRASE, passphrase);
-                }
                 synchronized (mutex) {
+                    if (message.obj != null) {
+                        returnBundle.putAll((Bundle) message.obj);
+                    }
                     mutex.notify();
                 }
-                // quit handlerThread
-                getLooper().quit();
             }
         };
 
         // Create a new Messenger for the communication back
         Messenger messenger = new Messenger(returnHandler);
-        intent.putExtra(EXTRA_KEY_ID, keyId);
+        long[] requested = new long[missingCount];
+        System.arraycopy(missing, 0, requested, 0, missingCount);
+        intent.putExtra(EXTRA_KEY_IDS, requested);
         intent.putExtra(EXTRA_MESSENGER, messenger);
-        // send intent to this service
-        context.startService(intent);
 
-        // Wait on mutex until passphrase is returned to handlerThread
+        // Wait on mutex until passphrases are returned to the reply thread
         synchronized (mutex) {
+            // send intent to this service
+            context.startService(intent);
             try {
-                mutex.wait(3000);
+                mutex.wait(GET_TIMEOUT);
             } catch (InterruptedException e) {
             }
         }
 
-        if (returnBundle.containsKey(EXTRA_PASSPHRASE)) {
-            return returnBundle.getString(EXTRA_PASSPHRASE);
-        } else {
+        long[] returnedKeyIds;
+        long[] returnedMasterKeyIds;
+        String[] returnedPassphrases;
+        synchronized (mutex) {
+            returnedKeyIds = returnBundle.getLongArray(EXTRA_KEY_IDS);
+            returnedMasterKeyIds = returnBundle.getLongArray(EXTRA_MASTER_KEY_IDS);
+            returnedPassphrases = returnBundle.getStringArray(EXTRA_PASSPHRASES);
+        }
+        if (returnedKeyIds == null) {
+            return result;
+        }
+
+        long ttl = Preferences.getPreferences(context).getPassphraseCacheTtl();
+        for (int i = 0; i < returnedKeyIds.length; i++) {
+            if (returnedPassphrases[i] != null) {
+                result.put(returnedKeyIds[i], returnedPassphrases[i]);
+                putLocal(context, returnedKeyIds[i], returnedMasterKeyIds[i],
+                        returnedPassphrases[i], ttl);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * All replies of the service are handled on one long-lived thread, instead of starting a
+     * new HandlerThread for every lookup.
+     */
+    private static synchronized Looper getReplyLooper() {
+        if (sReplyThread == null) {
+            sReplyThread = new HandlerThread("getPassphraseThread");
+            sReplyThread.start();
+        }
+        return sReplyThread.getLooper();
+    }
+
+    /**
+     * Looks up a passphrase in the cache of the calling process. When more than half of the ttl
+     * has passed since the service last saw this passphrase, it is added again to reset the
+     * cache life cycle, like a lookup through the service would.
+     */
+    private static String getLocal(Context context, long keyId) {
+        LocalEntry entry = sLocalCache.get(keyId);
+        if (entry == null) {
             return null;
         }
+
+        long now = SystemClock.elapsedRealtime();
+        if (now - entry.refreshed > entry.ttl * 1000) {
+            sLocalCache.remove(keyId, entry);
+            return null;
+        }
+        if (now - entry.refreshed > entry.ttl * 500) {
+            entry.refreshed = now;
+            addCachedPassphrase(context, entry.masterKeyId, entry.passphrase);
+        }
+
+        return entry.passphrase;
+    }
+
+    private static void putLocal(Context context, long keyId, long masterKeyId,
+                                 String passphrase, long ttl) {
+        registerLocalTimeoutReceiver(context);
+        sLocalCache.put(keyId, new LocalEntry(masterKeyId, passphrase, ttl));
+    }
+
+    /**
+     * The timeout and invalidate broadcasts of the service reach every process of this app, drop
+     * the local copies of the passphrase when they arrive.
+     */
+    private static synchronized void registerLocalTimeoutReceiver(Context context) {
+        if (sLocalTimeoutReceiver != null) {
+            return;
+        }
+
+        sLocalTimeoutReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                long masterKeyId = intent.getLongExtra(EXTRA_KEY_ID, -1);
+                for (Map.Entry<Long, LocalEntry> entry : sLocalCache.entrySet()) {
+                    if (entry.getValue().masterKeyId == masterKeyId) {
+                        sLocalCache.remove(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        };
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE);
+        filter.addAction(BROADCAST_ACTION_PASSPHRASE_CACHE_INVALIDATE);
+        context.getApplicationContext().registerReceiver(sLocalTimeoutReceiver, filter);
     }
 
     /**
@@ -165,18 +323,7 @@ public class PassphraseCacheService extends Service {
      * @param keyId
      * @return
      */
-    private String getCachedPassphraseImpl(long keyId) {
-        Log.d(TAG, "getCachedPassphraseImpl() get masterKeyId for " + keyId);
-
-        // try to get master key id which is used as an identifier for cached passphrases
-        long masterKeyId = keyId;
-        if (masterKeyId != Id.key.symmetric) {
-            masterKeyId = ProviderHelper.getMasterKeyId(this,
-                    KeychainContract.KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(keyId)));
-            // Failure
-            if(masterKeyId == 0)
-                return null;
-        }
+    private String getCachedPassphraseImpl(long masterKeyId) {
         Log.d(TAG, "getCachedPassphraseImpl() for masterKeyId " + masterKeyId);
 
         // get cached passphrase
@@ -186,7 +333,7 @@ public class PassphraseCacheService extends Service {
             if (!hasPassphrase(this, masterKeyId)) {
                 Log.d(Constants.TAG, "Key has no passphrase! Caches and returns empty passphrase!");
 
-                addCachedPassphrase(this, masterKeyId, "");
+                addCachedPassphraseImpl(masterKeyId, "", getTtl());
                 return "";
             } else {
                 return null;
@@ -194,11 +341,44 @@ public class PassphraseCacheService extends Service {
         }
         // set it again to reset the cache life cycle
         Log.d(TAG, "Cache passphrase again when getting it!");
-        addCachedPassphrase(this, masterKeyId, cachedPassphrase);
+        addCachedPassphraseImpl(masterKeyId, cachedPassphrase, getTtl());
 
         return cachedPassphrase;
     }
 
+    /**
+     * Find the master key id which is used as an identifier for cached passphrases
+     *
+     * @param keyId
+     * @return master key id, or 0 if the key is unknown
+     */
+    private long getMasterKeyIdImpl(long keyId) {
+        if (keyId == Id.key.symmetric) {
+            return keyId;
+        }
+        return ProviderHelper.getMasterKeyIdBySubkeyId(this, keyId);
+    }
+
+    private long getTtl() {
+        return Preferences.getPreferences(this).getPassphraseCacheTtl();
+    }
+
+    /**
+     * Internal implementation to cache a passphrase, registers an alarm to let it time out.
+     * Called directly from within the service, so no further intent is needed.
+     */
+    private void addCachedPassphraseImpl(long keyId, String passphrase, long ttl) {
+        // add keyId and passphrase to memory
+        mPassphraseCache.put(keyId, passphrase);
+
+        if (ttl > 0) {
+            // register new alarm with keyId for this passphrase
+            long triggerTime = new Date().getTime() + (ttl * 1000);
+            AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
+            am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, keyId));
+        }
+    }
+
     /**
      * Checks if key has a passphrase.
      *
@@ -298,24 +478,39 @@ public class PassphraseCacheService extends Service {
                         "Received ACTION_PASSPHRASE_CACHE_ADD intent in onStartCommand() with keyId: "
                                 + keyId + ", ttl: " + ttl);
 
-                // add keyId and passphrase to memory
-                mPassphraseCache.put(keyId, passphrase);
-
-                if (ttl > 0) {
-                    // register new alarm with keyId for this passphrase
-                    long triggerTime = new Date().getTime() + (ttl * 1000);
-                    AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
-                    am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, keyId));
+                if (passphrase != null && !passphrase.equals(mPassphraseCache.get(keyId))) {
+                    // other processes may still hold the previous passphrase, the process
+                    // adding this one drops its copy too and fetches it again on next use
+                    Intent invalidate = new Intent(BROADCAST_ACTION_PASSPHRASE_CACHE_INVALIDATE);
+                    invalidate.setPackage(getPackageName());
+                    invalidate.putExtra(EXTRA_KEY_ID, keyId);
+                    sendBroadcast(invalidate);
                 }
+
+                addCachedPassphraseImpl(keyId, passphrase, ttl);
             } else if (ACTION_PASSPHRASE_CACHE_GET.equals(intent.getAction())) {
-                long keyId = intent.getLongExtra(EXTRA_KEY_ID, -1);
+                long[] keyIds = intent.getLongArrayExtra(EXTRA_KEY_IDS);
+                if (keyIds == null) {
+                    keyIds = new long[]{intent.getLongExtra(EXTRA_KEY_ID, -1)};
+                }
                 Messenger messenger = intent.getParcelableExtra(EXTRA_MESSENGER);
 
-                String passphrase = getCachedPassphraseImpl(keyId);
+                long[] masterKeyIds = new long[keyIds.length];
+                String[] passphrases = new String[keyIds.length];
+                for (int i = 0; i < keyIds.length; i++) {
+                    Log.d(TAG, "getCachedPassphraseImpl() get masterKeyId for " + keyIds[i]);
+                    masterKeyIds[i] = getMasterKeyIdImpl(keyIds[i]);
+                    // Failure
+                    if (masterKeyIds[i] != 0) {
+                        passphrases[i] = getCachedPassphraseImpl(masterKeyIds[i]);
+                    }
+                }
 
                 Message msg = Message.obtain();
                 Bundle bundle = new Bundle();
-                bundle.putString(EXTRA_PASSPHRASE, passphrase);
+                bundle.putLongArray(EXTRA_KEY_IDS, keyIds);
+                bundle.putLongArray(EXTRA_MASTER_KEY_IDS, masterKeyIds);
+                bundle.putStringArray(EXTRA_PASSPHRASES, passphrases);
                 msg.obj = bundle;
                 try {
                     messenger.send(msg);
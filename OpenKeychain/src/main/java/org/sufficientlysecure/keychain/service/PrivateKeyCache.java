@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.support.v4.util.LongSparseArray;
+
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.util.Log;
+
+/**
+ * In-memory cache of unlocked private keys, keyed by subkey id.
+ *
+ * PGPPrivateKey objects can not be passed between processes, so unlike the passphrases in
+ * PassphraseCacheService this cache lives in the process doing the actual crypto operation.
+ * Entries use the same ttl as the passphrase cache and are also dropped when
+ * PassphraseCacheService times out the passphrase of the corresponding master key.
+ * An entry is only returned for the passphrase it was unlocked with, so a cache hit never
+ * grants more than a successful S2K run would have.
+ */
+public class PrivateKeyCache {
+
+    private static final LongSparseArray<Entry> sCache = new LongSparseArray<Entry>();
+    // per subkey lock, so concurrent operations run the S2K derivation for a key only once
+    private static final LongSparseArray<Object> sUnlockLocks = new LongSparseArray<Object>();
+
+    private static BroadcastReceiver sTimeoutReceiver;
+
+    private static long sHits = 0;
+    private static long sMisses = 0;
+
+    private static class Entry {
+        long masterKeyId;
+        String passphrase;
+        PGPPrivateKey privateKey;
+        long expiry;
+    }
+
+    /**
+     * Returns the unlocked private key for secretKey, running the S2K derivation only if no
+     * valid entry for this subkey and passphrase is cached.
+     *
+     * @param context
+     * @param masterKeyId master key id of the ring secretKey belongs to
+     * @param secretKey
+     * @param passphrase
+     * @return private key, or null if secretKey contains no private key material
+     * @throws PGPException if the passphrase is wrong
+     */
+    public static PGPPrivateKey extractPrivateKey(Context context, long masterKeyId,
+                                                  PGPSecretKey secretKey, String passphrase)
+            throws PGPException {
+        long keyId = secretKey.getKeyID();
+
+        PGPPrivateKey privateKey = getCachedPrivateKey(keyId, passphrase);
+        if (privateKey != null) {
+            return privateKey;
+        }
+
+        // other threads unlocking the same key wait here and then find it in the cache
+        synchronized (getUnlockLock(keyId)) {
+            privateKey = getCachedPrivateKey(keyId, passphrase);
+            if (privateKey != null) {
+                return privateKey;
+            }
+
+            PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
+                            passphrase.toCharArray());
+            privateKey = secretKey.extractPrivateKey(keyDecryptor);
+            if (privateKey != null) {
+                addCachedPrivateKey(context, masterKeyId, privateKey, passphrase);
+            }
+        }
+
+        return privateKey;
+    }
+
+    private static synchronized Object getUnlockLock(long keyId) {
+        Object lock = sUnlockLocks.get(keyId);
+        if (lock == null) {
+            lock = new Object();
+            sUnlockLocks.put(keyId, lock);
+        }
+        return lock;
+    }
+
+    /**
+     * @return cached private key, or null if none is cached for this keyId and passphrase
+     */
+    public static synchronized PGPPrivateKey getCachedPrivateKey(long keyId, String passphrase) {
+        Entry entry = sCache.get(keyId);
+        if (entry != null && entry.expiry < SystemClock.elapsedRealtime()) {
+            Log.d(Constants.TAG, "PrivateKeyCache: entry for " + keyId + " expired");
+            sCache.remove(keyId);
+            entry = null;
+        }
+
+        if (entry == null || !entry.passphrase.equals(passphrase)) {
+            sMisses++;
+            return null;
+        }
+
+        sHits++;
+        return entry.privateKey;
+    }
+
+    public static synchronized void addCachedPrivateKey(Context context, long masterKeyId,
+                                                        PGPPrivateKey privateKey,
+                                                        String passphrase) {
+        registerTimeoutReceiver(context);
+
+        long ttl = Preferences.getPreferences(context).getPassphraseCacheTtl();
+
+        Entry entry = new Entry();
+        entry.masterKeyId = masterKeyId;
+        entry.passphrase = passphrase;
+        entry.privateKey = privateKey;
+        entry.expiry = SystemClock.elapsedRealtime() + ttl * 1000;
+
+        sCache.put(privateKey.getKeyID(), entry);
+    }
+
+    /**
+     * Removes all cached private keys belonging to the given master key
+     */
+    public static synchronized void removeCachedPrivateKeys(long masterKeyId) {
+        for (int i = sCache.size() - 1; i >= 0; i--) {
+            if (sCache.valueAt(i).masterKeyId == masterKeyId) {
+                sCache.removeAt(i);
+            }
+        }
+    }
+
+    public static synchronized void clear() {
+        sCache.clear();
+    }
+
+    public static synchronized long getHitCount() {
+        return sHits;
+    }
+
+    public static synchronized long getMissCount() {
+        return sMisses;
+    }
+
+    /**
+     * The AlarmManager broadcast of PassphraseCacheService reaches every process of this app,
+     * listen for it here to drop unlocked keys together with their passphrase.
+     */
+    private static void registerTimeoutReceiver(Context context) {
+        if (sTimeoutReceiver != null) {
+            return;
+        }
+
+        sTimeoutReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                long keyId = intent.getLongExtra(PassphraseCacheService.EXTRA_KEY_ID, -1);
+                Log.d(Constants.TAG, "PrivateKeyCache: timeout of keyId " + keyId);
+                removeCachedPrivateKeys(keyId);
+            }
+        };
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(PassphraseCacheService.BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE);
+        context.getApplicationContext().registerReceiver(sTimeoutReceiver, filter);
+    }
+
+}
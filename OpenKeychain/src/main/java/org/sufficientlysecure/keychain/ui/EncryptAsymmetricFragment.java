@@ -160,9 +160,8 @@ public class EncryptAsymmetricFragment extends Fragment {
         if (preselectedEncryptionKeyIds != null) {
             Vector<Long> goodIds = new Vector<Long>();
             for (int i = 0; i < preselectedEncryptionKeyIds.length; ++i) {
-                long id = ProviderHelper.getMasterKeyId(getActivity(),
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(preselectedEncryptionKeyIds[i]))
-                );
+                long id = ProviderHelper.getMasterKeyIdBySubkeyId(getActivity(),
+                        preselectedEncryptionKeyIds[i]);
                 // TODO check for available encrypt keys... is this even relevant?
                 goodIds.add(id);
             }
@@ -401,9 +401,18 @@ public class ImportKeysActivity extends ActionBarActivity implements ActionBar.O
             // fill values for this action
             Bundle data = new Bundle();
 
-            // get selected key entries
-            ArrayList<ImportKeysListEntry> selectedEntries = mListFragment.getSelectedData();
-            data.putParcelableArrayList(KeychainIntentService.IMPORT_KEY_LIST, selectedEntries);
+            if (mListFragment.getKeyBytes() != null) {
+                // get selected key entries
+                ArrayList<ImportKeysListEntry> selectedEntries = mListFragment.getSelectedData();
+                data.putParcelableArrayList(KeychainIntentService.IMPORT_KEY_LIST, selectedEntries);
+            } else {
+                // the service reads the selected keyrings from the file again
+                data.putParcelable(KeychainIntentService.IMPORT_KEY_URI, mListFragment.getDataUri());
+                data.putIntArray(KeychainIntentService.IMPORT_KEY_INDICES,
+                        mListFragment.getSelectedSourceIndices());
+                data.putLongArray(KeychainIntentService.IMPORT_KEY_MASTER_KEY_IDS,
+                        mListFragment.getSelectedKeyIds());
+            }
 
             intent.putExtra(KeychainIntentService.EXTRA_DATA, data);
 
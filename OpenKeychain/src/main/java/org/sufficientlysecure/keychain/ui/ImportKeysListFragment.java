@@ -86,6 +86,14 @@ public class ImportKeysListFragment extends ListFragment implements
         return mAdapter.getSelectedData();
     }
 
+    public int[] getSelectedSourceIndices() {
+        return mAdapter.getSelectedSourceIndices();
+    }
+
+    public long[] getSelectedKeyIds() {
+        return mAdapter.getSelectedKeyIds();
+    }
+
     /**
      * Creates new instance of this fragment
      */
@@ -187,7 +195,8 @@ public class ImportKeysListFragment extends ListFragment implements
         switch (id) {
             case LOADER_ID_BYTES: {
                 InputData inputData = getInputData(mKeyBytes, mDataUri);
-                return new ImportKeysListLoader(mActivity, inputData);
+                // files can be huge, their keyrings are read again on import
+                return new ImportKeysListLoader(mActivity, inputData, mKeyBytes != null);
             }
             case LOADER_ID_SERVER_QUERY: {
                 return new ImportKeysListServerLoader(getActivity(), mServerQuery, mKeyServer);
@@ -243,6 +252,10 @@ public class ImportKeysListFragment extends ListFragment implements
 
             case LOADER_ID_SERVER_QUERY:
 
+                if (data instanceof ImportKeysListServerLoader.PartialResult) {
+                    // still searching, the final result reports the outcome
+                    break;
+                }
                 if (error == null) {
                     AppMsg.makeText(
                             getActivity(), getResources().getQuantityString(R.plurals.keys_found,
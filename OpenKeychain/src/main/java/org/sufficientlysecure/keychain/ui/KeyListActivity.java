@@ -17,14 +17,21 @@
 
 package org.sufficientlysecure.keychain.ui;
 
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Message;
+import android.os.Messenger;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.widget.Toast;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.helper.ExportHelper;
+import org.sufficientlysecure.keychain.service.KeychainIntentService;
+import org.sufficientlysecure.keychain.service.KeychainIntentServiceHandler;
 
 public class KeyListActivity extends DrawerActivity {
 
@@ -56,6 +63,10 @@ public class KeyListActivity extends DrawerActivity {
                 importKeys();
                 return true;
 
+            case R.id.menu_key_list_refresh:
+                refreshKeys();
+                return true;
+
             case R.id.menu_key_list_create:
                 createKey();
                 return true;
@@ -78,6 +89,51 @@ public class KeyListActivity extends DrawerActivity {
         startActivityForResult(intent, 0);
     }
 
+    private void refreshKeys() {
+        final Intent intent = new Intent(this, KeychainIntentService.class);
+        intent.setAction(KeychainIntentService.ACTION_REFRESH_KEYRINGS);
+        intent.putExtra(KeychainIntentService.EXTRA_DATA, new Bundle());
+
+        // Message is received after refreshing is done in KeychainIntentService
+        KeychainIntentServiceHandler refreshHandler = new KeychainIntentServiceHandler(this,
+                getString(R.string.progress_refreshing),
+                ProgressDialog.STYLE_HORIZONTAL,
+                true,
+                new DialogInterface.OnCancelListener() {
+                    @Override
+                    public void onCancel(DialogInterface dialogInterface) {
+                        stopService(intent);
+                    }
+                }) {
+            public void handleMessage(Message message) {
+                // handle messages by standard KeychainIntentServiceHandler first
+                super.handleMessage(message);
+
+                if (message.arg1 == KeychainIntentServiceHandler.MESSAGE_OKAY) {
+                    int updated = message.getData()
+                            .getInt(KeychainIntentService.RESULT_IMPORT_UPDATED);
+                    String toastMessage;
+                    if (updated > 0) {
+                        toastMessage = getResources().getQuantityString(R.plurals.keys_updated,
+                                updated, updated);
+                    } else {
+                        toastMessage = getString(R.string.no_keys_added_or_updated);
+                    }
+                    Toast.makeText(KeyListActivity.this, toastMessage, Toast.LENGTH_SHORT).show();
+                }
+            }
+        };
+
+        // Create a new Messenger for the communication back
+        intent.putExtra(KeychainIntentService.EXTRA_MESSENGER, new Messenger(refreshHandler));
+
+        // show progress dialog
+        refreshHandler.showProgressDialog(this);
+
+        // start service with intent
+        startService(intent);
+    }
+
     private void createKey() {
         Intent intent = new Intent(this, EditKeyActivity.class);
         intent.setAction(EditKeyActivity.ACTION_CREATE_KEY);
@@ -270,15 +270,13 @@ public class KeyListFragment extends Fragment
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
         Uri baseUri = KeyRings.buildUnifiedKeyRingsUri();
-        String where = null;
-        String whereArgs[] = null;
         if (mCurQuery != null) {
-            where = KeyRings.USER_ID + " LIKE ?";
-            whereArgs = new String[]{"%" + mCurQuery + "%"};
+            // uses the full text index of the user ids
+            baseUri = KeyRings.buildUnifiedKeyRingsFindByUserIdUri(mCurQuery);
         }
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri, PROJECTION, where, whereArgs, null);
+        return new CursorLoader(getActivity(), baseUri, PROJECTION, null, null, null);
     }
 
     @Override
@@ -294,16 +294,14 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
             // sort by selected master keys
             orderBy = inMasterKeyList + " DESC, " + orderBy;
         }
-        String where = null;
-        String whereArgs[] = null;
         if (mCurQuery != null) {
-            where = UserIds.USER_ID + " LIKE ?";
-            whereArgs = new String[]{"%" + mCurQuery + "%"};
+            // uses the full text index of the user ids
+            baseUri = KeyRings.buildUnifiedKeyRingsFindByUserIdUri(mCurQuery);
         }
 
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri, projection, where, whereArgs, orderBy);
+        return new CursorLoader(getActivity(), baseUri, projection, null, null, orderBy);
     }
 
     @Override
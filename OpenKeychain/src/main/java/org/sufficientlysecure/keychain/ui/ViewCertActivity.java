@@ -235,9 +235,7 @@ public class ViewCertActivity extends ActionBarActivity
                     viewIntent = new Intent(this, ViewKeyActivityJB.class);
                 }
                 //
-                long signerMasterKeyId = ProviderHelper.getMasterKeyId(this,
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(mSignerKeyId))
-                );
+                long signerMasterKeyId = ProviderHelper.getMasterKeyIdBySubkeyId(this, mSignerKeyId);
                 // TODO notify user of this, maybe offer download?
                 if (mSignerKeyId == 0L)
                     return true;
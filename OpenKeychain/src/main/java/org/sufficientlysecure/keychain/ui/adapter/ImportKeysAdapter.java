@@ -89,6 +89,30 @@ public class ImportKeysAdapter extends ArrayAdapter<ImportKeysListEntry> {
         return selectedData;
     }
 
+    /**
+     * @return source indices of the selected entries, for entries read from a file
+     */
+    public int[] getSelectedSourceIndices() {
+        ArrayList<ImportKeysListEntry> selectedData = getSelectedData();
+        int[] indices = new int[selectedData.size()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = selectedData.get(i).getSourceIndex();
+        }
+        return indices;
+    }
+
+    /**
+     * @return master key ids of the selected entries, in the order of getSelectedSourceIndices()
+     */
+    public long[] getSelectedKeyIds() {
+        ArrayList<ImportKeysListEntry> selectedData = getSelectedData();
+        long[] keyIds = new long[selectedData.size()];
+        for (int i = 0; i < keyIds.length; i++) {
+            keyIds[i] = selectedData.get(i).getKeyId();
+        }
+        return keyIds;
+    }
+
     @Override
     public boolean hasStableIds() {
         return true;
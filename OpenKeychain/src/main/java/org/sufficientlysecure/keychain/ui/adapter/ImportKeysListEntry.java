@@ -50,6 +50,10 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
     private boolean mSelected;
 
     private byte[] mBytes = new byte[]{};
+    // index of the keyring in the source, if it is read again from there at import time
+    private int mSourceIndex = -1;
+    // keyserver the entry was found on, if it was found by searching keyservers
+    private String mKeyServer;
 
     public ImportKeysListEntry(ImportKeysListEntry b) {
         this.userIds = b.userIds;
@@ -63,6 +67,8 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         this.secretKey = b.secretKey;
         this.mSelected = b.mSelected;
         this.mBytes = b.mBytes;
+        this.mSourceIndex = b.mSourceIndex;
+        this.mKeyServer = b.mKeyServer;
     }
 
     public int describeContents() {
@@ -83,6 +89,8 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         dest.writeByte((byte) (mSelected ? 1 : 0));
         dest.writeInt(mBytes.length);
         dest.writeByteArray(mBytes);
+        dest.writeInt(mSourceIndex);
+        dest.writeString(mKeyServer);
     }
 
     public static final Creator<ImportKeysListEntry> CREATOR = new Creator<ImportKeysListEntry>() {
@@ -101,6 +109,8 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
             vr.mSelected = source.readByte() == 1;
             vr.mBytes = new byte[source.readInt()];
             source.readByteArray(vr.mBytes);
+            vr.mSourceIndex = source.readInt();
+            vr.mKeyServer = source.readString();
 
             return vr;
         }
@@ -122,6 +132,18 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         this.mBytes = bytes;
     }
 
+    public int getSourceIndex() {
+        return mSourceIndex;
+    }
+
+    public String getKeyServer() {
+        return mKeyServer;
+    }
+
+    public void setKeyServer(String keyServer) {
+        this.mKeyServer = keyServer;
+    }
+
     public boolean isSelected() {
         return mSelected;
     }
@@ -212,14 +234,24 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
     /**
      * Constructor based on key object, used for import from NFC, QR Codes, files
      */
-    @SuppressWarnings("unchecked")
     public ImportKeysListEntry(PGPKeyRing pgpKeyRing) {
+        this(pgpKeyRing, -1);
+
         // save actual key object into entry, used to import it later
         try {
             this.mBytes = pgpKeyRing.getEncoded();
         } catch (IOException e) {
             Log.e(Constants.TAG, "IOException on pgpKeyRing.getEncoded()", e);
         }
+    }
+
+    /**
+     * Constructor based on key object, keeping only what is displayed. Used for large files,
+     * the keyring is read from the file again at import time, by its index in there.
+     */
+    @SuppressWarnings("unchecked")
+    public ImportKeysListEntry(PGPKeyRing pgpKeyRing, int sourceIndex) {
+        this.mSourceIndex = sourceIndex;
 
         // selected is default
         this.mSelected = true;
@@ -20,15 +20,11 @@ package org.sufficientlysecure.keychain.ui.adapter;
 import android.content.Context;
 import android.support.v4.content.AsyncTaskLoader;
 import org.spongycastle.openpgp.PGPKeyRing;
-import org.spongycastle.openpgp.PGPObjectFactory;
-import org.spongycastle.openpgp.PGPUtil;
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.PgpKeyRingReader;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
-import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
 
-import java.io.BufferedInputStream;
-import java.io.InputStream;
 import java.util.ArrayList;
 
 public class ImportKeysListLoader
@@ -53,14 +49,25 @@ public class ImportKeysListLoader
     Context mContext;
 
     InputData mInputData;
+    boolean mKeepBytes;
 
     ArrayList<ImportKeysListEntry> mData = new ArrayList<ImportKeysListEntry>();
     AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
     public ImportKeysListLoader(Context context, InputData inputData) {
+        this(context, inputData, true);
+    }
+
+    /**
+     * @param keepBytes if false, entries only hold the keyring's metadata and its index in the
+     *                  input, which then has to be read again on import. Use this for input
+     *                  that can be read again, and can be too large to keep in memory.
+     */
+    public ImportKeysListLoader(Context context, InputData inputData, boolean keepBytes) {
         super(context);
         this.mContext = context;
         this.mInputData = inputData;
+        this.mKeepBytes = keepBytes;
     }
 
     @Override
@@ -109,45 +116,22 @@ public class ImportKeysListLoader
      */
     private void generateListOfKeyrings(InputData inputData) {
 
-        boolean isEmpty = true;
         int nonPgpCounter = 0;
 
-        PositionAwareInputStream progressIn = new PositionAwareInputStream(
-                inputData.getInputStream());
-
-        // need to have access to the bufferedInput, so we can reuse it for the possible
-        // PGPObject chunks after the first one, e.g. files with several consecutive ASCII
-        // armor blocks
-        BufferedInputStream bufferedInput = new BufferedInputStream(progressIn);
+        PgpKeyRingReader reader = new PgpKeyRingReader(inputData.getInputStream());
         try {
-
-            // read all available blocks... (asc files can contain many blocks with BEGIN END)
-            while (bufferedInput.available() > 0) {
-                isEmpty = false;
-                InputStream in = PGPUtil.getDecoderStream(bufferedInput);
-                PGPObjectFactory objectFactory = new PGPObjectFactory(in);
-
-                // go through all objects in this block
-                Object obj;
-                while ((obj = objectFactory.nextObject()) != null) {
-                    Log.d(Constants.TAG, "Found class: " + obj.getClass());
-
-                    if (obj instanceof PGPKeyRing) {
-                        PGPKeyRing newKeyring = (PGPKeyRing) obj;
-                        addToData(newKeyring);
-                    } else {
-                        Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!");
-                        nonPgpCounter++;
-                    }
-                }
+            PGPKeyRing keyring;
+            while ((keyring = reader.next()) != null) {
+                addToData(keyring, reader.getIndex());
             }
+            nonPgpCounter = reader.getNonKeyRingCount();
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception on parsing key file!", e);
             mEntryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(mData, e);
             nonPgpCounter = 0;
         }
 
-        if (isEmpty) {
+        if (reader.isEmpty()) {
             Log.e(Constants.TAG, "File has no content!", new FileHasNoContent());
             mEntryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>
                     (mData, new FileHasNoContent());
@@ -159,8 +143,14 @@ public class ImportKeysListLoader
         }
     }
 
-    private void addToData(PGPKeyRing keyring) {
-        ImportKeysListEntry item = new ImportKeysListEntry(keyring);
+    private void addToData(PGPKeyRing keyring, int sourceIndex) {
+        ImportKeysListEntry item;
+        if (mKeepBytes) {
+            item = new ImportKeysListEntry(keyring);
+        } else {
+            // only keep what is displayed, the keyring is read from the input again on import
+            item = new ImportKeysListEntry(keyring, sourceIndex);
+        }
         mData.add(item);
     }
 
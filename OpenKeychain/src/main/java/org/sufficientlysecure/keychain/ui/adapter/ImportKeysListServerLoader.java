@@ -18,17 +18,37 @@
 package org.sufficientlysecure.keychain.ui.adapter;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.content.AsyncTaskLoader;
 
 import org.sufficientlysecure.keychain.Constants;
-import org.sufficientlysecure.keychain.util.HkpKeyServer;
+import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.util.FederatedKeyServer;
 import org.sufficientlysecure.keychain.util.KeyServer;
 import org.sufficientlysecure.keychain.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 
 public class ImportKeysListServerLoader
         extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
+
+    // minimum time between two partial results delivered while searching
+    private static final long PARTIAL_RESULT_MILLIS = 300;
+
+    /**
+     * Results delivered while the search is still running, the final result follows
+     */
+    public static class PartialResult
+            extends AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> {
+        PartialResult(ArrayList<ImportKeysListEntry> result) {
+            super(result, null);
+        }
+    }
+
     Context mContext;
 
     String mServerQuery;
@@ -37,6 +57,10 @@ public class ImportKeysListServerLoader
     private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<ImportKeysListEntry>();
     private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // increased for every load, partial results of older loads are not delivered
+    private volatile int mLoadCount = 0;
+
     public ImportKeysListServerLoader(Context context, String serverQuery, String keyServer) {
         super(context);
         mContext = context;
@@ -48,6 +72,7 @@ public class ImportKeysListServerLoader
     public AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> loadInBackground() {
 
         mEntryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(mEntryList, null);
+        mLoadCount++;
 
         if (mServerQuery == null) {
             Log.e(Constants.TAG, "mServerQuery is null!");
@@ -88,12 +113,18 @@ public class ImportKeysListServerLoader
     }
 
     /**
-     * Query keyserver
+     * Query all configured keyservers at once, the given one first
      */
     private void queryServer(String query, String keyServer, boolean enforceFingerprint) {
-        HkpKeyServer server = new HkpKeyServer(keyServer);
+        LinkedHashSet<String> keyServers = new LinkedHashSet<String>();
+        keyServers.add(keyServer);
+        Collections.addAll(keyServers, Preferences.getPreferences(mContext).getKeyServers());
+        FederatedKeyServer server =
+                new FederatedKeyServer(keyServers.toArray(new String[keyServers.size()]));
+        // with a fingerprint, the single result is checked first and not shown before
+        PartialResults listener = enforceFingerprint ? null : new PartialResults();
         try {
-            ArrayList<ImportKeysListEntry> searchResult = server.search(query);
+            ArrayList<ImportKeysListEntry> searchResult = server.search(query, listener);
 
             mEntryList.clear();
             // add result to data
@@ -124,6 +155,58 @@ public class ImportKeysListServerLoader
         } catch (KeyServer.TooManyResponses e) {
             Log.e(Constants.TAG, "TooManyResponses", e);
             mEntryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(mEntryList, e);
+        } finally {
+            if (listener != null) {
+                listener.finish();
+            }
+        }
+    }
+
+    /**
+     * Collects results while the search runs and delivers them at most every
+     * PARTIAL_RESULT_MILLIS, so the first keys are shown before slow servers answered
+     */
+    private class PartialResults implements KeyServer.SearchListener {
+        private final int mLoad = mLoadCount;
+        // guarded by itself, results come from the threads of all servers
+        private final ArrayList<ImportKeysListEntry> mResults =
+                new ArrayList<ImportKeysListEntry>();
+        private long mLastDelivered = 0;
+        // set before the final result is delivered, servers may still answer after that
+        private volatile boolean mFinished = false;
+
+        void finish() {
+            mFinished = true;
+        }
+
+        @Override
+        public void onResult(ImportKeysListEntry entry) {
+            if (mFinished) {
+                return;
+            }
+            // copy, the search merges the user ids other servers know into the entry later
+            ImportKeysListEntry copy = new ImportKeysListEntry(entry);
+            copy.setUserIds(new ArrayList<String>(entry.getUserIds()));
+
+            final PartialResult result;
+            synchronized (mResults) {
+                mResults.add(copy);
+                long now = SystemClock.elapsedRealtime();
+                if (now - mLastDelivered < PARTIAL_RESULT_MILLIS) {
+                    return;
+                }
+                mLastDelivered = now;
+                result = new PartialResult(new ArrayList<ImportKeysListEntry>(mResults));
+            }
+            // posted before the final result, which is delivered through the same looper
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mFinished && mLoad == mLoadCount && isStarted()) {
+                        deliverResult(result);
+                    }
+                }
+            });
         }
     }
 
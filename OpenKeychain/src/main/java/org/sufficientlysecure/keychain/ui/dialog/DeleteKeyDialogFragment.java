@@ -34,6 +34,7 @@ import android.widget.TextView;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.provider.KeyRingCache;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase;
@@ -131,6 +132,7 @@ public class DeleteKeyDialogFragment extends DialogFragment {
                     int count = activity.getContentResolver().delete(
                             KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId)), null, null
                         );
+                    KeyRingCache.invalidate(masterKeyId);
                     success = count > 0;
                 }
                 if (success) {
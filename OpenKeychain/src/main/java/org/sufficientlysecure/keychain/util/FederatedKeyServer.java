@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import android.os.SystemClock;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searches several HKP keyservers at the same time. Results are merged by their 64 bit key id,
+ * since not every server sends fingerprints. Each entry remembers the keyserver it was found on
+ * first.
+ *
+ * The search returns shortly after the first server answered with results, servers that are
+ * slower than that are not waited for.
+ */
+public class FederatedKeyServer extends KeyServer {
+
+    // time to wait for other servers after the first one answered with results
+    private static final long MERGE_WAIT_MILLIS = 1500;
+
+    /**
+     * Outcome of querying one server during the last search
+     */
+    public static class ServerStats {
+        private final String mKeyServer;
+        private final long mMillis;
+        private final int mResults;
+        private final Exception mError;
+
+        ServerStats(String keyServer, long millis, int results, Exception error) {
+            mKeyServer = keyServer;
+            mMillis = millis;
+            mResults = results;
+            mError = error;
+        }
+
+        public String getKeyServer() {
+            return mKeyServer;
+        }
+
+        public long getMillis() {
+            return mMillis;
+        }
+
+        public int getResults() {
+            return mResults;
+        }
+
+        /**
+         * @return the reason the query failed, null if it succeeded
+         */
+        public Exception getError() {
+            return mError;
+        }
+
+        @Override
+        public String toString() {
+            return mKeyServer + ": " + mMillis + "ms, "
+                    + (mError == null ? mResults + " results" : mError.toString());
+        }
+    }
+
+    private static class SearchResult {
+        final String mKeyServer;
+        final List<ImportKeysListEntry> mEntries;
+        final Exception mError;
+        final long mMillis;
+
+        SearchResult(String keyServer, List<ImportKeysListEntry> entries, Exception error,
+                     long millis) {
+            mKeyServer = keyServer;
+            mEntries = entries;
+            mError = error;
+            mMillis = millis;
+        }
+    }
+
+    private final String[] mKeyServers;
+    private volatile List<ServerStats> mStats = Collections.emptyList();
+
+    /**
+     * @param keyServers host and port of each server as accepted by HkpKeyServer, in order of
+     *                   preference
+     */
+    public FederatedKeyServer(String[] keyServers) {
+        mKeyServers = keyServers;
+    }
+
+    /**
+     * @return stats of the servers that answered in time during the last search
+     */
+    public List<ServerStats> getLastSearchStats() {
+        return mStats;
+    }
+
+    @Override
+    public ArrayList<ImportKeysListEntry> search(String query) throws QueryException,
+            TooManyResponses, InsufficientQuery {
+        return search(query, null);
+    }
+
+    /**
+     * @param listener receives each key once, when the first server sends it, may be null.
+     *                 User ids other servers know about are only part of the returned entries.
+     */
+    public ArrayList<ImportKeysListEntry> search(final String query,
+                                                 final SearchListener listener)
+            throws QueryException, TooManyResponses, InsufficientQuery {
+        if (query.length() < 3) {
+            throw new InsufficientQuery();
+        }
+
+        final SearchListener firstSeenListener = listener == null ? null : new SearchListener() {
+            private final HashSet<String> mSeen = new HashSet<String>();
+
+            @Override
+            public void onResult(ImportKeysListEntry entry) {
+                boolean first;
+                synchronized (mSeen) {
+                    first = mSeen.add(getMergeKey(entry));
+                }
+                if (first) {
+                    listener.onResult(entry);
+                }
+            }
+        };
+
+        CompletionService<SearchResult> completion =
+                new ExecutorCompletionService<SearchResult>(HkpKeyServer.sQueryExecutor);
+        ArrayList<Future<SearchResult>> futures = new ArrayList<Future<SearchResult>>();
+        for (final String keyServer : mKeyServers) {
+            futures.add(completion.submit(new Callable<SearchResult>() {
+                @Override
+                public SearchResult call() {
+                    long start = SystemClock.elapsedRealtime();
+                    List<ImportKeysListEntry> entries = null;
+                    Exception error = null;
+                    try {
+                        entries = new HkpKeyServer(keyServer).search(query, firstSeenListener);
+                    } catch (Exception e) {
+                        error = e;
+                    }
+                    return new SearchResult(keyServer, entries, error,
+                            SystemClock.elapsedRealtime() - start);
+                }
+            }));
+        }
+
+        LinkedHashMap<String, ImportKeysListEntry> merged =
+                new LinkedHashMap<String, ImportKeysListEntry>();
+        ArrayList<ServerStats> stats = new ArrayList<ServerStats>();
+        Exception error = null;
+        boolean answered = false;
+        long deadline = 0;
+        try {
+            for (int pending = futures.size(); pending > 0; pending--) {
+                Future<SearchResult> done;
+                if (deadline == 0) {
+                    done = completion.take();
+                } else {
+                    long wait = deadline - SystemClock.elapsedRealtime();
+                    done = wait > 0 ? completion.poll(wait, TimeUnit.MILLISECONDS) : null;
+                    if (done == null) {
+                        break;
+                    }
+                }
+
+                SearchResult result = done.get();
+                int count = result.mEntries == null ? 0 : result.mEntries.size();
+                stats.add(new ServerStats(result.mKeyServer, result.mMillis, count,
+                        result.mError));
+                if (result.mEntries == null) {
+                    // keep the most meaningful error in case no server answers
+                    if (error == null || result.mError instanceof TooManyResponses) {
+                        error = result.mError;
+                    }
+                    continue;
+                }
+
+                answered = true;
+                merge(merged, result);
+                if (count > 0 && deadline == 0) {
+                    deadline = SystemClock.elapsedRealtime() + MERGE_WAIT_MILLIS;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new QueryException("querying keyservers was interrupted");
+        } catch (ExecutionException e) {
+            // does not happen, the search task catches everything
+            throw new QueryException(e.toString());
+        } finally {
+            for (Future<SearchResult> future : futures) {
+                future.cancel(true);
+            }
+            mStats = stats;
+            Log.d(Constants.TAG, "federated keyserver search: " + stats);
+        }
+
+        if (!answered) {
+            if (error instanceof TooManyResponses) {
+                throw (TooManyResponses) error;
+            } else if (error instanceof InsufficientQuery) {
+                throw (InsufficientQuery) error;
+            }
+            throw new QueryException("querying keyservers failed: " + error);
+        }
+        return new ArrayList<ImportKeysListEntry>(merged.values());
+    }
+
+    private static void merge(LinkedHashMap<String, ImportKeysListEntry> merged,
+                              SearchResult result) {
+        for (ImportKeysListEntry entry : result.mEntries) {
+            String key = getMergeKey(entry);
+            ImportKeysListEntry existing = merged.get(key);
+            if (existing == null) {
+                entry.setKeyServer(result.mKeyServer);
+                merged.put(key, entry);
+                continue;
+            }
+
+            // servers may not be in sync, combine what they know
+            if (existing.getFingerPrintHex() == null) {
+                existing.setFingerPrintHex(entry.getFingerPrintHex());
+            }
+            existing.setRevoked(existing.isRevoked() || entry.isRevoked());
+            for (String userId : entry.getUserIds()) {
+                if (!existing.getUserIds().contains(userId)) {
+                    existing.getUserIds().add(userId);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the key id as 16 lowercase hex digits, taken from the fingerprint if there is one
+     */
+    static String getMergeKey(ImportKeysListEntry entry) {
+        String fingerprint = entry.getFingerPrintHex();
+        if (fingerprint != null && fingerprint.length() >= 16) {
+            return fingerprint.substring(fingerprint.length() - 16).toLowerCase(Locale.US);
+        }
+        String keyIdHex = entry.getKeyIdHex().toLowerCase(Locale.US);
+        return keyIdHex.startsWith("0x") ? keyIdHex.substring(2) : keyIdHex;
+    }
+
+    @Override
+    public String get(String keyIdHex) throws QueryException {
+        return get(keyIdHex, true);
+    }
+
+    /**
+     * Tries the servers in order of preference
+     *
+     * @param useCache see {@link HkpKeyServer#get(String, boolean)}
+     */
+    public String get(String keyIdHex, boolean useCache) throws QueryException {
+        QueryException error = null;
+        for (String keyServer : mKeyServers) {
+            try {
+                String key = new HkpKeyServer(keyServer).get(keyIdHex, useCache);
+                if (key != null) {
+                    return key;
+                }
+            } catch (QueryException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return null;
+    }
+
+    /**
+     * Uploads to all servers, fails only if none accepted the key
+     */
+    @Override
+    public void add(String armoredKey) throws AddKeyException {
+        AddKeyException error = null;
+        boolean added = false;
+        for (String keyServer : mKeyServers) {
+            try {
+                new HkpKeyServer(keyServer).add(armoredKey);
+                added = true;
+            } catch (AddKeyException e) {
+                error = e;
+            }
+        }
+        if (!added && error != null) {
+            throw error;
+        }
+    }
+}
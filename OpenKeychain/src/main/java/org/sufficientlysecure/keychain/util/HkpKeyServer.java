@@ -18,6 +18,7 @@
 
 package org.sufficientlysecure.keychain.util;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -27,6 +28,8 @@ import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 
@@ -34,24 +37,37 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class HkpKeyServer extends KeyServer {
     private static class HttpError extends Exception {
@@ -108,10 +124,45 @@ public class HkpKeyServer extends KeyServer {
      * 5.2. Machine Readable Indexes</a>
      * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
      */
-    public static final Pattern PUB_KEY_LINE = Pattern
-            .compile("pub:([0-9a-fA-F]+):([0-9]+):([0-9]+):([0-9]+):([0-9]*):([rde]*)[ \n\r]*" // pub line
-                    + "(uid:(.*):([0-9]+):([0-9]*):([rde]*))+", // one or more uid lines
-                    Pattern.CASE_INSENSITIVE);
+    private static ImportKeysListEntry parsePubLine(String line) {
+        String[] fields = line.split(":", -1);
+        if (fields.length < 6) {
+            return null;
+        }
+
+        final ImportKeysListEntry entry = new ImportKeysListEntry();
+        try {
+            entry.setBitStrength(Integer.parseInt(fields[3]));
+
+            final int algorithmId = Integer.parseInt(fields[2]);
+            entry.setAlgorithm(ImportKeysListEntry.getAlgorithmFromId(algorithmId));
+
+            final long creationDate = Long.parseLong(fields[4]);
+            final GregorianCalendar tmpGreg = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+            tmpGreg.setTimeInMillis(creationDate * 1000);
+            entry.setDate(tmpGreg.getTime());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        // field 1 contains the full fingerprint (v4) or the long key id if available
+        // see http://bit.ly/1d4bxbk and http://bit.ly/1gD1wwr
+        String fingerprintOrKeyId = fields[1];
+        if (fingerprintOrKeyId.length() == 0) {
+            return null;
+        } else if (fingerprintOrKeyId.length() > 16) {
+            entry.setFingerPrintHex(fingerprintOrKeyId.toLowerCase(Locale.US));
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
+                    - 16, fingerprintOrKeyId.length()));
+        } else {
+            // set key id only
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId);
+        }
+
+        entry.setRevoked(fields.length > 6 && fields[6].contains("r"));
+
+        return entry;
+    }
 
     /**
      * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
@@ -137,12 +188,108 @@ public class HkpKeyServer extends KeyServer {
      * </li>
      * </ul>
      */
-    public static final Pattern UID_LINE = Pattern
-            .compile("uid:(.*):([0-9]+):([0-9]*):([rde]*)",
-                    Pattern.CASE_INSENSITIVE);
+    private static String parseUidLine(String line) {
+        // the escaped user id can't contain ":", but be lenient and cut off the last 3 fields
+        String userId = line.substring("uid:".length());
+        for (int i = 0; i < 3; i++) {
+            int colon = userId.lastIndexOf(':');
+            if (colon < 0) {
+                return null;
+            }
+            userId = userId.substring(0, colon);
+        }
+
+        userId = userId.trim();
+        if (userId.contains("%")) {
+            try {
+                // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
+                userId = URLDecoder.decode(userId, "UTF8");
+            } catch (UnsupportedEncodingException ignored) {
+                // will never happen, because "UTF8" is supported
+            } catch (IllegalArgumentException e) {
+                // broken escaping, keep it as it is
+            }
+        }
+        return userId;
+    }
+
+    /**
+     * Parses a machine readable index line by line while it is read, instead of buffering the
+     * whole response. Each complete entry is passed to the listener right away. Keys without
+     * user ids are skipped, other lines (info:...) are ignored. Parsing stops when the thread
+     * is interrupted, e.g. because another address or keyserver answered first.
+     *
+     * @param listener may be null
+     * @return the first MAX_RESULTS entries, the rest of a larger index is not read
+     */
+    static ArrayList<ImportKeysListEntry> parseIndex(InputStream in, SearchListener listener)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        ArrayList<ImportKeysListEntry> results = new ArrayList<ImportKeysListEntry>();
+        ImportKeysListEntry entry = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("parsing keyserver index was cancelled");
+            }
+            line = line.trim();
+            if (line.regionMatches(true, 0, "pub:", 0, 4)) {
+                addEntry(results, entry, listener);
+                if (results.size() == MAX_RESULTS) {
+                    Log.d(Constants.TAG, "keyserver index truncated to " + MAX_RESULTS + " keys");
+                    return results;
+                }
+                entry = parsePubLine(line);
+            } else if (entry != null && line.regionMatches(true, 0, "uid:", 0, 4)) {
+                String userId = parseUidLine(line);
+                if (userId != null) {
+                    entry.getUserIds().add(userId);
+                }
+            }
+        }
+        addEntry(results, entry, listener);
+        return results;
+    }
+
+    private static void addEntry(ArrayList<ImportKeysListEntry> results, ImportKeysListEntry entry,
+                                 SearchListener listener) {
+        if (entry == null || entry.getUserIds().isEmpty()) {
+            return;
+        }
+        results.add(entry);
+        if (listener != null) {
+            listener.onResult(entry);
+        }
+    }
 
     private static final short PORT_DEFAULT = 11371;
 
+    // keys read from an index, the rest of a larger one is dropped
+    static final int MAX_RESULTS = 500;
+
+    // larger responses are not cached
+    private static final int MAX_CACHED_BYTES = 1 << 20;
+
+    private static volatile KeyServerCache sCache;
+
+    // number of resolved addresses of a host queried at the same time, the first answer wins
+    private static final int PARALLEL_ADDRESSES = 3;
+
+    /**
+     * Runs the queries to single addresses, also used by FederatedKeyServer for whole servers.
+     * Threads are daemons, since a query that lost the race can't be interrupted while it waits
+     * for the network and simply runs into its timeout.
+     */
+    static final ExecutorService sQueryExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Keyserver query");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     /**
      * @param hostAndPort may be just
      *                    "<code>hostname</code>" (eg. "<code>pool.sks-keyservers.net</code>"), then it will
@@ -167,6 +314,59 @@ public class HkpKeyServer extends KeyServer {
         mPort = port;
     }
 
+    /**
+     * Sets the cache used for index and get responses of all keyservers, null disables caching
+     */
+    public static void setCache(KeyServerCache cache) {
+        sCache = cache;
+    }
+
+    /**
+     * Records what is read from the wrapped stream, up to a limit
+     */
+    private static class RecordingInputStream extends FilterInputStream {
+        private final int mLimit;
+        private ByteArrayOutputStream mRecorded = new ByteArrayOutputStream();
+
+        RecordingInputStream(InputStream in, int limit) {
+            super(in);
+            mLimit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1 && mRecorded != null) {
+                mRecorded.write(b);
+                checkLimit();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            int n = super.read(buffer, off, len);
+            if (n > 0 && mRecorded != null) {
+                mRecorded.write(buffer, off, n);
+                checkLimit();
+            }
+            return n;
+        }
+
+        private void checkLimit() {
+            if (mRecorded.size() > mLimit) {
+                mRecorded = null;
+            }
+        }
+
+        /**
+         * @return everything read, or null if it exceeded the limit
+         */
+        byte[] getRecorded() {
+            return mRecorded == null ? null : mRecorded.toByteArray();
+        }
+    }
+
     private static String readAll(InputStream in, String encoding) throws IOException {
         ByteArrayOutputStream raw = new ByteArrayOutputStream();
 
@@ -182,42 +382,142 @@ public class HkpKeyServer extends KeyServer {
         return raw.toString(encoding);
     }
 
-    private String query(String request) throws QueryException, HttpError {
+    /**
+     * Queries the resolved addresses of the host, PARALLEL_ADDRESSES at a time. The first HTTP
+     * response wins, an address that can't be reached is replaced by the next one.
+     *
+     * A fresh cached response is used without querying, an outdated one is revalidated.
+     *
+     * @param listener receives the entries of the first address that sends some, may be null
+     */
+    private ArrayList<ImportKeysListEntry> query(String request, SearchListener listener)
+            throws QueryException, HttpError {
+        final KeyServerCache cache = sCache;
+        final String cacheKey = mHost + ":" + mPort + request;
+        final KeyServerCache.Entry cached = cache == null ? null : cache.get(cacheKey);
+        if (cached != null && cached.isFresh()) {
+            Log.d(Constants.TAG, "hkp keyserver query from cache: " + cacheKey);
+            try {
+                return parseIndex(new ByteArrayInputStream(cached.getData()), listener);
+            } catch (IOException e) {
+                // does not happen for a byte array
+            }
+        }
+
         InetAddress ips[];
         try {
             ips = InetAddress.getAllByName(mHost);
         } catch (UnknownHostException e) {
             throw new QueryException(e.toString());
         }
-        for (int i = 0; i < ips.length; ++i) {
-            try {
-                String url = "http://" + ips[i].getHostAddress() + ":" + mPort + request;
-                Log.d(Constants.TAG, "hkp keyserver query: " + url);
-                URL realUrl = new URL(url);
-                HttpURLConnection conn = (HttpURLConnection) realUrl.openConnection();
-                conn.setConnectTimeout(5000);
-                conn.setReadTimeout(25000);
-                conn.connect();
-                int response = conn.getResponseCode();
-                if (response >= 200 && response < 300) {
-                    return readAll(conn.getInputStream(), conn.getContentEncoding());
-                } else {
-                    String data = readAll(conn.getErrorStream(), conn.getContentEncoding());
-                    throw new HttpError(response, data);
+
+        CompletionService<ArrayList<ImportKeysListEntry>> completion =
+                new ExecutorCompletionService<ArrayList<ImportKeysListEntry>>(sQueryExecutor);
+        ArrayList<Future<ArrayList<ImportKeysListEntry>>> futures =
+                new ArrayList<Future<ArrayList<ImportKeysListEntry>>>();
+        // only the first address that sends entries passes them on, to not report them twice
+        final AtomicReference<InetAddress> listened = new AtomicReference<InetAddress>();
+        int next = 0;
+        try {
+            while (next < ips.length && next < PARALLEL_ADDRESSES) {
+                futures.add(completion.submit(queryAddress(ips[next++], request, cache, cacheKey,
+                        cached, listener, listened)));
+            }
+            int pending = futures.size();
+            while (pending > 0) {
+                Future<ArrayList<ImportKeysListEntry>> done = completion.take();
+                pending--;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof HttpError) {
+                        throw (HttpError) e.getCause();
+                    }
+                    // nothing to do, try next IP
+                    if (next < ips.length) {
+                        futures.add(completion.submit(queryAddress(ips[next++], request, cache,
+                                cacheKey, cached, listener, listened)));
+                        pending++;
+                    }
                 }
-            } catch (MalformedURLException e) {
-                // nothing to do, try next IP
-            } catch (IOException e) {
-                // nothing to do, try next IP
+            }
+        } catch (InterruptedException e) {
+            throw new QueryException("querying server(s) for '" + mHost + "' was interrupted");
+        } finally {
+            for (Future<ArrayList<ImportKeysListEntry>> future : futures) {
+                future.cancel(true);
             }
         }
 
         throw new QueryException("querying server(s) for '" + mHost + "' failed");
     }
 
+    private Callable<ArrayList<ImportKeysListEntry>> queryAddress(
+            final InetAddress ip, final String request, final KeyServerCache cache,
+            final String cacheKey, final KeyServerCache.Entry cached,
+            final SearchListener listener, final AtomicReference<InetAddress> listened) {
+        final SearchListener addressListener = listener == null ? null : new SearchListener() {
+            @Override
+            public void onResult(ImportKeysListEntry entry) {
+                if (listened.compareAndSet(null, ip) || listened.get() == ip) {
+                    listener.onResult(entry);
+                }
+            }
+        };
+        return new Callable<ArrayList<ImportKeysListEntry>>() {
+            @Override
+            public ArrayList<ImportKeysListEntry> call() throws IOException, HttpError {
+                String url = "http://" + ip.getHostAddress() + ":" + mPort + request;
+                Log.d(Constants.TAG, "hkp keyserver query: " + url);
+                URL realUrl = new URL(url);
+                HttpURLConnection conn = (HttpURLConnection) realUrl.openConnection();
+                try {
+                    conn.setConnectTimeout(5000);
+                    conn.setReadTimeout(25000);
+                    if (cached != null) {
+                        conn.setIfModifiedSince(cached.getIfModifiedSince());
+                    }
+                    conn.connect();
+                    int response = conn.getResponseCode();
+                    if (response == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                        cache.refresh(cacheKey, cached);
+                        return parseIndex(new ByteArrayInputStream(cached.getData()),
+                                addressListener);
+                    } else if (response >= 200 && response < 300) {
+                        if (cache == null) {
+                            return parseIndex(conn.getInputStream(), addressListener);
+                        }
+                        RecordingInputStream in =
+                                new RecordingInputStream(conn.getInputStream(), MAX_CACHED_BYTES);
+                        ArrayList<ImportKeysListEntry> entries = parseIndex(in, addressListener);
+                        byte[] recorded = in.getRecorded();
+                        // a truncated index is not cached, it was not read completely
+                        if (recorded != null && entries.size() < MAX_RESULTS) {
+                            cache.put(cacheKey, conn.getLastModified(), recorded);
+                        }
+                        return entries;
+                    } else {
+                        String data = readAll(conn.getErrorStream(), conn.getContentEncoding());
+                        throw new HttpError(response, data);
+                    }
+                } finally {
+                    conn.disconnect();
+                }
+            }
+        };
+    }
+
     @Override
     public ArrayList<ImportKeysListEntry> search(String query) throws QueryException, TooManyResponses,
             InsufficientQuery {
+        return search(query, null);
+    }
+
+    /**
+     * @param listener receives the results while they are parsed, may be null
+     */
+    public ArrayList<ImportKeysListEntry> search(String query, SearchListener listener)
+            throws QueryException, TooManyResponses, InsufficientQuery {
         ArrayList<ImportKeysListEntry> results = new ArrayList<ImportKeysListEntry>();
 
         if (query.length() < 3) {
@@ -232,9 +532,8 @@ public class HkpKeyServer extends KeyServer {
         }
         String request = "/pks/lookup?op=index&options=mr&search=" + encodedQuery;
 
-        String data;
         try {
-            data = query(request);
+            return query(request, listener);
         } catch (HttpError e) {
             if (e.getCode() == 404) {
                 return results;
@@ -249,73 +548,58 @@ public class HkpKeyServer extends KeyServer {
             }
             throw new QueryException("querying server(s) for '" + mHost + "' failed");
         }
-
-        final Matcher matcher = PUB_KEY_LINE.matcher(data);
-        while (matcher.find()) {
-            final ImportKeysListEntry entry = new ImportKeysListEntry();
-
-            entry.setBitStrength(Integer.parseInt(matcher.group(3)));
-
-            final int algorithmId = Integer.decode(matcher.group(2));
-            entry.setAlgorithm(ImportKeysListEntry.getAlgorithmFromId(algorithmId));
-
-            // group 1 contains the full fingerprint (v4) or the long key id if available
-            // see http://bit.ly/1d4bxbk and http://bit.ly/1gD1wwr
-            String fingerprintOrKeyId = matcher.group(1);
-            if (fingerprintOrKeyId.length() > 16) {
-                entry.setFingerPrintHex(fingerprintOrKeyId.toLowerCase(Locale.US));
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
-                        - 16, fingerprintOrKeyId.length()));
-            } else {
-                // set key id only
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId);
-            }
-
-            final long creationDate = Long.parseLong(matcher.group(4));
-            final GregorianCalendar tmpGreg = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-            tmpGreg.setTimeInMillis(creationDate * 1000);
-            entry.setDate(tmpGreg.getTime());
-
-            entry.setRevoked(matcher.group(6).contains("r"));
-
-            ArrayList<String> userIds = new ArrayList<String>();
-            final String uidLines = matcher.group(7);
-            final Matcher uidMatcher = UID_LINE.matcher(uidLines);
-            while (uidMatcher.find()) {
-                String tmp = uidMatcher.group(1).trim();
-                if (tmp.contains("%")) {
-                    try {
-                        // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
-                        tmp = (URLDecoder.decode(tmp, "UTF8"));
-                    } catch (UnsupportedEncodingException ignored) {
-                        // will never happen, because "UTF8" is supported
-                    }
-                }
-                userIds.add(tmp);
-            }
-            entry.setUserIds(userIds);
-
-            results.add(entry);
-        }
-        return results;
     }
 
     @Override
     public String get(String keyIdHex) throws QueryException {
+        return get(keyIdHex, true);
+    }
+
+    /**
+     * @param useCache if false, a cached response is never used as it is. It is only revalidated
+     *                 if the server sent a Last-Modified date for it, otherwise the key is
+     *                 downloaded again. Used when refreshing keys, which must not miss updates.
+     */
+    public String get(String keyIdHex, boolean useCache) throws QueryException {
+        final KeyServerCache cache = sCache;
+        String request = "/pks/lookup?op=get&options=mr&search=" + keyIdHex;
+        String cacheKey = mHost + ":" + mPort + request;
+        KeyServerCache.Entry cached = cache == null ? null : cache.get(cacheKey);
+        if (!useCache && cached != null && cached.getLastModified() == 0) {
+            cached = null;
+        }
+
         HttpClient client = new DefaultHttpClient();
         try {
-            String query = "http://" + mHost + ":" + mPort +
-                    "/pks/lookup?op=get&options=mr&search=" + keyIdHex;
-            Log.d(Constants.TAG, "hkp keyserver get: " + query);
-            HttpGet get = new HttpGet(query);
-            HttpResponse response = client.execute(get);
-            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-                throw new QueryException("not found");
+            String data;
+            if (useCache && cached != null && cached.isFresh()) {
+                Log.d(Constants.TAG, "hkp keyserver get from cache: " + cacheKey);
+                data = new String(cached.getData(), "UTF-8");
+            } else {
+                String query = "http://" + mHost + ":" + mPort + request;
+                Log.d(Constants.TAG, "hkp keyserver get: " + query);
+                HttpGet get = new HttpGet(query);
+                if (cached != null) {
+                    get.addHeader("If-Modified-Since",
+                            DateUtils.formatDate(new Date(cached.getIfModifiedSince())));
+                }
+                HttpResponse response = client.execute(get);
+                int status = response.getStatusLine().getStatusCode();
+                if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                    cache.refresh(cacheKey, cached);
+                    data = new String(cached.getData(), "UTF-8");
+                } else if (status != HttpStatus.SC_OK) {
+                    throw new QueryException("not found");
+                } else {
+                    HttpEntity entity = response.getEntity();
+                    InputStream is = entity.getContent();
+                    data = readAll(is, EntityUtils.getContentCharSet(entity));
+                    if (cache != null) {
+                        cache.put(cacheKey, getLastModified(response), data.getBytes("UTF-8"));
+                    }
+                }
             }
 
-            HttpEntity entity = response.getEntity();
-            InputStream is = entity.getContent();
-            String data = readAll(is, EntityUtils.getContentCharSet(entity));
             Matcher matcher = PgpHelper.PGP_PUBLIC_KEY.matcher(data);
             if (matcher.find()) {
                 return matcher.group(1);
@@ -329,6 +613,18 @@ public class HkpKeyServer extends KeyServer {
         return null;
     }
 
+    private static long getLastModified(HttpResponse response) {
+        Header header = response.getFirstHeader("Last-Modified");
+        if (header == null) {
+            return 0;
+        }
+        try {
+            return DateUtils.parseDate(header.getValue()).getTime();
+        } catch (DateParseException e) {
+            return 0;
+        }
+    }
+
     @Override
     public void add(String armoredKey) throws AddKeyException {
         HttpClient client = new DefaultHttpClient();
@@ -43,6 +43,14 @@ public abstract class KeyServer {
         private static final long serialVersionUID = -507574859137295530L;
     }
 
+    /**
+     * Receives search results while they are parsed, before the search returns. Called on the
+     * threads doing the search.
+     */
+    public interface SearchListener {
+        void onResult(ImportKeysListEntry entry);
+    }
+
     abstract List<ImportKeysListEntry> search(String query) throws QueryException, TooManyResponses,
             InsufficientQuery;
 
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.spongycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.Constants;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Size bounded on-disk cache of keyserver responses, keyed by server and request.
+ *
+ * Responses younger than the TTL are used without asking the server. Older ones are
+ * revalidated with If-Modified-Since, using the Last-Modified date the server sent or else the
+ * time they were fetched. When the cache grows over its size, the least recently used
+ * responses are deleted; the modification time of the files is used to track their use.
+ *
+ * Several processes of the app may use the same directory. Each one keeps a running estimate
+ * of its size, only when that exceeds the limit the directory is listed again.
+ */
+public class KeyServerCache {
+
+    // format of the cache files, increase when it changes to ignore old files
+    private static final int VERSION = 1;
+
+    private static final String TMP_SUFFIX = ".tmp";
+    // temporary files older than this are left over from a crashed write
+    private static final long TMP_MAX_AGE = 60 * 1000;
+
+    public static class Entry {
+        private final long mFetched;
+        private final long mLastModified;
+        private final byte[] mData;
+        private final boolean mFresh;
+
+        Entry(long fetched, long lastModified, byte[] data, boolean fresh) {
+            mFetched = fetched;
+            mLastModified = lastModified;
+            mData = data;
+            mFresh = fresh;
+        }
+
+        /**
+         * @return true if the entry can be used without revalidating it
+         */
+        public boolean isFresh() {
+            return mFresh;
+        }
+
+        /**
+         * @return time to send as If-Modified-Since when revalidating the entry
+         */
+        public long getIfModifiedSince() {
+            return mLastModified != 0 ? mLastModified : mFetched;
+        }
+
+        public long getLastModified() {
+            return mLastModified;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+    }
+
+    private final File mDir;
+    private final long mMaxBytes;
+    private final long mTtl;
+    // size of the files in mDir, -1 until it is first needed
+    private long mSize = -1;
+
+    /**
+     * @param dir      directory of the cache, used exclusively by it
+     * @param maxBytes size of the responses above which the least recently used ones are deleted
+     * @param ttl      time in milliseconds a response is used without revalidating it
+     */
+    public KeyServerCache(File dir, long maxBytes, long ttl) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        mTtl = ttl;
+    }
+
+    /**
+     * @return cached response, or null if there is none
+     */
+    public synchronized Entry get(String key) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            long fetched = in.readLong();
+            long lastModified = in.readLong();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+
+            file.setLastModified(System.currentTimeMillis());
+            long age = System.currentTimeMillis() - fetched;
+            return new Entry(fetched, lastModified, data, age >= 0 && age < mTtl);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Reading keyserver cache file failed", e);
+            long length = file.length();
+            if (file.delete() && mSize > 0) {
+                mSize = Math.max(mSize - length, 0);
+            }
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Stores a response that was just fetched
+     *
+     * @param lastModified Last-Modified date sent by the server, 0 if unknown
+     */
+    public synchronized void put(String key, long lastModified, byte[] data) {
+        write(key, System.currentTimeMillis(), lastModified, data);
+        if (mSize > mMaxBytes) {
+            trim();
+        }
+    }
+
+    /**
+     * Marks a response as fetched now, after the server confirmed it is unchanged
+     */
+    public synchronized void refresh(String key, Entry entry) {
+        write(key, System.currentTimeMillis(), entry.mLastModified, entry.mData);
+    }
+
+    private void write(String key, long fetched, long lastModified, byte[] data) {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.e(Constants.TAG, "Creating keyserver cache directory failed");
+            return;
+        }
+
+        if (mSize < 0) {
+            mSize = 0;
+            File[] files = mDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    mSize += file.length();
+                }
+            }
+        }
+
+        // write to a temporary file first, so readers never see a partially written response.
+        // Its name is unique, other processes may write the same response at the same time
+        File file = getFile(key);
+        File tmp = null;
+        DataOutputStream out = null;
+        try {
+            tmp = File.createTempFile(file.getName(), TMP_SUFFIX, mDir);
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            out.writeInt(VERSION);
+            out.writeLong(fetched);
+            out.writeLong(lastModified);
+            out.writeInt(data.length);
+            out.write(data);
+            out.close();
+            out = null;
+            long replaced = file.length();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("renaming " + tmp + " failed");
+            }
+            mSize += file.length() - replaced;
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Writing keyserver cache file failed", e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Deletes the least recently used responses until the cache fits its size again
+     */
+    private void trim() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        ArrayList<File> responses = new ArrayList<File>(files.length);
+        long size = 0;
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (!file.getName().endsWith(TMP_SUFFIX)) {
+                responses.add(file);
+                size += file.length();
+            } else if (now - file.lastModified() > TMP_MAX_AGE) {
+                // younger ones are written by another process right now
+                file.delete();
+            }
+        }
+        mSize = size;
+        if (size <= mMaxBytes) {
+            return;
+        }
+
+        Collections.sort(responses, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < responses.size() && size > mMaxBytes; i++) {
+            long length = responses.get(i).length();
+            if (responses.get(i).delete()) {
+                size -= length;
+            }
+        }
+        mSize = size;
+    }
+
+    private File getFile(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return new File(mDir, Hex.toHexString(digest.digest(key.getBytes("UTF-8"))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
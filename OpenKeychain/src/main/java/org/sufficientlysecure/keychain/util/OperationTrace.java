@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import org.sufficientlysecure.keychain.Constants;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Durations of the phases of a single encrypt or decrypt operation, plus the number of bytes
+ * it processed. Phases are recorded in the order they first occur, a phase recorded more than
+ * once accumulates.
+ *
+ * Streaming phases (decryption, decompression, hashing...) are measured by wrapping the
+ * corresponding stream in a TimedInputStream or TimedOutputStream. Nested streams include the
+ * time of the streams they read from or write to, the operations subtract these themselves.
+ */
+public class OperationTrace implements Parcelable {
+
+    public static final String PHASE_KEY_LOOKUP = "key_lookup";
+    public static final String PHASE_S2K_UNLOCK = "s2k_unlock";
+    public static final String PHASE_SESSION_KEY = "session_key";
+    public static final String PHASE_DECRYPT = "decrypt";
+    public static final String PHASE_ENCRYPT = "encrypt";
+    public static final String PHASE_COMPRESSION = "compression";
+    public static final String PHASE_DECOMPRESSION = "decompression";
+    public static final String PHASE_SIGNATURE_HASH = "signature_hash";
+    public static final String PHASE_SIGNATURE_GENERATE = "signature_generate";
+    public static final String PHASE_SIGNATURE_VERIFY = "signature_verify";
+    public static final String PHASE_MDC_CHECK = "mdc_check";
+    public static final String PHASE_OUTPUT = "output";
+
+    /**
+     * Receives the trace of every finished operation it is set on
+     */
+    public interface Sink {
+        void onOperationTraced(String operation, OperationTrace trace);
+    }
+
+    public static final Sink LOG_SINK = new Sink() {
+        @Override
+        public void onOperationTraced(String operation, OperationTrace trace) {
+            Log.d(Constants.TAG, operation + ": " + trace);
+        }
+    };
+
+    private final LinkedHashMap<String, Long> mPhaseNanos = new LinkedHashMap<String, Long>();
+    private long mStartNanos;
+    private long mTotalNanos;
+    private long mBytesProcessed;
+
+    public OperationTrace() {
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * @return timestamp to pass to end()
+     */
+    public long begin() {
+        return System.nanoTime();
+    }
+
+    public void end(String phase, long begin) {
+        add(phase, System.nanoTime() - begin);
+    }
+
+    public void add(String phase, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        Long previous = mPhaseNanos.get(phase);
+        mPhaseNanos.put(phase, previous == null ? nanos : previous + nanos);
+    }
+
+    public void addBytesProcessed(long bytes) {
+        mBytesProcessed += bytes;
+    }
+
+    /**
+     * Stops the total time, called once at the end of the operation
+     */
+    public void finish() {
+        mTotalNanos = System.nanoTime() - mStartNanos;
+    }
+
+    public Set<String> getPhases() {
+        return mPhaseNanos.keySet();
+    }
+
+    public long getPhaseMillis(String phase) {
+        Long nanos = mPhaseNanos.get(phase);
+        return nanos == null ? 0 : nanos / 1000000;
+    }
+
+    public long getTotalMillis() {
+        return mTotalNanos / 1000000;
+    }
+
+    public long getBytesProcessed() {
+        return mBytesProcessed;
+    }
+
+    /**
+     * @return processed bytes per second over the whole operation, 0 if unknown
+     */
+    public long getThroughput() {
+        if (mTotalNanos == 0) {
+            return 0;
+        }
+        return (long) (mBytesProcessed * 1000000000.0 / mTotalNanos);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("total ").append(getTotalMillis()).append("ms");
+        for (Map.Entry<String, Long> entry : mPhaseNanos.entrySet()) {
+            builder.append(", ").append(entry.getKey()).append(" ")
+                    .append(entry.getValue() / 1000000).append("ms");
+        }
+        builder.append(", ").append(mBytesProcessed).append(" bytes, ")
+                .append(getThroughput() / 1024).append(" KB/s");
+        return builder.toString();
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mPhaseNanos.size());
+        for (Map.Entry<String, Long> entry : mPhaseNanos.entrySet()) {
+            dest.writeString(entry.getKey());
+            dest.writeLong(entry.getValue());
+        }
+        dest.writeLong(mTotalNanos);
+        dest.writeLong(mBytesProcessed);
+    }
+
+    public static final Creator<OperationTrace> CREATOR = new Creator<OperationTrace>() {
+        public OperationTrace createFromParcel(final Parcel source) {
+            OperationTrace trace = new OperationTrace();
+            int size = source.readInt();
+            for (int i = 0; i < size; i++) {
+                trace.mPhaseNanos.put(source.readString(), source.readLong());
+            }
+            trace.mTotalNanos = source.readLong();
+            trace.mBytesProcessed = source.readLong();
+            return trace;
+        }
+
+        public OperationTrace[] newArray(final int size) {
+            return new OperationTrace[size];
+        }
+    };
+
+    /**
+     * Measures the time spent in reads, including the streams it reads from
+     */
+    public static class TimedInputStream extends FilterInputStream {
+        private long mNanos;
+
+        public TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long begin = System.nanoTime();
+            try {
+                return super.read();
+            } finally {
+                mNanos += System.nanoTime() - begin;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long begin = System.nanoTime();
+            try {
+                return super.read(b, off, len);
+            } finally {
+                mNanos += System.nanoTime() - begin;
+            }
+        }
+
+        public long getNanos() {
+            return mNanos;
+        }
+    }
+
+    /**
+     * Measures the time spent in writes, including the streams it writes to, and counts the
+     * bytes written
+     */
+    public static class TimedOutputStream extends FilterOutputStream {
+        private long mNanos;
+        private long mBytes;
+
+        public TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long begin = System.nanoTime();
+            try {
+                out.write(b);
+                mBytes++;
+            } finally {
+                mNanos += System.nanoTime() - begin;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would write byte by byte
+            long begin = System.nanoTime();
+            try {
+                out.write(b, off, len);
+                mBytes += len;
+            } finally {
+                mNanos += System.nanoTime() - begin;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long begin = System.nanoTime();
+            try {
+                out.flush();
+            } finally {
+                mNanos += System.nanoTime() - begin;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // streams of the stack are closed explicitly and in order, don't close the wrapped one
+            flush();
+        }
+
+        public long getNanos() {
+            return mNanos;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+    }
+}
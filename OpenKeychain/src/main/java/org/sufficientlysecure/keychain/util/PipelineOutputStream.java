@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * OutputStream that hands everything written to it over to a worker thread, which writes it to
+ * the wrapped stream. Chaining these between the streams of a stream stack runs each stream's
+ * work (compression, encryption, armoring...) on its own thread.
+ *
+ * Data is passed on in buffers of BUFFER_SIZE through a bounded queue, so a slow stage blocks
+ * the stages before it instead of buffering without limit. The wrapped stream sees exactly the
+ * same bytes in the same order, only the chunking of write calls differs.
+ *
+ * finish() must be called before anything else writes to the wrapped stream, otherwise the
+ * order of writes is undefined. abort() stops the worker thread if the pipeline is abandoned.
+ */
+public class PipelineOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int QUEUE_SIZE = 4;
+    // one buffer being filled, QUEUE_SIZE queued, one being written by the worker
+    private static final int MAX_BUFFERS = QUEUE_SIZE + 2;
+
+    private static class Chunk {
+        final byte[] mData;
+        final int mLength;
+
+        Chunk(byte[] data, int length) {
+            mData = data;
+            mLength = length;
+        }
+    }
+
+    private static final Chunk END = new Chunk(null, 0);
+
+    private final OutputStream mOut;
+    private final BlockingQueue<Chunk> mQueue = new ArrayBlockingQueue<Chunk>(QUEUE_SIZE);
+    private final BlockingQueue<byte[]> mFreeBuffers = new LinkedBlockingQueue<byte[]>();
+    private final Thread mThread;
+
+    private volatile Exception mError;
+    private volatile boolean mAborted;
+
+    private byte[] mBuffer;
+    private int mCount;
+    private int mAllocated;
+    private boolean mFinished;
+
+    public PipelineOutputStream(OutputStream out, String name) {
+        mOut = out;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Pipeline " + name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    private void drain() {
+        try {
+            while (!mAborted) {
+                Chunk chunk = mQueue.take();
+                if (chunk == END) {
+                    return;
+                }
+                // after an error, keep taking chunks so the writing thread does not block
+                if (mError == null) {
+                    try {
+                        mOut.write(chunk.mData, 0, chunk.mLength);
+                    } catch (Exception e) {
+                        mError = e;
+                        // the interrupt of abort() may have ended up in this exception, which
+                        // clears it, so don't wait for another one in take()
+                        if (mAborted) {
+                            return;
+                        }
+                    }
+                }
+                mFreeBuffers.add(chunk.mData);
+            }
+        } catch (InterruptedException e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureBuffer();
+        mBuffer[mCount++] = (byte) b;
+        if (mCount == BUFFER_SIZE) {
+            handOver();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensureBuffer();
+            int n = Math.min(len, BUFFER_SIZE - mCount);
+            System.arraycopy(b, off, mBuffer, mCount, n);
+            mCount += n;
+            off += n;
+            len -= n;
+            if (mCount == BUFFER_SIZE) {
+                handOver();
+            }
+        }
+    }
+
+    /**
+     * Passes on buffered data. The wrapped stream is not flushed, since its worker thread
+     * may still be writing to it.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (mCount > 0) {
+            handOver();
+        }
+    }
+
+    /**
+     * Passes on all buffered data and waits until the worker thread has written it to the
+     * wrapped stream. The wrapped stream is not closed.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        flush();
+        mFinished = true;
+        put(END);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            abort();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while finishing pipeline stage");
+        }
+        checkError();
+    }
+
+    /**
+     * Stops the worker thread without writing pending data, does nothing after finish()
+     */
+    public void abort() {
+        mFinished = true;
+        mAborted = true;
+        mThread.interrupt();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        mOut.close();
+    }
+
+    private void ensureBuffer() throws IOException {
+        if (mFinished) {
+            throw new IOException("pipeline stage already finished");
+        }
+        if (mBuffer != null) {
+            return;
+        }
+        mBuffer = mFreeBuffers.poll();
+        if (mBuffer == null) {
+            if (mAllocated < MAX_BUFFERS) {
+                mAllocated++;
+                mBuffer = new byte[BUFFER_SIZE];
+            } else {
+                try {
+                    mBuffer = mFreeBuffers.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for pipeline");
+                }
+            }
+        }
+    }
+
+    private void handOver() throws IOException {
+        checkError();
+        put(new Chunk(mBuffer, mCount));
+        mBuffer = null;
+        mCount = 0;
+    }
+
+    private void put(Chunk chunk) throws IOException {
+        try {
+            mQueue.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for pipeline");
+        }
+    }
+
+    private void checkError() throws IOException {
+        Exception error = mError;
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error != null) {
+            throw new InterruptedIOException("pipeline stage was interrupted");
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import android.os.SystemClock;
+
+/**
+ * Wraps a ProgressDialogUpdater and coalesces plain progress updates, so data loops can report
+ * progress on every chunk without sending a message to the UI thread each time.
+ *
+ * Updates with a message mark a new step of the operation and are always passed on. Updates
+ * without a message are dropped if they don't change the progress, or if the last update was
+ * passed on less than the minimum interval ago, unless they report completion.
+ *
+ * Like the operations using it, this is meant to be used from a single thread.
+ */
+public class RateLimitedProgress implements ProgressDialogUpdater {
+
+    public static final int DEFAULT_UPDATES_PER_SECOND = 10;
+
+    final ProgressDialogUpdater mWrapped;
+    final long mMinInterval;
+
+    private long mLastUpdate;
+    private int mLastCurrent = -1;
+    private int mLastTotal = 0;
+
+    public RateLimitedProgress(ProgressDialogUpdater wrapped, int updatesPerSecond) {
+        this.mWrapped = wrapped;
+        this.mMinInterval = 1000 / updatesPerSecond;
+    }
+
+    /**
+     * @return progress wrapped with the default rate, or progress itself if it is null or
+     * already rate limited
+     */
+    public static ProgressDialogUpdater wrap(ProgressDialogUpdater progress) {
+        if (progress == null || progress instanceof RateLimitedProgress) {
+            return progress;
+        }
+        return new RateLimitedProgress(progress, DEFAULT_UPDATES_PER_SECOND);
+    }
+
+    public void setProgress(String message, int current, int total) {
+        passedOn(current, total);
+        mWrapped.setProgress(message, current, total);
+    }
+
+    public void setProgress(int resourceId, int current, int total) {
+        passedOn(current, total);
+        mWrapped.setProgress(resourceId, current, total);
+    }
+
+    public void setProgress(int current, int total) {
+        // compare fractions, the same progress may be reported with a different total
+        if ((long) current * mLastTotal == (long) mLastCurrent * total) {
+            return;
+        }
+        if (current < total && SystemClock.elapsedRealtime() - mLastUpdate < mMinInterval) {
+            return;
+        }
+        passedOn(current, total);
+        mWrapped.setProgress(current, total);
+    }
+
+    private void passedOn(int current, int total) {
+        mLastUpdate = SystemClock.elapsedRealtime();
+        mLastCurrent = current;
+        mLastTotal = total;
+    }
+
+}
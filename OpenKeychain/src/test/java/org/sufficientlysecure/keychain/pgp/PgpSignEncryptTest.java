@@ -0,0 +1,149 @@
+package org.sufficientlysecure.keychain.pgp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openintents.openpgp.OpenPgpSignatureResult;
+import org.robolectric.Robolectric;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPKeyRingGenerator;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.Id;
+import org.sufficientlysecure.keychain.RobolectricGradleTestRunner;
+import org.sufficientlysecure.keychain.provider.KeyRingCache;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.OperationTrace;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class PgpSignEncryptTest {
+
+    private static final String KEY_PASSPHRASE = "swag";
+    private static final String SYMMETRIC_PASSPHRASE = "symmetric swag";
+
+    private long mMasterKeyId;
+    private byte[] mInput;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator generator =
+                KeyPairGenerator.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        generator.initialize(1024);
+        PGPKeyPair keyPair = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL,
+                generator.generateKeyPair(), new Date(System.currentTimeMillis() - 60000));
+
+        PGPSignatureSubpacketGenerator hashed = new PGPSignatureSubpacketGenerator();
+        hashed.setKeyFlags(false, KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA);
+        PGPDigestCalculator sha1 = new JcaPGPDigestCalculatorProviderBuilder().build()
+                .get(HashAlgorithmTags.SHA1);
+        PGPKeyRingGenerator ringGenerator = new PGPKeyRingGenerator(
+                PGPSignature.POSITIVE_CERTIFICATION, keyPair, "Test <test@example.com>", sha1,
+                hashed.generate(), null,
+                new JcaPGPContentSignerBuilder(PGPPublicKey.RSA_GENERAL, HashAlgorithmTags.SHA256)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256, sha1)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .build(KEY_PASSPHRASE.toCharArray()));
+
+        // signing and verifying find the keyrings in the cache, without a database
+        mMasterKeyId = keyPair.getKeyID();
+        KeyRingCache.clear();
+        long generation = KeyRingCache.getGeneration();
+        KeyRingCache.putSecretKeyRing(mMasterKeyId, ringGenerator.generateSecretKeyRing(),
+                generation);
+        KeyRingCache.putPublicKeyRing(mMasterKeyId, ringGenerator.generatePublicKeyRing(),
+                generation);
+        KeyRingCache.putMasterKeyId(mMasterKeyId, mMasterKeyId, generation);
+
+        // several pipeline buffers of partly compressible data
+        mInput = new byte[700 * 1000 + 123];
+        Random random = new Random(42);
+        for (int i = 0; i < mInput.length; i++) {
+            mInput[i] = (byte) (i % 3 == 0 ? random.nextInt() : 'a' + i % 26);
+        }
+    }
+
+    private PgpSignEncrypt build(byte[] input, boolean pipelined, ByteArrayOutputStream out) {
+        return new PgpSignEncrypt.Builder(Robolectric.application,
+                new InputData(new ByteArrayInputStream(input), input.length), out)
+                .compressionId(Id.choice.compression.zlib)
+                .symmetricPassphrase(SYMMETRIC_PASSPHRASE)
+                .symmetricEncryptionAlgorithm(PGPEncryptedData.AES_128)
+                .signatureKeyId(mMasterKeyId)
+                .signatureHashAlgorithm(HashAlgorithmTags.SHA256)
+                .signaturePassphrase(KEY_PASSPHRASE)
+                .binaryInput(true)
+                .pipelined(pipelined)
+                .build();
+    }
+
+    private byte[] signEncrypt(byte[] input, boolean pipelined) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        build(input, pipelined, out).execute();
+        return out.toByteArray();
+    }
+
+    private byte[] decryptVerify(byte[] encrypted) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpDecryptVerifyResult result = new PgpDecryptVerify.Builder(Robolectric.application,
+                new InputData(new ByteArrayInputStream(encrypted), encrypted.length), out)
+                .allowSymmetricDecryption(true)
+                .passphrase(SYMMETRIC_PASSPHRASE)
+                .build()
+                .execute();
+        assertEquals(OpenPgpSignatureResult.SIGNATURE_SUCCESS_UNCERTIFIED,
+                result.getSignatureResult().getStatus());
+        return out.toByteArray();
+    }
+
+    @Test
+    public void pipelinedMatchesSequential() throws Exception {
+        byte[] sequential = decryptVerify(signEncrypt(mInput, false));
+        byte[] pipelined = decryptVerify(signEncrypt(mInput, true));
+
+        assertArrayEquals(mInput, sequential);
+        assertArrayEquals(mInput, pipelined);
+    }
+
+    @Test
+    public void tracesEveryStreamPhase() throws Exception {
+        for (boolean pipelined : new boolean[]{false, true}) {
+            PgpSignEncrypt signEncrypt = build(mInput, pipelined, new ByteArrayOutputStream());
+            signEncrypt.execute();
+
+            // phases without positive time are left out
+            Set<String> phases = signEncrypt.getTrace().getPhases();
+            assertTrue(phases.toString(), phases.contains(OperationTrace.PHASE_COMPRESSION));
+            assertTrue(phases.toString(), phases.contains(OperationTrace.PHASE_ENCRYPT));
+            assertTrue(phases.toString(), phases.contains(OperationTrace.PHASE_OUTPUT));
+        }
+    }
+
+    @Test
+    public void pipelinedHandlesEmptyInput() throws Exception {
+        assertArrayEquals(new byte[0], decryptVerify(signEncrypt(new byte[0], true)));
+    }
+
+}
@@ -0,0 +1,81 @@
+package org.sufficientlysecure.keychain.provider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+
+import org.sufficientlysecure.keychain.RobolectricGradleTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class KeyRingCacheTest {
+
+    private static final int MAX_SUBKEYS = 512;
+
+    @Before
+    public void setUp() {
+        KeyRingCache.clear();
+    }
+
+    private static void put(long keyId, long masterKeyId) {
+        KeyRingCache.putMasterKeyId(keyId, masterKeyId, KeyRingCache.getGeneration());
+    }
+
+    private static Long get(long keyId) {
+        return KeyRingCache.getMasterKeyId(Robolectric.application, keyId);
+    }
+
+    @Test
+    public void mapsSubkeysToMasterKeys() {
+        put(1, 100);
+        put(-2, 100);
+        put(0, Long.MIN_VALUE);
+        put(3, 0);
+
+        assertEquals(Long.valueOf(100), get(1));
+        assertEquals(Long.valueOf(100), get(-2));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), get(0));
+        assertEquals(Long.valueOf(0), get(3));
+        assertNull(get(4));
+
+        put(1, 200);
+        assertEquals(Long.valueOf(200), get(1));
+    }
+
+    @Test
+    public void evictsUnusedEntriesWhenFull() {
+        for (long keyId = 0; keyId < MAX_SUBKEYS; keyId++) {
+            put(keyId * 7919, keyId);
+        }
+        for (long keyId = 0; keyId < 10; keyId++) {
+            get(keyId * 7919);
+        }
+
+        put(-1, 1);
+
+        for (long keyId = 0; keyId < 10; keyId++) {
+            assertEquals(Long.valueOf(keyId), get(keyId * 7919));
+        }
+        assertNull(get(10 * 7919));
+        assertEquals(Long.valueOf(1), get(-1));
+    }
+
+    @Test
+    public void invalidateDropsSubkeysOfRingAndMisses() {
+        put(1, 100);
+        put(2, 100);
+        put(3, 300);
+        put(4, 0);
+
+        KeyRingCache.invalidate(100);
+
+        assertNull(get(1));
+        assertNull(get(2));
+        assertEquals(Long.valueOf(300), get(3));
+        assertNull(get(4));
+    }
+
+}
@@ -0,0 +1,270 @@
+package org.sufficientlysecure.keychain.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.sufficientlysecure.keychain.RobolectricGradleTestRunner;
+import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class FederatedKeyServerTest {
+
+    private static final String ALICE_FINGERPRINT = "0123456789abcdef0123456789abcdef01234567";
+
+    /**
+     * Answers every request with the same response, standing in for a keyserver
+     */
+    private static class StubServer implements Runnable {
+        private final ServerSocket mSocket;
+        private final List<Socket> mClients = Collections.synchronizedList(new ArrayList<Socket>());
+        private final int mStatus;
+        private final String mBody;
+        private final long mDelayMillis;
+
+        StubServer(int status, String body, long delayMillis) throws IOException {
+            mStatus = status;
+            mBody = body;
+            mDelayMillis = delayMillis;
+            mSocket = bind();
+            Thread thread = new Thread(this, "Stub keyserver");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // HkpKeyServer takes the port as a short, stay below the ephemeral ports
+        private static ServerSocket bind() throws IOException {
+            Random random = new Random();
+            InetAddress localhost = InetAddress.getByName("127.0.0.1");
+            IOException error = null;
+            for (int i = 0; i < 50; i++) {
+                try {
+                    return new ServerSocket(20000 + random.nextInt(10000), 50, localhost);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            throw error;
+        }
+
+        String getHost() {
+            return "127.0.0.1:" + mSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    final Socket client = mSocket.accept();
+                    mClients.add(client);
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            respond(client);
+                        }
+                    }).start();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void respond(Socket client) {
+            try {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(client.getInputStream(), "UTF-8"));
+                String line;
+                while ((line = in.readLine()) != null && line.length() > 0) {
+                    // skip request and headers
+                }
+                Thread.sleep(mDelayMillis);
+                byte[] body = mBody.getBytes("UTF-8");
+                OutputStream out = client.getOutputStream();
+                out.write(("HTTP/1.0 " + mStatus + " Stub\r\n"
+                        + "Content-Type: text/plain\r\n"
+                        + "Content-Length: " + body.length + "\r\n"
+                        + "Connection: close\r\n\r\n").getBytes("UTF-8"));
+                out.write(body);
+                out.flush();
+            } catch (Exception e) {
+                // client went away or server was closed
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+            synchronized (mClients) {
+                for (Socket client : mClients) {
+                    client.close();
+                }
+            }
+        }
+    }
+
+    private final ArrayList<StubServer> mServers = new ArrayList<StubServer>();
+
+    @Before
+    public void setUp() {
+        HkpKeyServer.setCache(null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (StubServer server : mServers) {
+            server.close();
+        }
+    }
+
+    private StubServer server(int status, String body, long delayMillis) throws IOException {
+        StubServer server = new StubServer(status, body, delayMillis);
+        mServers.add(server);
+        return server;
+    }
+
+    private static FederatedKeyServer federated(StubServer... servers) {
+        String[] hosts = new String[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            hosts[i] = servers[i].getHost();
+        }
+        return new FederatedKeyServer(hosts);
+    }
+
+    private static ImportKeysListEntry find(List<ImportKeysListEntry> entries, String keyIdHex) {
+        for (ImportKeysListEntry entry : entries) {
+            if (entry.getKeyIdHex().equalsIgnoreCase(keyIdHex)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void mergesResultsByKeyId() throws Exception {
+        // the first server only sends the long key id of alice's key, the second its fingerprint
+        StubServer first = server(200, ""
+                + "pub:89ABCDEF01234567:1:2048:1234567890::\n"
+                + "uid:Alice <alice@example.com>:::\n"
+                + "pub:1111111111111111:1:2048:1234567890::\n"
+                + "uid:Bob <bob@example.com>:::\n", 0);
+        StubServer second = server(200, ""
+                + "pub:" + ALICE_FINGERPRINT.toUpperCase() + ":1:2048:1234567890::r\n"
+                + "uid:Alice <alice@example.com>:::\n"
+                + "uid:Alice <alice@work.example.com>:::\n"
+                + "pub:2222222222222222:1:2048:1234567890::\n"
+                + "uid:Carol <carol@example.com>:::\n", 300);
+
+        FederatedKeyServer keyServer = federated(first, second);
+        List<ImportKeysListEntry> entries = keyServer.search("example.com");
+
+        assertEquals(3, entries.size());
+        ImportKeysListEntry alice = find(entries, "0x89ABCDEF01234567");
+        assertEquals(first.getHost(), alice.getKeyServer());
+        assertEquals(ALICE_FINGERPRINT, alice.getFingerPrintHex());
+        assertTrue(alice.isRevoked());
+        assertEquals(2, alice.getUserIds().size());
+        assertEquals(first.getHost(), find(entries, "0x1111111111111111").getKeyServer());
+        assertEquals(second.getHost(), find(entries, "0x2222222222222222").getKeyServer());
+        assertEquals(2, keyServer.getLastSearchStats().size());
+    }
+
+    @Test
+    public void passesEachKeyToListenerOnce() throws Exception {
+        String index = ""
+                + "pub:" + ALICE_FINGERPRINT + ":1:2048:1234567890::\n"
+                + "uid:Alice <alice@example.com>:::\n";
+        StubServer first = server(200, index, 0);
+        StubServer second = server(200, "pub:89ABCDEF01234567:1:2048:1234567890::\n"
+                + "uid:Alice <alice@example.com>:::\n", 100);
+
+        final ArrayList<ImportKeysListEntry> received = new ArrayList<ImportKeysListEntry>();
+        federated(first, second).search("alice", new KeyServer.SearchListener() {
+            @Override
+            public void onResult(ImportKeysListEntry entry) {
+                synchronized (received) {
+                    received.add(entry);
+                }
+            }
+        });
+
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    public void stopsWaitingAfterMergeDeadline() throws Exception {
+        StubServer fast = server(200, "pub:1111111111111111:1:2048:1234567890::\n"
+                + "uid:Bob <bob@example.com>:::\n", 0);
+        StubServer slow = server(200, "pub:2222222222222222:1:2048:1234567890::\n"
+                + "uid:Carol <carol@example.com>:::\n", 8000);
+
+        FederatedKeyServer keyServer = federated(fast, slow);
+        long start = System.currentTimeMillis();
+        List<ImportKeysListEntry> entries = keyServer.search("example.com");
+        long millis = System.currentTimeMillis() - start;
+
+        assertEquals(1, entries.size());
+        assertEquals("0x1111111111111111", entries.get(0).getKeyIdHex());
+        assertTrue("waited " + millis + "ms", millis < 5000);
+        assertEquals(1, keyServer.getLastSearchStats().size());
+        assertEquals(fast.getHost(), keyServer.getLastSearchStats().get(0).getKeyServer());
+    }
+
+    @Test
+    public void waitsForResultsAfterEmptyAnswer() throws Exception {
+        // an empty answer does not start the deadline
+        StubServer empty = server(404, "No keys found", 0);
+        StubServer slow = server(200, "pub:2222222222222222:1:2048:1234567890::\n"
+                + "uid:Carol <carol@example.com>:::\n", 2500);
+
+        List<ImportKeysListEntry> entries = federated(empty, slow).search("example.com");
+
+        assertEquals(1, entries.size());
+        assertEquals("0x2222222222222222", entries.get(0).getKeyIdHex());
+    }
+
+    @Test
+    public void ignoresErrorsWhenAServerAnswers() throws Exception {
+        StubServer failing = server(500, "Internal error", 0);
+        StubServer empty = server(404, "No keys found", 200);
+
+        List<ImportKeysListEntry> entries = federated(failing, empty).search("example.com");
+
+        assertTrue(entries.isEmpty());
+    }
+
+    @Test(expected = KeyServer.TooManyResponses.class)
+    public void prefersTooManyResponsesOverOtherErrors() throws Exception {
+        StubServer tooMany = server(500, "Too many keys found", 200);
+        StubServer failing = server(500, "Internal error", 0);
+
+        federated(failing, tooMany).search("example.com");
+    }
+
+    @Test(expected = KeyServer.QueryException.class)
+    public void failsWhenNoServerAnswers() throws Exception {
+        federated(server(500, "Internal error", 0), server(500, "Internal error", 100))
+                .search("example.com");
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.sufficientlysecure.keychain.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.sufficientlysecure.keychain.RobolectricGradleTestRunner;
+import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class HkpKeyServerTest {
+
+    private static final String INDEX = ""
+            + "info:1:4\n"
+            + "pub:0123456789ABCDEF0123456789ABCDEF01234567:1:2048:1234567890::\n"
+            + "uid:Alice%20Example%20%3Calice@example.com%3E:1234567890::\n"
+            + "uid:Universit%C3%A4t <uni@example.com>:1234567890::\n"
+            + "pub:FEDCBA9876543210:17:1024:1234567890::r\n"
+            + "uid:Bob <bob@example.com>:::\n"
+            + "pub:1111111111111111:1:2048:1234567890::\n"
+            + "pub:2222222222222222:1:4096:1234567890::\n"
+            + "uid:Carol <carol@example.com>:::\n";
+
+    private static List<ImportKeysListEntry> parse(String index, KeyServer.SearchListener listener)
+            throws Exception {
+        return HkpKeyServer.parseIndex(new ByteArrayInputStream(index.getBytes("UTF-8")),
+                listener);
+    }
+
+    @Test
+    public void parsesKeysAndUserIds() throws Exception {
+        List<ImportKeysListEntry> entries = parse(INDEX, null);
+
+        // the key without user ids is skipped
+        assertEquals(3, entries.size());
+
+        ImportKeysListEntry alice = entries.get(0);
+        assertEquals("0123456789abcdef0123456789abcdef01234567", alice.getFingerPrintHex());
+        assertEquals("0x89ABCDEF01234567", alice.getKeyIdHex());
+        assertEquals(2048, alice.getBitStrength());
+        assertFalse(alice.isRevoked());
+        assertEquals(2, alice.getUserIds().size());
+        assertEquals("Alice Example <alice@example.com>", alice.getUserIds().get(0));
+        assertEquals("Universität <uni@example.com>", alice.getUserIds().get(1));
+
+        ImportKeysListEntry bob = entries.get(1);
+        assertNull(bob.getFingerPrintHex());
+        assertEquals("0xFEDCBA9876543210", bob.getKeyIdHex());
+        assertTrue(bob.isRevoked());
+        assertEquals("Bob <bob@example.com>", bob.getUserIds().get(0));
+
+        assertEquals("0x2222222222222222", entries.get(2).getKeyIdHex());
+    }
+
+    @Test
+    public void passesEntriesToListenerWhileParsing() throws Exception {
+        final ArrayList<ImportKeysListEntry> received = new ArrayList<ImportKeysListEntry>();
+        List<ImportKeysListEntry> entries = parse(INDEX, new KeyServer.SearchListener() {
+            @Override
+            public void onResult(ImportKeysListEntry entry) {
+                // complete when passed on
+                assertFalse(entry.getUserIds().isEmpty());
+                received.add(entry);
+            }
+        });
+
+        assertEquals(entries.size(), received.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertSame(entries.get(i), received.get(i));
+        }
+    }
+
+    @Test
+    public void truncatesAtMaxResults() throws Exception {
+        StringBuilder index = new StringBuilder();
+        for (int i = 0; i < HkpKeyServer.MAX_RESULTS + 10; i++) {
+            index.append(String.format("pub:%016X:1:2048:1234567890::\n", i));
+            index.append("uid:Key ").append(i).append(" <key").append(i)
+                    .append("@example.com>:::\n");
+        }
+
+        List<ImportKeysListEntry> entries = parse(index.toString(), null);
+
+        assertEquals(HkpKeyServer.MAX_RESULTS, entries.size());
+        assertEquals(String.format("0x%016X", HkpKeyServer.MAX_RESULTS - 1),
+                entries.get(HkpKeyServer.MAX_RESULTS - 1).getKeyIdHex());
+    }
+
+    @Test
+    public void keepsExactlyMaxResults() throws Exception {
+        StringBuilder index = new StringBuilder();
+        for (int i = 0; i < HkpKeyServer.MAX_RESULTS; i++) {
+            index.append(String.format("pub:%016X:1:2048:1234567890::\n", i));
+            index.append("uid:Key <key@example.com>:::\n");
+        }
+
+        assertEquals(HkpKeyServer.MAX_RESULTS, parse(index.toString(), null).size());
+    }
+
+}
@@ -0,0 +1,170 @@
+package org.sufficientlysecure.keychain.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.sufficientlysecure.keychain.RobolectricGradleTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class PipelineOutputStreamTest {
+
+    /**
+     * Fails once more than the given number of bytes were written to it
+     */
+    private static class FailingOutputStream extends OutputStream {
+        private final int mLimit;
+        private int mWritten;
+        volatile Thread mWriter;
+
+        FailingOutputStream(int limit) {
+            mLimit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mWriter = Thread.currentThread();
+            mWritten += len;
+            if (mWritten > mLimit) {
+                throw new IOException("disk full");
+            }
+        }
+    }
+
+    /**
+     * Blocks every write until the writing thread is interrupted
+     */
+    private static class BlockingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while writing");
+            }
+        }
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void passesOnAllBytesInOrder() throws Exception {
+        byte[] data = new byte[1000 * 1000 + 7];
+        new Random(1).nextBytes(data);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PipelineOutputStream pipeline = new PipelineOutputStream(out, "test order");
+        int off = 0;
+        Random sizes = new Random(2);
+        while (off < data.length) {
+            if (sizes.nextInt(10) == 0) {
+                pipeline.write(data[off++]);
+            } else {
+                int len = Math.min(sizes.nextInt(100 * 1000), data.length - off);
+                pipeline.write(data, off, len);
+                off += len;
+            }
+        }
+        pipeline.finish();
+
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void reportsErrorOfWrappedStreamToWriter() throws Exception {
+        FailingOutputStream out = new FailingOutputStream(200 * 1000);
+        PipelineOutputStream pipeline = new PipelineOutputStream(out, "test failing");
+
+        byte[] chunk = new byte[10 * 1000];
+        try {
+            // more than fits into the queue, so the error is seen while writing
+            for (int i = 0; i < 1000; i++) {
+                pipeline.write(chunk);
+            }
+            pipeline.finish();
+            fail("IOException of the wrapped stream was not passed on");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+
+        // the worker exits after finish() or abort()
+        pipeline.abort();
+        Thread worker = out.mWriter;
+        worker.join(5000);
+        assertFalse(worker.isAlive());
+        assertEquals(null, findThread("Pipeline test failing"));
+    }
+
+    @Test
+    public void reportsErrorOnFinish() throws Exception {
+        FailingOutputStream out = new FailingOutputStream(0);
+        PipelineOutputStream pipeline = new PipelineOutputStream(out, "test finish");
+
+        pipeline.write(new byte[100]);
+        try {
+            pipeline.finish();
+            fail("IOException of the wrapped stream was not passed on");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+        assertFalse(out.mWriter.isAlive());
+    }
+
+    @Test
+    public void abortStopsBlockedChainedStages() throws Exception {
+        PipelineOutputStream inner =
+                new PipelineOutputStream(new BlockingOutputStream(), "test inner");
+        PipelineOutputStream outer = new PipelineOutputStream(inner, "test outer");
+        Thread innerWorker = findThread("Pipeline test inner");
+        Thread outerWorker = findThread("Pipeline test outer");
+
+        // enough for the outer worker to block on the full queue of the inner stage, while
+        // there is still room in the queue of the outer stage
+        outer.write(new byte[8 * (1 << 16)]);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(outerWorker.getState() == Thread.State.WAITING
+                && innerWorker.getState() == Thread.State.TIMED_WAITING)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // give the outer worker time to take the remaining chunks and block in the inner stage
+        Thread.sleep(100);
+        assertEquals(Thread.State.WAITING, outerWorker.getState());
+        assertEquals(Thread.State.TIMED_WAITING, innerWorker.getState());
+
+        outer.abort();
+        inner.abort();
+        outerWorker.join(5000);
+        innerWorker.join(5000);
+        assertFalse(outerWorker.isAlive());
+        assertFalse(innerWorker.isAlive());
+    }
+
+}
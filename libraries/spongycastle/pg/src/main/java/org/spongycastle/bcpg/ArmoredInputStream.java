@@ -110,6 +110,10 @@ else if (in3 == '=')
     Vector         headerList= new Vector();
     int            lastC = 0;
     boolean        isEndOfStream;
+    byte[]         rawBuf;
+    boolean        endPending = false;
+
+    private static final int RAW_BUF_SIZE = 8192;
     
     /**
      * Create a stream for reading a PGP armoured message, parsing up to a header 
@@ -465,6 +469,205 @@ else if (c == '-')        // end of record reached
         return c;
     }
     
+    /**
+     * Read decoded data into b. Whole base64 lines are decoded directly into b where possible,
+     * anything else (headers, clear text, the crc line and the end of the armor) is handled
+     * by read().
+     */
+    public int read(
+        byte[] b,
+        int    off,
+        int    len)
+        throws IOException
+    {
+        if (off < 0 || len < 0 || off > b.length - len)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (endPending)
+        {
+            // the end of the armor was reached in the last call, report it now
+            endPending = false;
+            return -1;
+        }
+
+        int count = 0;
+
+        while (count < len)
+        {
+            if (!start && !clearText && !crcFound)
+            {
+                // bytes left over from the last decoded quad
+                while (bufPtr <= 2 && count < len)
+                {
+                    int c = outBuf[bufPtr++];
+
+                    crc.update(c);
+                    b[off + count++] = (byte)c;
+                }
+
+                if (count == len)
+                {
+                    break;
+                }
+
+                int n = decodeBlock(b, off + count, len - count);
+                if (n > 0)
+                {
+                    crc.update(b, off + count, n);
+                    count += n;
+                    continue;
+                }
+            }
+
+            int c = read();
+            if (c < 0)
+            {
+                if (count == 0)
+                {
+                    return -1;
+                }
+                endPending = true;
+                break;
+            }
+
+            b[off + count++] = (byte)c;
+        }
+
+        return count;
+    }
+
+    /**
+     * Decode as many complete, unpadded quads from the underlying stream into b as fit into len
+     * bytes. The underlying stream is read in bulk and reset to just behind the last decoded
+     * quad, so nothing is consumed past the data that was actually decoded. This means
+     * stopping at every line that does not look like plain base64 data, so read() can deal
+     * with it.
+     *
+     * @return the number of bytes decoded, 0 if the fast path is not applicable here.
+     */
+    private int decodeBlock(
+        byte[] b,
+        int    off,
+        int    len)
+        throws IOException
+    {
+        if (len < 3 || !in.markSupported())
+        {
+            return 0;
+        }
+
+        if (rawBuf == null)
+        {
+            rawBuf = new byte[RAW_BUF_SIZE];
+        }
+
+        int quads = len / 3;
+        // allow for line endings, the lines written by ArmoredOutputStream are 64 characters long
+        int want = Math.min(rawBuf.length, quads * 4 + quads / 8 + 8);
+
+        in.mark(want);
+
+        int rawLen = in.read(rawBuf, 0, want);
+
+        int pos = 0;
+        int consumed = 0;
+        int outCount = 0;
+
+        while (outCount + 3 <= len && pos < rawLen)
+        {
+            int c = rawBuf[pos];
+
+            if (c == '\r' || c == '\n')
+            {
+                // a line starting with '=' or '-' is the crc or the end of the armor
+                int next = pos + 1;
+                while (next < rawLen
+                    && (rawBuf[next] == '\r' || rawBuf[next] == '\n' || rawBuf[next] == ' ' || rawBuf[next] == '\t'))
+                {
+                    next++;
+                }
+                if (next == rawLen || rawBuf[next] == '=' || rawBuf[next] == '-')
+                {
+                    break;
+                }
+                pos = next;
+                continue;
+            }
+            if (c == ' ' || c == '\t')
+            {
+                pos++;
+                continue;
+            }
+
+            // collect a quad, which never spans lines
+            int b1 = -1, b2 = -1, b3 = -1, b4 = -1;
+            int q = 0;
+            while (q < 4 && pos < rawLen)
+            {
+                int qc = rawBuf[pos];
+                if (qc == ' ' || qc == '\t')
+                {
+                    pos++;
+                    continue;
+                }
+                if (qc < 0 || qc == '=' || (qc != 'A' && decodingTable[qc] == 0))
+                {
+                    // padding, a line break or garbage, leave it to read()
+                    break;
+                }
+                switch (q)
+                {
+                case 0:
+                    b1 = decodingTable[qc];
+                    break;
+                case 1:
+                    b2 = decodingTable[qc];
+                    break;
+                case 2:
+                    b3 = decodingTable[qc];
+                    break;
+                default:
+                    b4 = decodingTable[qc];
+                    break;
+                }
+                q++;
+                pos++;
+            }
+
+            if (q < 4)
+            {
+                break;
+            }
+
+            b[off + outCount++] = (byte)((b1 << 2) | (b2 >> 4));
+            b[off + outCount++] = (byte)((b2 << 4) | (b3 >> 2));
+            b[off + outCount++] = (byte)((b3 << 6) | b4);
+
+            consumed = pos;
+        }
+
+        in.reset();
+
+        long remaining = consumed;
+        while (remaining > 0)
+        {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0)
+            {
+                if (in.read() < 0)
+                {
+                    break;
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+
+        return outCount;
+    }
+
     public void close()
         throws IOException
     {
@@ -74,12 +74,15 @@ private void encode(
         }
     }
 
+    private static final int LINE_BUF_SIZE = 4096;
+
     OutputStream    out;
     int[]           buf = new int[3];
     int             bufPtr = 0;
     CRC24           crc = new CRC24();
     int             chunkCount = 0;
     int             lastb;
+    byte[]          lineBuf;
 
     boolean         start = true;
     boolean         clearText = false;
@@ -346,6 +349,86 @@ public void write(
         crc.update(b);
         buf[bufPtr++] = b & 0xff;
     }
+
+    /**
+     * Bulk version of write(int) for armored data: whole three byte groups are encoded straight
+     * into a line buffer and the checksum is updated once for all of them, the output is
+     * identical to writing the bytes one at a time.
+     */
+    public void write(
+        byte[] b,
+        int    off,
+        int    len)
+        throws IOException
+    {
+        // the first byte selects the armor type, clear text is escaped byte by byte
+        while (len > 0 && (clearText || start || bufPtr != 3))
+        {
+            write(b[off++]);
+            len--;
+        }
+
+        if (len < 3)
+        {
+            while (len > 0)
+            {
+                write(b[off++]);
+                len--;
+            }
+            return;
+        }
+
+        // a full group is pending in buf, it is only encoded once more data arrives
+        int groups = len / 3;
+        int nlLength = nl.length();
+
+        crc.update(b, off, groups * 3);
+
+        if (lineBuf == null)
+        {
+            lineBuf = new byte[LINE_BUF_SIZE];
+        }
+
+        int pos = 0;
+        for (int g = 0; g != groups; g++)
+        {
+            if (pos > LINE_BUF_SIZE - 4 - nlLength)
+            {
+                out.write(lineBuf, 0, pos);
+                pos = 0;
+            }
+
+            int d1 = buf[0];
+            int d2 = buf[1];
+            int d3 = buf[2];
+
+            lineBuf[pos++] = encodingTable[(d1 >>> 2) & 0x3f];
+            lineBuf[pos++] = encodingTable[((d1 << 4) | (d2 >>> 4)) & 0x3f];
+            lineBuf[pos++] = encodingTable[((d2 << 2) | (d3 >>> 6)) & 0x3f];
+            lineBuf[pos++] = encodingTable[d3 & 0x3f];
+
+            if ((++chunkCount & 0xf) == 0)
+            {
+                for (int i = 0; i != nlLength; i++)
+                {
+                    lineBuf[pos++] = (byte)nl.charAt(i);
+                }
+            }
+
+            buf[0] = b[off++] & 0xff;
+            buf[1] = b[off++] & 0xff;
+            buf[2] = b[off++] & 0xff;
+        }
+
+        out.write(lineBuf, 0, pos);
+
+        len -= groups * 3;
+        while (len > 0)
+        {
+            write(b[off++]);
+            len--;
+        }
+    }
     
     public void flush()
         throws IOException
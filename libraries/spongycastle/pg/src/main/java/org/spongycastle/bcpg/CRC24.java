@@ -1,12 +1,48 @@
 package org.spongycastle.bcpg;
 
+/**
+ * The 24 bit CRC used for the checksum of ASCII armored data (RFC 4880, section 6.1).
+ * <p>
+ * Single bytes are processed with a 256 entry lookup table, the bulk update processes
+ * four bytes per step using "slicing-by-4" tables.
+ */
 public class CRC24
 {
     private static final int CRC24_INIT = 0x0b704ce;
     private static final int CRC24_POLY = 0x1864cfb;
-                                                                                
+
+    private static final int[] T0 = new int[256];
+    private static final int[] T1 = new int[256];
+    private static final int[] T2 = new int[256];
+    private static final int[] T3 = new int[256];
+
+    static
+    {
+        for (int i = 0; i != 256; i++)
+        {
+            int c = i << 16;
+            for (int j = 0; j < 8; j++)
+            {
+                c <<= 1;
+                if ((c & 0x1000000) != 0)
+                {
+                    c ^= CRC24_POLY;
+                }
+            }
+            T0[i] = c;
+        }
+
+        // Tn[i] is the CRC register after feeding byte i followed by n zero bytes
+        for (int i = 0; i != 256; i++)
+        {
+            T1[i] = ((T0[i] << 8) & 0xffffff) ^ T0[T0[i] >>> 16];
+            T2[i] = ((T1[i] << 8) & 0xffffff) ^ T0[T1[i] >>> 16];
+            T3[i] = ((T2[i] << 8) & 0xffffff) ^ T0[T2[i] >>> 16];
+        }
+    }
+
     private int crc = CRC24_INIT;
-                                                                                
+
     public CRC24()
     {
     }
@@ -14,15 +50,35 @@ public CRC24()
     public void update(
         int b)
     {
-        crc ^= b << 16;
-        for (int i = 0; i < 8; i++)
+        crc = ((crc << 8) & 0xffffff) ^ T0[((crc >>> 16) ^ b) & 0xff];
+    }
+
+    public void update(
+        byte[] buf,
+        int    off,
+        int    len)
+    {
+        int c = crc;
+        int end = off + len;
+
+        // after four bytes every bit of the old register has been shifted out, so the new
+        // register only depends on the three register bytes xor'ed with the first three
+        // input bytes and on the fourth input byte.
+        while (end - off >= 4)
         {
-            crc <<= 1;
-            if ((crc & 0x1000000) != 0)
-            {
-                crc ^= CRC24_POLY;
-            }
+            c = T3[((c >>> 16) ^ buf[off]) & 0xff]
+              ^ T2[((c >>> 8) ^ buf[off + 1]) & 0xff]
+              ^ T1[(c ^ buf[off + 2]) & 0xff]
+              ^ T0[buf[off + 3] & 0xff];
+            off += 4;
+        }
+
+        while (off != end)
+        {
+            c = ((c << 8) & 0xffffff) ^ T0[((c >>> 16) ^ buf[off++]) & 0xff];
         }
+
+        crc = c;
     }
 
     public int getValue()
@@ -14,9 +14,16 @@
 public abstract class PGPEncryptedData
     implements SymmetricKeyAlgorithmTags
 {
+    /**
+     * Passes through all but the last 22 bytes of the underlying stream, which are held back
+     * as the MDC packet.
+     */
     protected class TruncatedStream extends InputStream
     {
-        int[]         lookAhead = new int[22];
+        private static final int LOOK_AHEAD = 22;
+
+        byte[]        lookAhead = new byte[LOOK_AHEAD];
+        byte[]        tail = new byte[LOOK_AHEAD];
         int           bufPtr;
         InputStream   in;
         
@@ -24,15 +31,17 @@ protected class TruncatedStream extends InputStream
             InputStream    in) 
             throws IOException
         {
-            for (int i = 0; i != lookAhead.length; i++)
+            int count = 0;
+            while (count != lookAhead.length)
             {
-                if ((lookAhead[i] = in.read()) < 0)
+                int len = in.read(lookAhead, count, lookAhead.length - count);
+                if (len < 0)
                 {
                     throw new EOFException();
                 }
+                count += len;
             }
-            
-            bufPtr = 0;
+
             this.in = in;
         }
 
@@ -43,29 +52,83 @@ public int read()
             
             if (ch >= 0)
             {
-                int    c = lookAhead[bufPtr];
-                
-                lookAhead[bufPtr] = ch;
-                bufPtr = (bufPtr + 1) % lookAhead.length;
-                
+                int    c = lookAhead[bufPtr] & 0xff;
+
+                lookAhead[bufPtr] = (byte)ch;
+                bufPtr = (bufPtr + 1) % LOOK_AHEAD;
+
                 return c;
             }
             
             return -1;
         }
+
+        /**
+         * Rotates lookAhead so that it starts at index 0 again, after single byte reads.
+         */
+        private void normalize()
+        {
+            if (bufPtr != 0)
+            {
+                System.arraycopy(lookAhead, bufPtr, tail, 0, LOOK_AHEAD - bufPtr);
+                System.arraycopy(lookAhead, 0, tail, LOOK_AHEAD - bufPtr, bufPtr);
+
+                byte[] tmp = lookAhead;
+                lookAhead = tail;
+                tail = tmp;
+                bufPtr = 0;
+            }
+        }
+
+        /**
+         * Reads n bytes into buf and returns the first n bytes of lookAhead followed by them,
+         * keeping the last 22 bytes as the new lookAhead.
+         */
+        public int read(byte[] buf, int off, int len)
+            throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+
+            normalize();
+
+            int n = in.read(buf, off, len);
+
+            if (n <= 0)
+            {
+                return n;
+            }
+
+            if (n >= LOOK_AHEAD)
+            {
+                System.arraycopy(buf, off + n - LOOK_AHEAD, tail, 0, LOOK_AHEAD);
+                System.arraycopy(buf, off, buf, off + LOOK_AHEAD, n - LOOK_AHEAD);
+                System.arraycopy(lookAhead, 0, buf, off, LOOK_AHEAD);
+
+                byte[] tmp = lookAhead;
+                lookAhead = tail;
+                tail = tmp;
+            }
+            else
+            {
+                System.arraycopy(buf, off, tail, 0, n);
+                System.arraycopy(lookAhead, 0, buf, off, n);
+                System.arraycopy(lookAhead, n, lookAhead, 0, LOOK_AHEAD - n);
+                System.arraycopy(tail, 0, lookAhead, LOOK_AHEAD - n, n);
+            }
+
+            return n;
+        }
         
         int[] getLookAhead()
         {
             int[]    tmp = new int[lookAhead.length];
-            int    count = 0;
-            
-            for (int i = bufPtr; i != lookAhead.length; i++)
-            {
-                tmp[count++] = lookAhead[i];
-            }
-            for (int i = 0; i != bufPtr; i++)
+
+            for (int i = 0; i != lookAhead.length; i++)
             {
-                tmp[count++] = lookAhead[i];
+                tmp[i] = lookAhead[(bufPtr + i) % LOOK_AHEAD] & 0xff;
             }
             
             return tmp;
@@ -119,7 +182,8 @@ public boolean verify()
         //
         // make sure we are at the end.
         //
-        while (encStream.read() >= 0)
+        byte[] skip = new byte[4096];
+        while (encStream.read(skip, 0, skip.length) >= 0)
         {
             // do nothing
         }
@@ -15,6 +15,8 @@
 class PGPUtil
     implements HashAlgorithmTags
 {
+    private static final int S2K_BLOCK_SIZE = 8192;
+
     static byte[] makeKeyFromPassPhrase(
         PGPDigestCalculator digestCalculator,
         int     algorithm,
@@ -93,6 +95,7 @@ static byte[] makeKeyFromPassPhrase(
         }
 
         OutputStream dOut = digestCalculator.getOutputStream();
+        byte[]       iteratedBlock = null;
 
         try
         {
@@ -117,35 +120,20 @@ static byte[] makeKeyFromPassPhrase(
                         dOut.write(pBytes);
                         break;
                     case S2K.SALTED_AND_ITERATED:
-                        long    count = s2k.getIterationCount();
-                        dOut.write(iv);
-                        dOut.write(pBytes);
+                        if (iteratedBlock == null)
+                        {
+                            iteratedBlock = makeIteratedBlock(iv, pBytes);
+                        }
 
-                        count -= iv.length + pBytes.length;
+                        // the salt and passphrase are always hashed at least once
+                        long    count = Math.max(s2k.getIterationCount(), iv.length + pBytes.length);
 
                         while (count > 0)
                         {
-                            if (count < iv.length)
-                            {
-                                dOut.write(iv, 0, (int)count);
-                                break;
-                            }
-                            else
-                            {
-                                dOut.write(iv);
-                                count -= iv.length;
-                            }
-
-                            if (count < pBytes.length)
-                            {
-                                dOut.write(pBytes, 0, (int)count);
-                                count = 0;
-                            }
-                            else
-                            {
-                                dOut.write(pBytes);
-                                count -= pBytes.length;
-                            }
+                            int    len = (int)Math.min(count, iteratedBlock.length);
+
+                            dOut.write(iteratedBlock, 0, len);
+                            count -= len;
                         }
                         break;
                     default:
@@ -190,9 +178,38 @@ static byte[] makeKeyFromPassPhrase(
             pBytes[i] = 0;
         }
 
+        if (iteratedBlock != null)
+        {
+            for (int i = 0; i != iteratedBlock.length; i++)
+            {
+                iteratedBlock[i] = 0;
+            }
+        }
+
         return keyBytes;
     }
 
+    /**
+     * Build a buffer holding salt||passphrase repeated a whole number of times, so the
+     * iterated and salted S2K input can be hashed in large chunks rather than alternating
+     * short writes of the salt and the passphrase.
+     */
+    private static byte[] makeIteratedBlock(
+        byte[]  iv,
+        byte[]  pBytes)
+    {
+        int     unit = iv.length + pBytes.length;
+        byte[]  block = new byte[Math.max(1, S2K_BLOCK_SIZE / unit) * unit];
+
+        for (int off = 0; off != block.length; off += unit)
+        {
+            System.arraycopy(iv, 0, block, off, iv.length);
+            System.arraycopy(pBytes, 0, block, off + iv.length, pBytes.length);
+        }
+
+        return block;
+    }
+
     public static byte[] makeKeyFromPassPhrase(
         PGPDigestCalculatorProvider digCalcProvider,
         int     algorithm,
@@ -1,10 +1,15 @@
 package org.spongycastle.openpgp.test;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
 
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.bcpg.ArmoredInputStream;
+import org.spongycastle.bcpg.CRC24;
 import org.spongycastle.util.Arrays;
 import org.spongycastle.util.Strings;
 import org.spongycastle.util.encoders.Base64;
@@ -108,6 +113,147 @@ private void blankLineTest() throws Exception
         }
     }
 
+    private byte[] readAll(
+        InputStream aIn,
+        int         bufSize)
+        throws Exception
+    {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        byte[] buf = new byte[bufSize];
+        int len;
+
+        while ((len = aIn.read(buf, 0, buf.length)) >= 0)
+        {
+            bOut.write(buf, 0, len);
+        }
+
+        return bOut.toByteArray();
+    }
+
+    private void bulkReadTest() throws Exception
+    {
+        Random rand = new Random(42);
+        int[] sizes = { 0, 1, 2, 47, 48, 49, 1000, 100000 };
+        int[] bufSizes = { 1, 2, 3, 4, 7, 64, 1000, 65536 };
+
+        for (int i = 0; i != sizes.length; i++)
+        {
+            byte[] msg = new byte[sizes[i]];
+            rand.nextBytes(msg);
+
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+            ArmoredOutputStream aOut = new ArmoredOutputStream(bOut);
+            aOut.write(msg);
+            aOut.close();
+            byte[] armored = bOut.toByteArray();
+
+            for (int j = 0; j != bufSizes.length; j++)
+            {
+                ArmoredInputStream aIn = new ArmoredInputStream(new ByteArrayInputStream(armored));
+
+                if (!Arrays.areEqual(msg, readAll(aIn, bufSizes[j])))
+                {
+                    fail("bulk read failed for " + sizes[i] + " bytes with buffer " + bufSizes[j]);
+                }
+            }
+        }
+
+        //
+        // two consecutive blocks on a shared stream, each read by its own ArmoredInputStream
+        //
+        byte[] msg1 = new byte[5000];
+        byte[] msg2 = new byte[3000];
+        rand.nextBytes(msg1);
+        rand.nextBytes(msg2);
+
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        ArmoredOutputStream aOut = new ArmoredOutputStream(bOut);
+        aOut.write(msg1);
+        aOut.close();
+        aOut = new ArmoredOutputStream(bOut);
+        aOut.write(msg2);
+        aOut.close();
+
+        BufferedInputStream bIn = new BufferedInputStream(new ByteArrayInputStream(bOut.toByteArray()));
+
+        if (!Arrays.areEqual(msg1, readAll(new ArmoredInputStream(bIn), 4096)))
+        {
+            fail("bulk read of first block failed");
+        }
+        if (!Arrays.areEqual(msg2, readAll(new ArmoredInputStream(bIn), 4096)))
+        {
+            fail("bulk read of second block failed");
+        }
+
+        //
+        // a corrupted line must still fail the crc check
+        //
+        bOut = new ByteArrayOutputStream();
+        aOut = new ArmoredOutputStream(bOut);
+        aOut.write(msg1);
+        aOut.close();
+        byte[] armored = bOut.toByteArray();
+
+        int dataStart = Strings.fromByteArray(armored).indexOf("\n\n") + 2;
+        armored[dataStart + 10] = (byte)((armored[dataStart + 10] == 'A') ? 'B' : 'A');
+
+        try
+        {
+            readAll(new ArmoredInputStream(new ByteArrayInputStream(armored)), 4096);
+            fail("corrupted armor not detected in bulk read");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    private void bulkWriteTest() throws Exception
+    {
+        CRC24 crc = new CRC24();
+        byte[] check = Strings.toByteArray("123456789");
+
+        crc.update(check, 0, check.length);
+        if (crc.getValue() != 0x21cf02)
+        {
+            fail("CRC24 check value wrong: " + Integer.toHexString(crc.getValue()));
+        }
+
+        Random rand = new Random(7);
+        int[] sizes = { 0, 1, 2, 3, 4, 47, 48, 49, 50, 1000, 100000 };
+        int[] chunkSizes = { 1, 2, 3, 5, 48, 1000, 100000 };
+
+        for (int i = 0; i != sizes.length; i++)
+        {
+            byte[] msg = new byte[sizes[i]];
+            rand.nextBytes(msg);
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            ArmoredOutputStream aOut = new ArmoredOutputStream(expected);
+            for (int k = 0; k != msg.length; k++)
+            {
+                aOut.write(msg[k]);
+            }
+            aOut.close();
+
+            for (int j = 0; j != chunkSizes.length; j++)
+            {
+                ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+                aOut = new ArmoredOutputStream(bOut);
+                for (int off = 0; off < msg.length; off += chunkSizes[j])
+                {
+                    aOut.write(msg, off, Math.min(chunkSizes[j], msg.length - off));
+                }
+                aOut.close();
+
+                if (!Arrays.areEqual(expected.toByteArray(), bOut.toByteArray()))
+                {
+                    fail("bulk write differs for " + sizes[i] + " bytes in chunks of " + chunkSizes[j]);
+                }
+            }
+        }
+    }
+
     public void performTest()
         throws Exception
     {
@@ -240,6 +386,8 @@ public void performTest()
         }
 
         blankLineTest();
+        bulkReadTest();
+        bulkWriteTest();
     }
 
     public String getName()
@@ -148,6 +148,111 @@ private byte[] decryptMessageBuffered(
         return bOut.toByteArray();
     }
 
+    private byte[] encryptLiteral(
+        byte[]    msg,
+        SecureRandom rand)
+        throws Exception
+    {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        PGPLiteralDataGenerator lData = new PGPLiteralDataGenerator();
+        OutputStream ldOut = lData.open(
+            new UncloseableOutputStream(bOut),
+            PGPLiteralData.BINARY,
+            PGPLiteralData.CONSOLE,
+            msg.length,
+            TEST_DATE);
+
+        ldOut.write(msg);
+        ldOut.close();
+
+        ByteArrayOutputStream cbOut = new ByteArrayOutputStream();
+        PGPEncryptedDataGenerator cPk = new PGPEncryptedDataGenerator(PGPEncryptedData.AES_128, true, rand, "SC");
+
+        cPk.addMethod(pass);
+
+        OutputStream cOut = cPk.open(new UncloseableOutputStream(cbOut), new byte[1 << 12]);
+
+        cOut.write(bOut.toByteArray());
+        cOut.close();
+
+        return cbOut.toByteArray();
+    }
+
+    private byte[] decryptLiteral(
+        byte[]    message,
+        int       bufSize)
+        throws Exception
+    {
+        PGPObjectFactory         pgpF = new PGPObjectFactory(message);
+        PGPEncryptedDataList     enc = (PGPEncryptedDataList)pgpF.nextObject();
+        PGPPBEEncryptedData      pbe = (PGPPBEEncryptedData)enc.get(0);
+
+        PGPObjectFactory         pgpFact = new PGPObjectFactory(pbe.getDataStream(pass, "SC"));
+        PGPLiteralData           ld = (PGPLiteralData)pgpFact.nextObject();
+
+        ByteArrayOutputStream    bOut = new ByteArrayOutputStream();
+        InputStream              unc = ld.getInputStream();
+        byte[]                   buf = new byte[bufSize];
+        int                      len;
+
+        while ((len = unc.read(buf, 0, buf.length)) >= 0)
+        {
+            bOut.write(buf, 0, len);
+        }
+
+        if (!pbe.verify())
+        {
+            return null;
+        }
+
+        return bOut.toByteArray();
+    }
+
+    /**
+     * integrity protected messages read with various buffer sizes, the MDC trailer has to be
+     * held back correctly no matter how reads line up with it.
+     */
+    private void integrityBulkReadTest(
+        SecureRandom rand)
+        throws Exception
+    {
+        int[] sizes = { 0, 1, 21, 22, 23, 5000, 300000 };
+        int[] bufSizes = { 1, 2, 21, 22, 23, 1024, 65536 };
+
+        for (int i = 0; i != sizes.length; i++)
+        {
+            byte[] msg = new byte[sizes[i]];
+            rand.nextBytes(msg);
+
+            byte[] encrypted = encryptLiteral(msg, rand);
+
+            for (int j = 0; j != bufSizes.length; j++)
+            {
+                byte[] out = decryptLiteral(encrypted, bufSizes[j]);
+
+                if (out == null)
+                {
+                    fail("integrity check failed for " + sizes[i] + " bytes with buffer " + bufSizes[j]);
+                }
+                if (!areEqual(out, msg))
+                {
+                    fail("wrong plain text for " + sizes[i] + " bytes with buffer " + bufSizes[j]);
+                }
+            }
+        }
+
+        byte[] msg = new byte[5000];
+        rand.nextBytes(msg);
+
+        byte[] encrypted = encryptLiteral(msg, rand);
+        encrypted[encrypted.length - 30] ^= 0x01;
+
+        if (decryptLiteral(encrypted, 1024) != null)
+        {
+            fail("modified message passed integrity check");
+        }
+    }
+
     public void performTest()
         throws Exception
     {
@@ -379,6 +484,8 @@ public void performTest()
         {
             fail("wrong plain text in buffer generated packet");
         }
+
+        integrityBulkReadTest(rand);
     }
 
     public String getName()
@@ -0,0 +1,188 @@
+package org.spongycastle.openpgp.test.speedy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+
+import org.spongycastle.bcpg.ArmoredInputStream;
+import org.spongycastle.bcpg.ArmoredOutputStream;
+import org.spongycastle.bcpg.CRC24;
+
+/**
+ * Microbenchmark of the table driven CRC24 against the original bitwise implementation, and of
+ * byte-at-a-time against bulk armoring of the same data.
+ */
+public class CRC24ThroughputTest
+{
+    private static final int DATA_SIZE = 16 * 1024 * 1024;
+    private static final int RUNS = 5;
+    private static final int CHUNK_SIZE = 8192;
+
+    private static SecureRandom rand = new SecureRandom();
+
+    /**
+     * The bitwise CRC24 this benchmark compares against.
+     */
+    private static class BitwiseCRC24
+    {
+        private int crc = 0x0b704ce;
+
+        public void update(int b)
+        {
+            crc ^= b << 16;
+            for (int i = 0; i < 8; i++)
+            {
+                crc <<= 1;
+                if ((crc & 0x1000000) != 0)
+                {
+                    crc ^= 0x1864cfb;
+                }
+            }
+        }
+
+        public int getValue()
+        {
+            return crc;
+        }
+    }
+
+    private interface Run
+    {
+        int run(byte[] input)
+            throws IOException;
+    }
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        System.out.println("Initialising test data.");
+        byte[] input = new byte[DATA_SIZE];
+        rand.nextBytes(input);
+        System.out.println("Init complete.");
+
+        int bitwise = speedTest("CRC24 bitwise", input, new Run()
+        {
+            public int run(byte[] input)
+            {
+                BitwiseCRC24 crc = new BitwiseCRC24();
+                for (int i = 0; i != input.length; i++)
+                {
+                    crc.update(input[i]);
+                }
+                return crc.getValue();
+            }
+        });
+
+        int table = speedTest("CRC24 table, single byte", input, new Run()
+        {
+            public int run(byte[] input)
+            {
+                CRC24 crc = new CRC24();
+                for (int i = 0; i != input.length; i++)
+                {
+                    crc.update(input[i]);
+                }
+                return crc.getValue();
+            }
+        });
+
+        int sliced = speedTest("CRC24 slicing-by-4, bulk", input, new Run()
+        {
+            public int run(byte[] input)
+            {
+                CRC24 crc = new CRC24();
+                crc.update(input, 0, input.length);
+                return crc.getValue();
+            }
+        });
+
+        if (bitwise != table || bitwise != sliced)
+        {
+            throw new IllegalStateException("CRC24 implementations disagree");
+        }
+
+        speedTest("Armor, single byte writes", input, new Run()
+        {
+            public int run(byte[] input)
+                throws IOException
+            {
+                OutputStream aOut = new ArmoredOutputStream(new ByteArrayOutputStream(DATA_SIZE * 2));
+                for (int i = 0; i != input.length; i++)
+                {
+                    aOut.write(input[i]);
+                }
+                aOut.close();
+                return 0;
+            }
+        });
+
+        speedTest("Armor, bulk writes", input, new Run()
+        {
+            public int run(byte[] input)
+                throws IOException
+            {
+                OutputStream aOut = new ArmoredOutputStream(new ByteArrayOutputStream(DATA_SIZE * 2));
+                for (int off = 0; off < input.length; off += CHUNK_SIZE)
+                {
+                    aOut.write(input, off, Math.min(CHUNK_SIZE, input.length - off));
+                }
+                aOut.close();
+                return 0;
+            }
+        });
+
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(DATA_SIZE * 2);
+        ArmoredOutputStream aOut = new ArmoredOutputStream(bOut);
+        aOut.write(input);
+        aOut.close();
+        final byte[] armored = bOut.toByteArray();
+
+        speedTest("Dearmor, bulk reads", input, new Run()
+        {
+            public int run(byte[] input)
+                throws IOException
+            {
+                ArmoredInputStream aIn = new ArmoredInputStream(new ByteArrayInputStream(armored));
+                byte[] buf = new byte[CHUNK_SIZE];
+                int total = 0;
+                int len;
+                while ((len = aIn.read(buf, 0, buf.length)) >= 0)
+                {
+                    total += len;
+                }
+                return total;
+            }
+        });
+    }
+
+    private static int speedTest(String name, byte[] input, Run run)
+        throws Exception
+    {
+        System.out.println("======");
+        System.out.println("Testing " + name);
+
+        int result = run.run(input);
+        run.run(input);
+        System.gc();
+        Thread.sleep(200);
+
+        long total = 0;
+        for (int i = 0; i < RUNS; i++)
+        {
+            long start = System.nanoTime();
+            run.run(input);
+            long delta = System.nanoTime() - start;
+            total += delta;
+            System.out.println("Run " + (i + 1) + ": " + delta / 1000000 + "ms");
+        }
+
+        long averageRuntime = total / RUNS;
+        long mbPerSecond = (long)((double)DATA_SIZE / averageRuntime * 1000000000 / (1024 * 1024));
+        System.out.println(name + " Average run time: " + averageRuntime / 1000000 + "ms");
+        System.out.println(name + " Average speed:    " + mbPerSecond + " MB/s");
+
+        return result;
+    }
+}
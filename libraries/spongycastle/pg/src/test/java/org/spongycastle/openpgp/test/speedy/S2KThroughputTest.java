@@ -0,0 +1,130 @@
+package org.spongycastle.openpgp.test.speedy;
+
+import java.security.SecureRandom;
+
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.S2K;
+import org.spongycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.spongycastle.crypto.Digest;
+import org.spongycastle.crypto.digests.SHA1Digest;
+import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.spongycastle.openpgp.operator.bc.BcPBESecretKeyDecryptorBuilder;
+import org.spongycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+import org.spongycastle.util.Arrays;
+import org.spongycastle.util.Strings;
+
+/**
+ * Microbenchmark of iterated and salted S2K key derivation, comparing the block based
+ * implementation against the original alternating salt/passphrase writes for the common
+ * iteration counts.
+ */
+public class S2KThroughputTest
+{
+    private static final int RUNS = 5;
+
+    // encoded counts: 65536 (GnuPG 1.x default), 1M, 4M and the maximum of 65011712
+    private static final int[] IT_COUNTS = { 0x60, 0xa0, 0xc0, 0xff };
+
+    private static SecureRandom rand = new SecureRandom();
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        char[] passPhrase = "correct horse battery staple".toCharArray();
+        byte[] salt = new byte[8];
+        rand.nextBytes(salt);
+
+        PBESecretKeyDecryptor decryptor = new BcPBESecretKeyDecryptorBuilder(
+            new BcPGPDigestCalculatorProvider()).build(passPhrase);
+
+        for (int i = 0; i != IT_COUNTS.length; i++)
+        {
+            S2K s2k = new S2K(HashAlgorithmTags.SHA1, salt, IT_COUNTS[i]);
+
+            System.out.println("======");
+            System.out.println("S2K SHA1, " + s2k.getIterationCount() + " bytes, AES-256 key");
+
+            byte[] expected = referenceKey(s2k, Strings.toUTF8ByteArray(passPhrase), 32);
+            if (!Arrays.areEqual(expected, decryptor.makeKeyFromPassPhrase(SymmetricKeyAlgorithmTags.AES_256, s2k)))
+            {
+                throw new IllegalStateException("S2K implementations disagree");
+            }
+
+            long reference = 0;
+            long block = 0;
+            for (int run = 0; run < RUNS; run++)
+            {
+                long start = System.nanoTime();
+                referenceKey(s2k, Strings.toUTF8ByteArray(passPhrase), 32);
+                reference += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                decryptor.makeKeyFromPassPhrase(SymmetricKeyAlgorithmTags.AES_256, s2k);
+                block += System.nanoTime() - start;
+            }
+
+            System.out.println("Alternating writes average: " + reference / RUNS / 1000 + "us");
+            System.out.println("Block writes average:       " + block / RUNS / 1000 + "us");
+        }
+    }
+
+    /**
+     * The original S2K loop, writing salt and passphrase alternately.
+     */
+    private static byte[] referenceKey(S2K s2k, byte[] pBytes, int keyLength)
+    {
+        Digest digest = new SHA1Digest();
+        byte[] keyBytes = new byte[keyLength];
+        byte[] iv = s2k.getIV();
+        int generatedBytes = 0;
+        int loopCount = 0;
+
+        while (generatedBytes < keyBytes.length)
+        {
+            for (int i = 0; i != loopCount; i++)
+            {
+                digest.update((byte)0);
+            }
+
+            long count = s2k.getIterationCount();
+            digest.update(iv, 0, iv.length);
+            digest.update(pBytes, 0, pBytes.length);
+
+            count -= iv.length + pBytes.length;
+
+            while (count > 0)
+            {
+                if (count < iv.length)
+                {
+                    digest.update(iv, 0, (int)count);
+                    break;
+                }
+                else
+                {
+                    digest.update(iv, 0, iv.length);
+                    count -= iv.length;
+                }
+
+                if (count < pBytes.length)
+                {
+                    digest.update(pBytes, 0, (int)count);
+                    count = 0;
+                }
+                else
+                {
+                    digest.update(pBytes, 0, pBytes.length);
+                    count -= pBytes.length;
+                }
+            }
+
+            byte[] dig = new byte[digest.getDigestSize()];
+            digest.doFinal(dig, 0);
+
+            System.arraycopy(dig, 0, keyBytes, generatedBytes, Math.min(dig.length, keyBytes.length - generatedBytes));
+            generatedBytes += dig.length;
+            loopCount++;
+        }
+
+        return keyBytes;
+    }
+}